@@ -33,6 +33,7 @@
 #include <fuse.h>
 #include <libgen.h>
 #include <limits.h>
+#include <stdint.h>
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
@@ -47,6 +48,12 @@
 
 #include "log.h"
 
+//fi->fh holds a file's descriptor in its low 32 bits. BB_FOLLOW is set
+//for files still being copied in or only partly cached, only their
+//reads and writes have to ask Java whether the bytes are there yet.
+#define BB_FOLLOW ((uint64_t) 1 << 32)
+#define BB_FD(fi) ((int) ((fi)->fh & 0xffffffff))
+
 pthread_mutex_t lock;
 JNIEnv *env;
 JavaVM *jvm;
@@ -57,7 +64,8 @@ jmethodID fuse_readdir_method,
             fuse_getattr_method,fuse_open_method,fuse_mknod_method,
             fuse_mkdir_method,fuse_unlink_method,fuse_rmdir_method,
             fuse_rename_method,fuse_release_method,fuse_write_method,
-            fuse_opendir_method,fuse_access_method,
+            fuse_opendir_method,fuse_access_method,fuse_read_method,
+            fuse_truncate_method,
             midGetErrorCode,midGetOwner,midGetGroup,midGetNLink,
             midGetFilename,midGetType,midGetPermissions,midGetSize,midGetMTime;
 
@@ -105,6 +113,8 @@ int stitch_GridFTP() {
     fuse_release_method = (*env)->GetStaticMethodID(env, gFTP_class, "fuse_release", "(Ljava/lang/String;)I");
     fuse_write_method   = (*env)->GetStaticMethodID(env, gFTP_class, "fuse_write",   "(Ljava/lang/String;)I");
     fuse_access_method  = (*env)->GetStaticMethodID(env, gFTP_class, "fuse_access",  "(Ljava/lang/String;I)I");
+    fuse_read_method    = (*env)->GetStaticMethodID(env, gFTP_class, "fuse_read",    "(Ljava/lang/String;JJ)I");
+    fuse_truncate_method = (*env)->GetStaticMethodID(env, gFTP_class, "fuse_truncate", "(Ljava/lang/String;J)I");
 
     //Initialise methods in FileStat_class
     midGetErrorCode   = (*env)->GetMethodID(env,FileStat_class, "getErrorCode",   "()I");
@@ -134,6 +144,34 @@ static void bb_fullpath(char fpath[PATH_MAX], const char *path)
             BB_DATA->rootdir, path, fpath);
 }
 
+//Make sure a range of a file is in the cached copy, this may have to
+//fetch it. That can take a while, so use this thread's own JNIEnv
+//instead of holding the lock and stopping every other call.
+//Only a negative result is an error, callers go on to pread/pwrite otherwise.
+static int bb_fetch_range(const char *path, off_t offset, size_t size)
+{
+    JNIEnv *fetch_env;
+    (*jvm)->AttachCurrentThread(jvm,(void **) &fetch_env,NULL);
+    jstring jpath = (*fetch_env)->NewStringUTF(fetch_env, path);
+    jint jretstat = (*fetch_env)->CallStaticIntMethod(fetch_env, gFTP_class, fuse_read_method, jpath, (jlong) offset, (jlong) size);
+    (*fetch_env)->DeleteLocalRef(fetch_env,jpath);
+    (*jvm)->DetachCurrentThread(jvm);
+    return jretstat;
+}
+
+//Make sure bytes still arriving won't land past the new end of a file.
+//This can wait on fetches, so it doesn't hold the lock either.
+static int bb_prepare_truncate(const char *path, off_t newsize)
+{
+    JNIEnv *truncate_env;
+    (*jvm)->AttachCurrentThread(jvm,(void **) &truncate_env,NULL);
+    jstring jpath = (*truncate_env)->NewStringUTF(truncate_env, path);
+    jint jretstat = (*truncate_env)->CallStaticIntMethod(truncate_env, gFTP_class, fuse_truncate_method, jpath, (jlong) newsize);
+    (*truncate_env)->DeleteLocalRef(truncate_env,jpath);
+    (*jvm)->DetachCurrentThread(jvm);
+    return jretstat;
+}
+
 ///////////////////////////////////////////////////////////
 //
 // Prototypes for all these functions, and the C-style comments,
@@ -527,6 +565,9 @@ int bb_truncate(const char *path, off_t newsize)
     (*jvm)->DetachCurrentThread(jvm);
     pthread_mutex_unlock(&lock);
 
+    if ( retstat == 0 ) {
+        retstat = bb_prepare_truncate(path, newsize);
+    }
     if ( retstat == 0 ) {
         retstat = log_syscall("truncate", truncate(fpath, newsize), 0);
     }
@@ -560,6 +601,7 @@ int bb_open(const char *path, struct fuse_file_info *fi)
 {
     int retstat = 0;
     int fd;
+    int follow;
     char fpath[PATH_MAX];
 
     pthread_mutex_lock(&lock);
@@ -592,6 +634,8 @@ int bb_open(const char *path, struct fuse_file_info *fi)
             }
         }
     }
+    //Anything but a whole cached copy (17) has reads which must wait for bytes
+    follow = ( retstat == 0 );
     //If the file was already cached, then retstat == 17
     if ( retstat == 17 ) { retstat = 0; }
     //Now that the remote file is copied to the local machine, open it normally
@@ -604,6 +648,9 @@ int bb_open(const char *path, struct fuse_file_info *fi)
         retstat = log_error("open");
         
         fi->fh = fd;
+        if ( fd >= 0 && follow ) {
+            fi->fh |= BB_FOLLOW;
+        }
 
         log_fi(fi);
     }
@@ -636,7 +683,16 @@ int bb_read(const char *path, char *buf, size_t size, off_t offset, struct fuse_
     // no need to get fpath on this one, since I work from fi->fh not the path
     log_fi(fi);
 
-    return log_syscall("pread", pread(fi->fh, buf, size, offset), 0);
+    //Make sure the bytes being read are in the cached copy,
+    //a whole cached copy is read straight from the file
+    if ( fi->fh & BB_FOLLOW ) {
+        retstat = bb_fetch_range(path, offset, size);
+        if ( retstat < 0 ) {
+            return retstat;
+        }
+    }
+
+    return log_syscall("pread", pread(BB_FD(fi), buf, size, offset), 0);
 }
 
 /** Write data to an open file
@@ -660,6 +716,15 @@ int bb_write(const char *path, const char *buf, size_t size, off_t offset,
     // no need to get fpath on this one, since I work from fi->fh not the path
     log_fi(fi);
 
+    //Bytes being overwritten which haven't arrived yet would
+    //overwrite the write when they did, so fetch them first
+    if ( fi->fh & BB_FOLLOW ) {
+        retstat = bb_fetch_range(path, offset, size);
+        if ( retstat < 0 ) {
+            return retstat;
+        }
+    }
+
     pthread_mutex_lock(&lock);
     //Attach JVM to thread so we can use it
     (*jvm)->AttachCurrentThread(jvm,(void **) &env,NULL);
@@ -674,7 +739,7 @@ int bb_write(const char *path, const char *buf, size_t size, off_t offset,
     pthread_mutex_unlock(&lock);
 
     if ( retstat == 0 ) {
-        retstat = log_syscall("pwrite", pwrite(fi->fh, buf, size, offset), 0);
+        retstat = log_syscall("pwrite", pwrite(BB_FD(fi), buf, size, offset), 0);
     }
 
     return retstat;
@@ -760,7 +825,7 @@ int bb_release(const char *path, struct fuse_file_info *fi)
 
     // We need to close the file.  Had we allocated any resources
     // (buffers etc) we'd need to free them here as well.
-    retstat = log_syscall("close", close(fi->fh), 0);
+    retstat = log_syscall("close", close(BB_FD(fi)), 0);
 
     pthread_mutex_lock(&lock);
     //Attach JVM to thread so we can use it
@@ -793,10 +858,10 @@ int bb_fsync(const char *path, int datasync, struct fuse_file_info *fi)
     // some unix-like systems (notably freebsd) don't have a datasync call
 #ifdef HAVE_FDATASYNC
     if (datasync)
-        return log_syscall("fdatasync", fdatasync(fi->fh), 0);
+        return log_syscall("fdatasync", fdatasync(BB_FD(fi)), 0);
     else
 #endif  
-        return log_syscall("fsync", fsync(fi->fh), 0);
+        return log_syscall("fsync", fsync(BB_FD(fi)), 0);
 }
 
 #ifdef HAVE_SYS_XATTR_H
@@ -1218,7 +1283,10 @@ int bb_ftruncate(const char *path, off_t offset, struct fuse_file_info *fi)
             path, offset, fi);
     log_fi(fi);
     
-    retstat = ftruncate(fi->fh, offset);
+    retstat = bb_prepare_truncate(path, offset);
+    if (retstat != 0)
+        return retstat;
+    retstat = ftruncate(BB_FD(fi), offset);
     if (retstat < 0)
         retstat = log_error("bb_ftruncate ftruncate");
     
@@ -1252,7 +1320,7 @@ int bb_fgetattr(const char *path, struct stat *statbuf, struct fuse_file_info *f
     if (!strcmp(path, "/"))
         return bb_getattr(path, statbuf);
     
-    retstat = fstat(fi->fh, statbuf);
+    retstat = fstat(BB_FD(fi), statbuf);
     if (retstat < 0)
         retstat = log_error("bb_fgetattr fstat");
     
@@ -9,6 +9,9 @@ import java.util.logging.Logger;
 
 public class App {
     public static GridFuseCache cache;
+    //When init() was called, for measuring time to first readdir
+    private static long initStarted;
+    private static volatile boolean firstReaddirLogged = false;
     private static final LogManager logManager = LogManager.getLogManager();
     private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
     static{
@@ -37,15 +40,27 @@ public class App {
      */
     public static int init() {
         LOGGER.warning("Prototype");
+        initStarted = System.currentTimeMillis();
         try {
-            cache = new GridFuseCacheAll();
+            //all: cache everything, lazy: metadata only until a file is opened, minimal: nothing
+            String cacheType = new GridFuseProperties().getProperties().get("cacheType");
+            if ("lazy".equalsIgnoreCase(cacheType)) {
+                cache = new GridFuseCacheLazy();
+            }
+            else if ("minimal".equalsIgnoreCase(cacheType)) {
+                cache = new GridFuseCacheMinimal();
+            }
+            else {
+                cache = new GridFuseCacheAll();
+            }
         } catch (FileNotFoundException ioE) {
             LOGGER.severe("Config file not found");
             return -13;
         } catch (IOException ioE) {
-            LOGGER.severe("Missing certificate");
+            LOGGER.log(Level.SEVERE, "Missing certificate or remote store unreachable", ioE);
             return -13;
         }
+        LOGGER.info("Startup timing: init() took "+(System.currentTimeMillis()-initStarted)+"ms");
         return 0;
     }
 
@@ -82,7 +97,12 @@ public class App {
      * or null if errors occur.
      */
     public static FileStat[] fuse_readdir(String path) {
-        return cache.readdir(path);
+        FileStat[] files = cache.readdir(path);
+        if (!firstReaddirLogged) {
+            firstReaddirLogged = true;
+            LOGGER.info("Startup timing: first readdir answered "+(System.currentTimeMillis()-initStarted)+"ms after init()");
+        }
+        return files;
     }
 
     /**
@@ -97,17 +117,34 @@ public class App {
     }
 
     /**
-     * Creates path directories on local drive, copies remote file to the local path
+     * Creates path directories on local drive, starts copying remote file to the local path
      * thus the file can be opened by the system normally.
-     * Will probably need a better solution for large files.
+     * Returns once the copy has started, fuse_read() waits for the bytes it needs.
+     * FUSE only calls fuse_read() for files opened with 0.
      *
      * @param path describes where the file is.
-     * @return int 0 for everything being fine. -1 when there's an error.
+     * @return int 0 when the file is still arriving or only partly cached,
+     *         17 when the whole file is cached already. -1 when there's an error.
      */
     public static int fuse_open(String path) {
         return cache.open(path);
     }
 
+    /**
+     * Called by FUSE before a read is served from the cached copy, for
+     * files fuse_open() said were still arriving or partly cached.
+     * Makes sure the bytes being read have arrived, fetching them
+     * if the file is only partially cached.
+     *
+     * @param path describes where the file is.
+     * @param offset first byte to be read.
+     * @param size number of bytes to be read.
+     * @return int 0 when the bytes can be read from the cached copy. Linux error code otherwise.
+     */
+    public static int fuse_read(String path, long offset, long size) {
+        return cache.read(path,offset,size);
+    }
+
     /**
      * Updates the tree with the new file.
      *
@@ -176,6 +213,9 @@ public class App {
     /**
      * Called by FUSE when write call is made.
      * Updates file metadata in tree to inform of changes to be written back.
+     * For files still arriving or partly cached, FUSE calls fuse_read() for
+     * the bytes being written first, so blocks which haven't arrived yet
+     * don't overwrite the write when they do.
      *
      * @param path describes where the file is.
      * @return int 0 for everything being fine.
@@ -184,6 +224,18 @@ public class App {
         return cache.write(path);
     }
 
+    /**
+     * Called by FUSE before a file is truncated.
+     * Makes sure bytes still arriving don't land past the new end.
+     *
+     * @param path describes where the file is.
+     * @param newsize size the file is being truncated to.
+     * @return int 0 when the file can be truncated. Linux error code otherwise.
+     */
+    public static int fuse_truncate(String path, long newsize) {
+        return cache.truncate(path,newsize);
+    }
+
     /**
      * Called by FUSE when access call is made.
      * Checks whether the access denoted by the mask is permitted,
@@ -1,22 +1,45 @@
 package gridfuse.prototype;
 
 
-//TODO: Add some comments to this class
+/**
+ * Metadata of one file, as FUSE's getattr and readdir want it.
+ *
+ * There is one of these for every file in the cached directory tree,
+ * so it is kept small. Size, mtime and mode are held as numbers, type
+ * as a byte, and owner and group as ids into a shared GridFuseNamePool.
+ * The name is the same String the tree node holds.
+ * The String accessors bbfs calls through JNI are still here, and
+ * build their Strings when they're asked for.
+ *
+ * The String accessors go through the numeric ones, so a subclass which
+ * keeps the metadata somewhere else only needs to override those.
+ */
 public class FileStat {
     public static final int CACHE_BEHIND = -1;
     public static final int CACHE_SYNCED = 0;
     public static final int CACHE_AHEAD = 1;
 
+    //Types there are at most a few of, with the ones every tree has first
+    private static final GridFuseNamePool TYPES = new GridFuseNamePool(128, "file", "dir", "cdir", "pdir", "", "unknown");
+    //Users and groups, in one pool as they often share names
+    private static final GridFuseNamePool OWNERS = new GridFuseNamePool(Integer.MAX_VALUE, "root");
+    private static final byte TYPE_FILE = 0;
+    private static final byte TYPE_EMPTY = 4;
+    private static final int ROOT = 0;
+    //Size and mode which weren't given
+    private static final long NO_SIZE = -1L;
+    private static final int NO_MODE = -1;
+
     private String filename = "";
-    private String type = "";
-    private String permissions = "";
-    private String owner = "root";
-    private String group = "root";
-    private String size = "";
+    private long size = NO_SIZE;
     private long mtime = 0L;
-    private long nlink = 1L;
+    private int mode = NO_MODE;
+    private int owner = ROOT;
+    private int group = ROOT;
+    private int nlink = 1;
     private int errorcode = 0;
-    private int cacheStatus = CACHE_BEHIND;
+    private byte type = TYPE_EMPTY;
+    private byte cacheStatus = CACHE_BEHIND;
 
     /**
      * Use this constructor for reporting errors
@@ -30,39 +53,34 @@ public class FileStat {
     }
     public FileStat(String newfilename, String newtype, String newpermissions) {
         this.filename = newfilename;
-        this.type = newtype;
-        this.permissions = newpermissions;
+        setType(newtype);
+        this.mode = parseMode(newpermissions);
     }
     public FileStat(String newfilename, String newtype, String newpermissions, String newsize, long newmtime) {
-        this.filename = newfilename;
-        this.type = newtype;
-        this.permissions = newpermissions;
-        this.size = newsize;
+        this(newfilename, newtype, newpermissions);
+        setSize(newsize);
         this.mtime = newmtime;
     }
     public FileStat(String newfilename, String newtype, String newpermissions, String newsize, long newmtime, String newowner, String newgroup, int newcacheStatus) {
-        this.filename = newfilename;
-        this.type = newtype;
-        this.permissions = newpermissions;
-        this.size = newsize;
-        this.mtime = newmtime;
-        this.owner = newowner;
-        this.group = newgroup;
-        this.cacheStatus = newcacheStatus;
-        if (!this.type.equals("file") ) {
+        this(newfilename, newtype, newpermissions, newsize, newmtime);
+        //Left as root when the server doesn't say
+        this.owner = (newowner == null) ? ROOT : OWNERS.idOf(newowner);
+        this.group = (newgroup == null) ? ROOT : OWNERS.idOf(newgroup);
+        this.cacheStatus = (byte) newcacheStatus;
+        if (this.type != TYPE_FILE) {
             this.nlink = 2;
         }
     }
     public FileStat(FileStat original) {
         this.filename = original.getFilename();
-        this.type = original.getType();
-        this.permissions = original.getPermissions();
-        this.size = original.getSize();
+        this.type = (byte) original.typeId();
+        this.mode = original.getMode();
+        this.size = original.getSizeBytes();
         this.mtime = original.getMTime();
-        this.owner = original.getOwner();
-        this.group = original.getGroup();
-        this.cacheStatus = original.getCacheStatus();
-        this.nlink = original.getNLink();
+        this.owner = original.ownerId();
+        this.group = original.groupId();
+        this.cacheStatus = (byte) original.getCacheStatus();
+        this.nlink = (int) original.getNLink();
     }
     public String getFilename() {
         return filename;
@@ -72,26 +90,58 @@ public class FileStat {
         return;
     }
     public String getType() {
-        return type;
+        return TYPES.nameOf(typeId());
     }
     public void setType(String newtype) {
-        this.type = newtype;
+        this.type = typeIdOf(newtype);
         return;
     }
+    /**
+     * @return String permission bits in octal, as "0644", or "" if they aren't known.
+     */
     public String getPermissions() {
-        return permissions;
+        int bits = getMode();
+        if (bits == NO_MODE) {
+            return "";
+        }
+        String octal = Integer.toOctalString(bits);
+        return "0000".substring(Math.min(4, octal.length()))+octal;
+    }
+    /**
+     * @return int permission bits, -1 if they aren't known.
+     */
+    public int getMode() {
+        return mode;
     }
     public String getOwner() {
-        return owner;
+        return OWNERS.nameOf(ownerId());
     }
     public String getGroup() {
-        return group;
+        return OWNERS.nameOf(groupId());
     }
+    /**
+     * @return String size in bytes, or "" if it isn't known.
+     */
     public String getSize() {
+        long bytes = getSizeBytes();
+        return (bytes == NO_SIZE) ? "" : Long.toString(bytes);
+    }
+    /**
+     * @return long size in bytes, -1 if it isn't known.
+     */
+    public long getSizeBytes() {
         return size;
     }
     public void setSize(String newsize) {
-        this.size = newsize;
+        try {
+            setSize(Long.parseLong(newsize));
+        } catch (NumberFormatException nfE) {
+            setSize(NO_SIZE);
+        }
+        return;
+    }
+    public void setSize(long newsize) {
+        this.size = Math.max(NO_SIZE, newsize);
         return;
     }
     public long getMTime() {
@@ -105,7 +155,7 @@ public class FileStat {
         return nlink;
     }
     public void setNLink(long newnlink) {
-        this.nlink = newnlink;
+        this.nlink = (int) Math.min(Integer.MAX_VALUE, newnlink);
         return;
     }
     public void incrementNLink() {
@@ -126,11 +176,62 @@ public class FileStat {
         return cacheStatus;
     }
     public void setCacheStatus(int newcacheStatus) {
-        this.cacheStatus = newcacheStatus;
+        this.cacheStatus = (byte) newcacheStatus;
         return;
     }
     @Override
     public String toString() {
         return getFilename();
     }
+
+    /**
+     * @return int id of the type in the type pool.
+     */
+    int typeId() {
+        return type;
+    }
+    /**
+     * @return int id of the owner in the owner pool.
+     */
+    int ownerId() {
+        return owner;
+    }
+    /**
+     * @return int id of the group in the owner pool.
+     */
+    int groupId() {
+        return group;
+    }
+
+    /**
+     * @param newtype a type, as MLSx gives it.
+     * @return byte the type's id in the type pool.
+     */
+    static byte typeIdOf(String newtype) {
+        //Links carry their target after a colon, which would fill the pool
+        if (newtype != null && newtype.indexOf(':') >= 0) {
+            newtype = newtype.substring(0, newtype.indexOf(':'));
+        }
+        return (byte) Math.max(0, TYPES.idOf(newtype == null ? "" : newtype));
+    }
+
+    /**
+     * @param id a type's id in the type pool.
+     * @return String the type.
+     */
+    static String typeName(int id) {
+        return TYPES.nameOf(id);
+    }
+
+    /**
+     * @param permissions permission bits in octal, as "0644".
+     * @return int the bits, -1 if they can't be read.
+     */
+    private static int parseMode(String permissions) {
+        try {
+            return Integer.parseInt(permissions, 8) & 07777;
+        } catch (NumberFormatException nfE) {
+            return NO_MODE;
+        }
+    }
 }
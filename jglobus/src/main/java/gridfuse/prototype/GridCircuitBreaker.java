@@ -0,0 +1,102 @@
+package gridfuse.prototype;
+
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/**
+ * Tracks whether a remote host is reachable, so calls to a host
+ * which is down can fail straight away instead of waiting on
+ * connections which will never come.
+ *
+ * CLOSED: host is fine, everything is allowed through.
+ * OPEN: host has failed repeatedly, nothing is allowed through
+ *       until circuitOpenTime has passed.
+ * HALF_OPEN: one attempt is allowed through to see if the host
+ *            is back. Success closes the circuit, failure opens it again.
+ *
+ * One of these is shared by every pool connecting to the same host.
+ */
+public class GridCircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    final String remoteHost;
+    //Consecutive failures before the circuit opens
+    final int FAILURE_THRESHOLD;
+    //How long the circuit stays open before trying again (ms)
+    final long OPEN_TIME;
+    private int state = STATE_CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0L;
+
+    /**
+     * @param host, server hostname, for logging.
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       circuitFailureThreshold and circuitOpenTime.
+     */
+    public GridCircuitBreaker(String host, HashMap<String,String> GridFuseProps) {
+        remoteHost = host;
+        FAILURE_THRESHOLD = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "circuitFailureThreshold", 3));
+        OPEN_TIME = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "circuitOpenTime", 30);
+    }
+
+    /**
+     * Asks whether a new attempt to reach the host should be made.
+     * Once the circuit has been open for long enough, a single caller
+     * is let through to probe the host.
+     *
+     * @return boolean, true if the caller may try to contact the host.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == STATE_CLOSED) {
+            return true;
+        }
+        if (state == STATE_OPEN && System.currentTimeMillis() - openedAt >= OPEN_TIME) {
+            LOGGER.info("Checking whether "+remoteHost+" is back up");
+            state = STATE_HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return boolean, true while the host is considered down.
+     */
+    public synchronized boolean isHostDown() {
+        return state != STATE_CLOSED;
+    }
+
+    /**
+     * @return int the current state, one of STATE_CLOSED, STATE_OPEN or STATE_HALF_OPEN.
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * Records a successful interaction with the host, closing the circuit.
+     */
+    public synchronized void recordSuccess() {
+        if (state != STATE_CLOSED) {
+            LOGGER.info(remoteHost+" is reachable again");
+        }
+        state = STATE_CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Records a failed interaction with the host. Opens the circuit
+     * after too many failures in a row, or if the probe failed.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == STATE_HALF_OPEN || (state == STATE_CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            LOGGER.severe("Marking "+remoteHost+" as down for "+OPEN_TIME/1000+"s after "
+                          +consecutiveFailures+" failures");
+            state = STATE_OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
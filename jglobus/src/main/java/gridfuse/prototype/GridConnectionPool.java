@@ -8,89 +8,263 @@ import org.globus.ftp.exception.ClientException;
 import org.globus.ftp.exception.ServerException;
 import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Iterator;
 
 /**
  * Class contains functionality for generating and managing a pool
  * of GridFTP connections.
+ *
+ * Connections are reused between operations. They are checked when
+ * borrowed, dropped when they have sat idle for too long and replaced
+ * in the background when an operation reports them as broken.
+ *
+ * The pool is elastic: it keeps at least minPoolSize connections open,
+ * grows towards maxPoolSize when borrowers queue up or wait too long,
+ * and shrinks back down once the extra connections go unused.
+ *
+ * Nothing is connected until start() is called, which makes the first
+ * connection in the background so several pools can warm up at once.
+ *
+ * Connection failures are reported to a GridCircuitBreaker shared by all
+ * pools for the same host. While the host is marked down, no new
+ * connections are attempted and borrowers with nothing to take fail fast.
+ *
+ * Idle connections are kept alive individually: each one is put on a
+ * GridKeepAliveWheel and only gets a NOOP once it has been quiet for
+ * noopFrequency seconds. It is taken out of the pool while the NOOP runs.
+ *
+ * The credential comes from a GridCredentialManager. When it swaps in a
+ * renewed credential, connections made with the old one are reconnected
+ * one at a time, credentialRolloverInterval seconds apart, so they don't
+ * all fail or reconnect together when the old one runs out.
  */
 public class GridConnectionPool {
     private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
-    private BlockingQueue<GridFTPClient> availableConnections;
-    GSSCredential cred;
+    //Borrower priorities
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+    //How long borrowers wait for a connection unless they say otherwise (ms)
+    public static final long DEFAULT_BORROW_TIMEOUT = 120000L;
+    //Most recently used at the head, so surplus connections gather at the tail and idle out
+    private BlockingDeque<GridPooledConnection> availableConnections;
+    //Connections currently lent out, so we can find their bookkeeping on return
+    private ConcurrentHashMap<GridFTPClient,GridPooledConnection> borrowedConnections;
+    //Number of open connections, including borrowed ones and ones still being created
+    private AtomicInteger totalConnections;
+    //Number of connections still being created
+    private AtomicInteger pendingConnections;
+    //Number of callers currently waiting in getConnectionFromPool
+    private AtomicInteger waitingBorrowers;
+    //Number of interactive callers currently waiting in getConnectionFromPool
+    private AtomicInteger interactiveWaiters;
+    //Number of connections lent out to background borrowers
+    private AtomicInteger backgroundBorrowed;
+    //Background borrowers wait on this rather than on the pool
+    private final Object laneLock = new Object();
+    //Moving average of how long borrowers wait for a connection (ms)
+    private volatile double averageBorrowWait = 0;
+    //Creates new connections, several at once when there's a burst of demand
+    private ExecutorService growExec;
+    //Periodically closes connections which aren't needed any more
+    private ScheduledExecutorService idleReaper;
+    private volatile boolean closed = false;
+    //How long the first connection took to make (ms), -1 until it exists
+    private volatile long firstConnectionTime = -1;
+    //Set while connections made with an old credential are being replaced
+    private final AtomicBoolean rollingOver = new AtomicBoolean(false);
+    final GridCredentialManager credentials;
+    final GridCircuitBreaker breaker;
+    final GridKeepAliveWheel keepAliveWheel;
     final String remoteHost;
     final int remotePort;
     final String remoteMode;
+    final int MIN_POOL_SIZE;
     final int MAX_POOL_SIZE;
-    final String conf_dir;
+    //Connections idle for longer than this are checked with a NOOP before use (ms)
+    final long VALIDATION_INTERVAL;
+    //Connections quiet for this long are sent a NOOP so the server doesn't drop them (ms)
+    final long KEEPALIVE_INTERVAL;
+    //Connections idle for longer than this are closed (ms)
+    final long MAX_IDLE_TIME;
+    //Connections above the minimum idle for longer than this are closed (ms)
+    final long SHRINK_IDLE_TIME;
+    //Borrowers waiting longer than this ask for an extra connection (ms)
+    final long GROW_WAIT_THRESHOLD;
+    //Most connections background borrowers may hold at once
+    final int BACKGROUND_LIMIT;
+    //Gap between reconnecting each connection after a credential renewal (ms)
+    final long ROLLOVER_INTERVAL;
 
     /**
      * @param host, server hostname.
      * @param port, server port.
-     * @param maxPoolSize, total number of connections to keep in the pool.
      * @param mode, whether the pool should contain ASCII or Binary connections.
-     *
-     * @throws IOException when credentials are not found.
+     * @param credentials, supplies the credential used to authenticate connections.
+     * @param breaker, circuit breaker shared by all pools for this host.
+     * @param keepAliveWheel, timer wheel used to schedule keepalives.
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       minPoolSize, maxPoolSize, poolGrowWaitThreshold,
+     *                       poolShrinkIdleTime, connectionValidationInterval,
+     *                       connectionIdleTimeout, interactiveReservedConnections,
+     *                       noopFrequency and credentialRolloverInterval.
      */
-    public GridConnectionPool(String host, int port, int maxPoolSize, String mode, String grid_fuse_conf) throws IOException {
+    public GridConnectionPool(String host, int port, String mode, GridCredentialManager credentials, GridCircuitBreaker breaker,
+                              GridKeepAliveWheel keepAliveWheel, HashMap<String,String> GridFuseProps) {
         if (!mode.equals("ASCII") && !mode.equals("Binary")) {
             throw new IllegalArgumentException("Server mode is neither ASCII nor Binary");
         }
         remoteHost = host;
         remotePort = port;
         remoteMode = mode;
-        MAX_POOL_SIZE = maxPoolSize;
-        conf_dir = grid_fuse_conf;
-        availableConnections = new ArrayBlockingQueue<GridFTPClient>(MAX_POOL_SIZE);
-        initialiseConnectionPool();
+        this.credentials = credentials;
+        this.breaker = breaker;
+        this.keepAliveWheel = keepAliveWheel;
+        MAX_POOL_SIZE = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "maxPoolSize", 5));
+        MIN_POOL_SIZE = Math.min(MAX_POOL_SIZE, Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "minPoolSize", 1)));
+        VALIDATION_INTERVAL = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "connectionValidationInterval", 60);
+        KEEPALIVE_INTERVAL = 1000L * Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "noopFrequency", 540));
+        MAX_IDLE_TIME = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "connectionIdleTimeout", 3600);
+        SHRINK_IDLE_TIME = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "poolShrinkIdleTime", 120);
+        GROW_WAIT_THRESHOLD = GridFuseProperties.getIntProperty(GridFuseProps, "poolGrowWaitThreshold", 250);
+        int reserved = GridFuseProperties.getIntProperty(GridFuseProps, "interactiveReservedConnections", 1);
+        BACKGROUND_LIMIT = Math.max(1, MAX_POOL_SIZE - reserved);
+        ROLLOVER_INTERVAL = 1000L * Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "credentialRolloverInterval", 5));
+        availableConnections = new LinkedBlockingDeque<GridPooledConnection>(MAX_POOL_SIZE);
+        borrowedConnections = new ConcurrentHashMap<GridFTPClient,GridPooledConnection>();
+        totalConnections = new AtomicInteger(0);
+        pendingConnections = new AtomicInteger(0);
+        waitingBorrowers = new AtomicInteger(0);
+        interactiveWaiters = new AtomicInteger(0);
+        backgroundBorrowed = new AtomicInteger(0);
+        //Never more creations in flight than the pool can hold, so the handoff queue is enough
+        growExec = new ThreadPoolExecutor(0, MAX_POOL_SIZE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        idleReaper = Executors.newSingleThreadScheduledExecutor();
     }
 
     /**
-     * Creates a connection in the pool and then starts a thread to create
-     * the remainder, upto max pool size.
+     * Starts the pool. Creates the first connection in the background,
+     * then fills the rest of the pool up to the minimum size in parallel.
+     *
+     * If the first connection fails the pool is still usable, borrowers
+     * will try to grow it again when they need a connection.
      *
-     * @throws IOException when credentials are not found.
+     * @return CompletableFuture which completes once the first connection
+     *         is in the pool, or exceptionally if it couldn't be made.
      */
-    private void initialiseConnectionPool() throws IOException {
-        try {
-            cred = new GridFuseCredHelper().getCredentialFrom(conf_dir);
-        } catch (GSSException gssE) { throw new IOException("Was a GSSException. Change this.", gssE); }
-        //Create a connection in the main thread, so there will definitely
-        //be one when the first call comes in.
-        if (!createNewConnectionForPool()) {
-            LOGGER.severe("Failed to create first connection for pool");
-            throw new IOException("Failed to connect to remote store");
-        }
-        //Then start a new thread to fill in the rest of the pool.
-        ExecutorService exec = Executors.newSingleThreadExecutor();
-        exec.submit(() -> {
-            boolean spaceInPool = true;
-            while(spaceInPool) {
-                spaceInPool = createNewConnectionForPool();
+    public CompletableFuture<Void> start() {
+        //Check for surplus connections as often as we'd validate them.
+        long reapInterval = Math.max(1000L, Math.min(VALIDATION_INTERVAL, SHRINK_IDLE_TIME));
+        idleReaper.scheduleWithFixedDelay(() -> closeIdleConnections(),
+                reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+        credentials.addCredentialListener(() -> startRollover());
+        long started = System.currentTimeMillis();
+        totalConnections.incrementAndGet();
+        return CompletableFuture.runAsync(() -> {
+            if (!createNewConnectionForPool()) {
+                LOGGER.severe("Failed to create first connection for "+this);
+                throw new CompletionException(new IOException("Failed to connect to "+remoteHost));
+            }
+            firstConnectionTime = System.currentTimeMillis() - started;
+            LOGGER.fine("First connection for "+this+" took "+firstConnectionTime+"ms");
+            //Then fill in the rest of the minimum.
+            growPool(MIN_POOL_SIZE - 1);
+        }, growExec);
+    }
+
+    /**
+     * @return boolean, true while the host this pool connects to is marked down.
+     */
+    public boolean isHostDown() {
+        return breaker.isHostDown();
+    }
+
+    /**
+     * @return long how long the first connection took to make in milliseconds,
+     *         or -1 if it hasn't been made yet.
+     */
+    public long getFirstConnectionTime() {
+        return firstConnectionTime;
+    }
+
+    /**
+     * Starts creating up to the requested number of connections in parallel,
+     * without taking the pool past its maximum size.
+     *
+     * @param wanted number of extra connections required.
+     * @return int number of connections actually started.
+     */
+    private int growPool(int wanted) {
+        int started = 0;
+        while (started < wanted && !closed) {
+            int total = totalConnections.get();
+            if (total >= MAX_POOL_SIZE) {
+                break;
+            }
+            //Reserve a slot first so concurrent growth can't overshoot the pool size
+            if (!totalConnections.compareAndSet(total, total+1)) {
+                continue;
             }
-        });
-        exec.shutdown();
+            pendingConnections.incrementAndGet();
+            try {
+                growExec.execute(() -> {
+                    try {
+                        createNewConnectionForPool();
+                    } finally {
+                        pendingConnections.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException reE) {
+                pendingConnections.decrementAndGet();
+                totalConnections.decrementAndGet();
+                break;
+            }
+            started++;
+        }
+        if (started > 0) {
+            LOGGER.fine("Growing "+remoteMode+" pool for "+remoteHost+" by "+started+" to "+totalConnections.get());
+        }
+        return started;
     }
 
     /**
      * Creates a single connection and adds it to the connection pool.
-     * Provided the pool is not already full.
+     * The caller must already have reserved a slot in totalConnections,
+     * which is given back if the connection can't be made.
      *
      * @return boolean, true when new connection created and added to pool,
-     *                  false when pool is full
+     *                  false otherwise
      */
     private boolean createNewConnectionForPool() {
+        //Don't keep knocking on a host that's down
+        if (!breaker.allowRequest()) {
+            totalConnections.decrementAndGet();
+            return false;
+        }
         GridFTPClient conn = null;
         boolean connectionAdded = false;
+        //Generation first, so a swap in between leaves the connection looking stale, not fresh
+        int generation = credentials.getGeneration();
+        GSSCredential cred = credentials.getCredential();
         try {
             LOGGER.info("Remaining credential lifetime: " + cred.getRemainingLifetime()/60 + "mins");
         } catch (GSSException gssE) {
@@ -100,12 +274,12 @@ public class GridConnectionPool {
             conn = new GridFTPClient(remoteHost, remotePort);
             conn.authenticate(cred);
             //ASCII for sending requests like mlsd, delete, rename, etc...
-            if (remoteMode == "ASCII") {
+            if (remoteMode.equals("ASCII")) {
                 conn.setType(GridFTPSession.TYPE_ASCII);
                 conn.setMode(GridFTPSession.MODE_STREAM);
             }
             //Binary for transfering files
-            else if (remoteMode == "Binary") {
+            else if (remoteMode.equals("Binary")) {
                 conn.setType(GridFTPSession.TYPE_IMAGE);
                 conn.setMode(GridFTPSession.MODE_EBLOCK);
             }
@@ -114,64 +288,366 @@ public class GridConnectionPool {
             }
             //Tell GridFTP to add encryption
             conn.setDataChannelProtection(GridFTPSession.PROTECTION_PRIVATE);
+            breaker.recordSuccess();
             //Try to add this connection to the pool
-            connectionAdded = availableConnections.offer(conn);
+            GridPooledConnection pooled = new GridPooledConnection(conn, generation);
+            connectionAdded = !closed && availableConnections.offerFirst(pooled);
             if (connectionAdded) {
                 LOGGER.finest("Connection added to pool");
+                scheduleKeepAlive(pooled, KEEPALIVE_INTERVAL);
+                wakeBackgroundBorrowers();
             } else {
                 LOGGER.finest("Warning connection not added to pool");
             }
         } catch (ServerException sE) {
             LOGGER.log(Level.SEVERE, "ServerException in createNewConnectionForPool()", sE);
+            breaker.recordFailure();
         } catch (IOException ioE) {
             LOGGER.log(Level.SEVERE, "IOException in createNewConnectionForPool()", ioE);
+            breaker.recordFailure();
+        } catch (RuntimeException rE) {
+            //Still a failed attempt, or a half open breaker would wait forever for its probe
+            LOGGER.log(Level.SEVERE, "Unexpected exception in createNewConnectionForPool()", rE);
+            breaker.recordFailure();
         } finally {
-            return connectionAdded;
+            if (!connectionAdded) {
+                totalConnections.decrementAndGet();
+                if (conn != null) {
+                    closeQuietly(conn);
+                }
+            }
         }
+        return connectionAdded;
     }
 
     /**
-     * Removes a connection from the pool and returns it.
+     * Removes a connection from the pool and returns it, for an
+     * interactive caller.
      * If the pool is empty, this will wait for 120 seconds
      * for a connection to appear.
      *
      * @return GridFTPClient connection
      */
     public GridFTPClient getConnectionFromPool() {
-        GridFTPClient conn = null;
+        return getConnectionFromPool(PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Removes a connection from the pool and returns it.
+     * If the pool is empty, this will wait for 120 seconds
+     * for a connection to appear.
+     *
+     * @param priority PRIORITY_INTERACTIVE for calls a user is waiting on,
+     *                 PRIORITY_BACKGROUND for syncing and other housekeeping.
+     * @return GridFTPClient connection
+     */
+    public GridFTPClient getConnectionFromPool(int priority) {
+        return getConnectionFromPool(priority, DEFAULT_BORROW_TIMEOUT);
+    }
+
+    /**
+     * Removes a connection from the pool and returns it.
+     * If the pool is empty, this will wait for up to timeout
+     * milliseconds for a connection to appear, or return null
+     * straight away if the host is marked down.
+     *
+     * Interactive borrowers always go first. Background borrowers stand
+     * aside while any interactive borrower is waiting, and can never hold
+     * the last interactiveReservedConnections connections of the pool.
+     *
+     * While waiting, the pool grows by one connection for every waiting
+     * borrower not already covered by a connection being created, and by
+     * one more each time a borrower has waited past poolGrowWaitThreshold.
+     *
+     * Connections which have been idle for too long are dropped,
+     * and ones which fail their checks are replaced in the background.
+     *
+     * @param priority PRIORITY_INTERACTIVE for calls a user is waiting on,
+     *                 PRIORITY_BACKGROUND for syncing and other housekeeping.
+     * @param timeout longest time to wait for a connection, in milliseconds.
+     * @return GridFTPClient connection, or null if none could be had in time.
+     */
+    public GridFTPClient getConnectionFromPool(int priority, long timeout) {
+        boolean background = (priority == PRIORITY_BACKGROUND);
         LOGGER.fine("available connections: " + availableConnections.size());
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        long lastGrowth = start;
+        waitingBorrowers.incrementAndGet();
+        if (!background) {
+            interactiveWaiters.incrementAndGet();
+        }
         try {
-            conn = (GridFTPClient) availableConnections.poll(120,TimeUnit.SECONDS);
-        } catch (InterruptedException iE) {
-            LOGGER.log(Level.SEVERE,"taking connection from pool interrupted",iE);
-            return conn;
+            while (true) {
+                GridPooledConnection pooled = null;
+                if (!background) {
+                    pooled = availableConnections.pollFirst();
+                }
+                else if (reserveBackgroundSlot()) {
+                    pooled = availableConnections.pollFirst();
+                    if (pooled == null) {
+                        backgroundBorrowed.decrementAndGet();
+                    }
+                }
+                if (pooled == null) {
+                    if (breaker.isHostDown()) {
+                        //Give the breaker a chance to probe the host, but don't wait for it
+                        if (pendingConnections.get() == 0) {
+                            growPool(1);
+                        }
+                        LOGGER.fine(remoteHost+" is marked down, not waiting for a connection");
+                        return null;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        LOGGER.severe("\nUnable to acquire connection, returning null\n");
+                        return null;
+                    }
+                    //Queue depth: one connection per waiter that nothing is being made for yet
+                    int wanted = waitingBorrowers.get() - pendingConnections.get() - availableConnections.size();
+                    //Wait time: creations in progress aren't keeping up, ask for one more
+                    if (now - lastGrowth >= GROW_WAIT_THRESHOLD) {
+                        wanted = Math.max(wanted, 1);
+                        lastGrowth = now;
+                    }
+                    if (wanted > 0) {
+                        growPool(wanted);
+                    }
+                    long waitTime = Math.min(GROW_WAIT_THRESHOLD, deadline - now);
+                    try {
+                        if (background) {
+                            //Don't queue on the pool itself, so returned connections go to interactive callers
+                            synchronized (laneLock) {
+                                laneLock.wait(waitTime);
+                            }
+                            continue;
+                        }
+                        pooled = availableConnections.pollFirst(waitTime, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException iE) {
+                        LOGGER.log(Level.SEVERE,"taking connection from pool interrupted",iE);
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    if (pooled == null) {
+                        continue;
+                    }
+                }
+                boolean expired = pooled.idleMillis() > MAX_IDLE_TIME;
+                if (expired || !prepareConnection(pooled)) {
+                    if (expired) {
+                        LOGGER.fine("Dropping connection idle for "+pooled.idleMillis()/1000+"s");
+                    }
+                    if (background) {
+                        backgroundBorrowed.decrementAndGet();
+                    }
+                    //Only replace it if it was broken, expired ones come back on demand
+                    discardConnection(pooled, !expired);
+                    continue;
+                }
+                pooled.priority = priority;
+                borrowedConnections.put(pooled.client, pooled);
+                return pooled.client;
+            }
+        } finally {
+            waitingBorrowers.decrementAndGet();
+            if (!background) {
+                interactiveWaiters.decrementAndGet();
+            }
+            recordBorrowWait(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Takes one of the connections background borrowers are allowed to hold,
+     * unless an interactive borrower is waiting or they're all in use.
+     *
+     * @return boolean, true if the caller may take a connection.
+     */
+    private boolean reserveBackgroundSlot() {
+        while (true) {
+            int held = backgroundBorrowed.get();
+            if (interactiveWaiters.get() > 0 || held >= BACKGROUND_LIMIT) {
+                return false;
+            }
+            if (backgroundBorrowed.compareAndSet(held, held+1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Wakes background borrowers waiting for a connection.
+     */
+    private void wakeBackgroundBorrowers() {
+        synchronized (laneLock) {
+            laneLock.notifyAll();
         }
-        if (conn != null) {
-            if (remoteMode == "ASCII") {
+    }
+
+    /**
+     * Updates the moving average of borrow wait times.
+     *
+     * @param waited how long the last borrower waited, in milliseconds.
+     */
+    private void recordBorrowWait(long waited) {
+        averageBorrowWait = 0.8*averageBorrowWait + 0.2*waited;
+        if (waited > GROW_WAIT_THRESHOLD) {
+            LOGGER.fine("Waited "+waited+"ms for a "+remoteMode+" connection to "+remoteHost
+                        +", pool size "+totalConnections.get());
+        }
+    }
+
+    /**
+     * Gets a connection ready to be lent out.
+     * Sends a NOOP if it has been idle long enough that the server
+     * may have dropped it, and resets the data channel state.
+     *
+     * @param pooled the connection to check.
+     * @return boolean, true if the connection is usable.
+     */
+    private boolean prepareConnection(GridPooledConnection pooled) {
+        try {
+            if (pooled.silentMillis() > VALIDATION_INTERVAL) {
+                pooled.client.quote("NOOP");
+            }
+            if (remoteMode.equals("ASCII")) {
                 //GridFTP requires us to set these between
                 //each operation in ASCII mode.
-                try {
-                    conn.setPassive();
-                    conn.setLocalActive();
-                } catch (IOException|ClientException|ServerException e) {
-                    LOGGER.log(Level.SEVERE, "Cannot set connection to Passive/LocalActive", e);
-                    return null;
-                }
+                pooled.client.setPassive();
+                pooled.client.setLocalActive();
             }
+        } catch (IOException|ClientException|ServerException e) {
+            //A dead idle connection says nothing about the host, a new connection
+            //attempt is what counts against the breaker
+            LOGGER.log(Level.WARNING, "Pooled connection failed its check, replacing it", e);
+            return false;
         }
-        else {
-            LOGGER.severe("\nUnable to acquire connection, returning null\n");
-        }
-        return conn;
+        return true;
     }
 
     /**
-     * Takes given connection and closes it,
-     * replaces it with a new connection in the pool.
+     * Puts the given connection back in the pool so it can be reused.
      *
      * @param conn The connection to be returned.
      */
     public void returnConnectionToPool(GridFTPClient conn) {
+        returnConnectionToPool(conn, false);
+    }
+
+    /**
+     * Puts the given connection back in the pool so it can be reused,
+     * unless the operation using it found it to be broken, in which case
+     * it is closed and replaced in the background.
+     *
+     * @param conn The connection to be returned.
+     * @param broken true if an error left the connection unusable.
+     */
+    public void returnConnectionToPool(GridFTPClient conn, boolean broken) {
+        returnConnectionToPool(conn, broken, !broken);
+    }
+
+    /**
+     * Puts the given connection back in the pool so it can be reused,
+     * or closes and replaces it in the background if it can't be.
+     * A connection the server is fine with, but which was left part way
+     * through something, such as a failed transfer whose replies haven't
+     * all been read, isn't reusable without being broken.
+     *
+     * @param conn The connection to be returned.
+     * @param broken true if an error left the connection unusable, counts against the server.
+     * @param reusable false if the connection must be closed, even though it isn't broken.
+     */
+    public void returnConnectionToPool(GridFTPClient conn, boolean broken, boolean reusable) {
+        if (conn == null) {
+            return;
+        }
+        GridPooledConnection pooled = borrowedConnections.remove(conn);
+        if (pooled == null) {
+            LOGGER.warning("Connection returned which didn't come from this pool, closing it.");
+            closeQuietly(conn);
+            return;
+        }
+        if (pooled.priority == PRIORITY_BACKGROUND) {
+            backgroundBorrowed.decrementAndGet();
+        }
+        if (broken) {
+            breaker.recordFailure();
+        }
+        else {
+            breaker.recordSuccess();
+        }
+        if (broken || !reusable || closed) {
+            discardConnection(pooled, !closed);
+        }
+        else {
+            pooled.touch();
+            if (!availableConnections.offerFirst(pooled)) {
+                discardConnection(pooled, false);
+            }
+        }
+        wakeBackgroundBorrowers();
+    }
+
+    /**
+     * Closes a connection and forgets about it.
+     *
+     * @param pooled the connection to drop.
+     * @param replace true to create a replacement in the background,
+     *                if the pool is below its minimum or has borrowers waiting.
+     */
+    private void discardConnection(GridPooledConnection pooled, boolean replace) {
+        pooled.discarded = true;
+        closeQuietly(pooled.client);
+        totalConnections.decrementAndGet();
+        if (replace) {
+            int wanted = Math.max(MIN_POOL_SIZE - totalConnections.get(),
+                                  waitingBorrowers.get() - pendingConnections.get());
+            growPool(Math.max(wanted, 0));
+        }
+    }
+
+    /**
+     * Closes connections which aren't needed any more.
+     *
+     * Any connection idle for longer than the idle timeout is closed.
+     * Connections above the minimum pool size are also closed once they've
+     * been idle for poolShrinkIdleTime, unless borrowers have recently had
+     * to wait. The pool is then topped back up to its minimum.
+     */
+    private void closeIdleConnections() {
+        boolean contended = averageBorrowWait > GROW_WAIT_THRESHOLD;
+        //Least recently used connections are at the tail
+        Iterator<GridPooledConnection> connIter = availableConnections.descendingIterator();
+        while(connIter.hasNext()) {
+            GridPooledConnection pooled = connIter.next();
+            long idle = pooled.idleMillis();
+            boolean expired = idle > MAX_IDLE_TIME;
+            boolean surplus = !contended && idle > SHRINK_IDLE_TIME && totalConnections.get() > MIN_POOL_SIZE;
+            //Only close it if nobody has borrowed it in the meantime
+            if ((expired || surplus) && availableConnections.remove(pooled)) {
+                LOGGER.fine("Closing connection idle for "+idle/1000+"s");
+                discardConnection(pooled, false);
+            }
+        }
+        int shortfall = MIN_POOL_SIZE - totalConnections.get();
+        if (shortfall > 0) {
+            growPool(shortfall);
+        }
+        //Let the average decay when nobody is borrowing
+        averageBorrowWait = 0.8*averageBorrowWait;
+    }
+
+    @Override
+    public String toString() {
+        return remoteMode+" pool for "+remoteHost+":"+remotePort;
+    }
+
+    /**
+     * Closes a connection, ignoring any errors.
+     *
+     * @param conn the connection to close.
+     */
+    private void closeQuietly(GridFTPClient conn) {
         try {
             conn.close();
         } catch (IOException ioE) {
@@ -179,21 +655,158 @@ public class GridConnectionPool {
         } catch (ServerException sE) {
             LOGGER.log(Level.FINEST, "Error closing old connection.", sE);
         }
-        createNewConnectionForPool();
     }
 
     /**
-     * Performs a NOOP request to all connections in the pool.
+     * Puts a connection on the keepalive wheel.
+     *
+     * Each connection has exactly one keepalive waiting for it at a time.
+     *
+     * @param pooled the connection to keep alive.
+     * @param delay how long until it should be looked at, in milliseconds.
      */
-    public void noopAll() {
-        Iterator<GridFTPClient> connIter = availableConnections.iterator();
-        while(connIter.hasNext()) {
-            try {
-                connIter.next().quote("NOOP");
-            } catch (IOException|ServerException E) {
-                LOGGER.log(Level.SEVERE,"Error performing NOOP command",E);
+    private void scheduleKeepAlive(GridPooledConnection pooled, long delay) {
+        keepAliveWheel.schedule(delay, () -> keepAlive(pooled));
+    }
+
+    /**
+     * Called by the keepalive wheel when a connection may be getting
+     * close to the server's idle timeout.
+     *
+     * If the connection has been used since it was scheduled it is just
+     * rescheduled. Otherwise it's taken out of the pool, so nobody can
+     * borrow it mid-NOOP, sent a NOOP and put back.
+     *
+     * @param pooled the connection to keep alive.
+     */
+    private void keepAlive(GridPooledConnection pooled) {
+        if (pooled.discarded || closed) {
+            return;
+        }
+        long quietFor = pooled.silentMillis();
+        if (quietFor < KEEPALIVE_INTERVAL) {
+            //Used since we last looked, come back when it's due
+            scheduleKeepAlive(pooled, KEEPALIVE_INTERVAL - quietFor);
+            return;
+        }
+        if (!availableConnections.remove(pooled)) {
+            //Borrowed right now, so it'll be active anyway
+            scheduleKeepAlive(pooled, KEEPALIVE_INTERVAL);
+            return;
+        }
+        try {
+            pooled.client.quote("NOOP");
+            pooled.keptAlive();
+        } catch (IOException|ServerException E) {
+            //Not counted against the breaker, the replacement's connection attempt is
+            LOGGER.log(Level.WARNING,"Error performing NOOP command, replacing connection",E);
+            discardConnection(pooled, true);
+            return;
+        }
+        //Back at the quiet end of the pool, it hasn't really been used
+        if (closed || !availableConnections.offerLast(pooled)) {
+            discardConnection(pooled, false);
+            return;
+        }
+        wakeBackgroundBorrowers();
+        scheduleKeepAlive(pooled, KEEPALIVE_INTERVAL);
+    }
+
+    /**
+     * Called when a renewed credential is swapped in. Starts replacing
+     * connections made with an old credential, unless that's already happening.
+     * Each pool starts at a random point in the first interval so
+     * they don't all reconnect at the same moment.
+     */
+    private void startRollover() {
+        if (closed || !rollingOver.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(ROLLOVER_INTERVAL);
+        try {
+            idleReaper.schedule(() -> rollOverOne(), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException reE) {
+            rollingOver.set(false);
+        }
+    }
+
+    /**
+     * Replaces the least recently used idle connection made with an old
+     * credential, then comes back after credentialRolloverInterval for
+     * the next. Borrowed connections are picked up once they're returned.
+     *
+     * The replacement takes over the old connection's slot, so the pool
+     * never grows past its maximum while rolling over.
+     */
+    private void rollOverOne() {
+        if (closed) {
+            rollingOver.set(false);
+            return;
+        }
+        int current = credentials.getGeneration();
+        //Don't throw away working connections while the host is unreachable
+        if (!breaker.isHostDown()) {
+            Iterator<GridPooledConnection> connIter = availableConnections.descendingIterator();
+            while (connIter.hasNext()) {
+                GridPooledConnection pooled = connIter.next();
+                if (pooled.credentialGeneration < current && availableConnections.remove(pooled)) {
+                    LOGGER.fine("Reconnecting "+this+" connection with renewed credential");
+                    pooled.discarded = true;
+                    closeQuietly(pooled.client);
+                    //Keeps the slot the old connection had, gives it back on failure
+                    createNewConnectionForPool();
+                    break;
+                }
+            }
+        }
+        if (!hasStaleConnections(current)) {
+            rollingOver.set(false);
+            //A renewal may have come in while we were finishing
+            if (!hasStaleConnections(credentials.getGeneration())) {
+                LOGGER.info("All "+this+" connections use the current credential");
+                return;
+            }
+            if (!rollingOver.compareAndSet(false, true)) {
+                return;
             }
         }
+        try {
+            idleReaper.schedule(() -> rollOverOne(), ROLLOVER_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException reE) {
+            rollingOver.set(false);
+        }
+    }
+
+    /**
+     * @param generation the current credential generation.
+     * @return boolean, true if any connection, idle or borrowed,
+     *                  was made with an older credential.
+     */
+    private boolean hasStaleConnections(int generation) {
+        for (GridPooledConnection pooled : availableConnections) {
+            if (pooled.credentialGeneration < generation) {
+                return true;
+            }
+        }
+        for (GridPooledConnection pooled : borrowedConnections.values()) {
+            if (pooled.credentialGeneration < generation) {
+                return true;
+            }
+        }
+        return false;
     }
-}
 
+    /**
+     * Stops the background threads and closes every idle connection.
+     * Borrowed connections are closed as they are returned.
+     */
+    public void close() {
+        closed = true;
+        growExec.shutdownNow();
+        idleReaper.shutdownNow();
+        GridPooledConnection pooled;
+        while ((pooled = availableConnections.poll()) != null) {
+            discardConnection(pooled, false);
+        }
+    }
+}
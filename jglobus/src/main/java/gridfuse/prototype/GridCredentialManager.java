@@ -0,0 +1,202 @@
+package gridfuse.prototype;
+
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the credential shared by every connection pool.
+ *
+ * The proxy file is checked every credentialCheckInterval seconds.
+ * When it has been replaced with a valid credential, the new one is
+ * swapped in and its generation number goes up, so pools can tell which
+ * of their connections were made with an old credential and reconnect
+ * them gradually.
+ *
+ * When the credential has less than credentialRenewThreshold seconds
+ * left, credentialRenewCommand is run (if set) to renew the proxy
+ * before it runs out.
+ */
+public class GridCredentialManager {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+
+    final File proxyFile;
+    //How often the proxy file is checked (ms)
+    final long CHECK_INTERVAL;
+    //Renewal starts when the credential has less than this left (s)
+    final int RENEW_THRESHOLD;
+    //Shell command which renews the proxy file, may be empty
+    final String RENEW_COMMAND;
+    private volatile GSSCredential credential;
+    //Goes up by one every time a new credential is swapped in
+    private volatile int generation = 0;
+    //Proxy file state when it was last loaded
+    private long loadedModified;
+    private long loadedLength;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Loads the credential and starts watching the proxy file.
+     *
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       GRID_FUSE_CONF, credentialCheckInterval,
+     *                       credentialRenewThreshold and credentialRenewCommand.
+     *
+     * @throws IOException when the proxy file can't be read.
+     * @throws GSSException when the proxy file doesn't hold a valid credential.
+     */
+    public GridCredentialManager(HashMap<String,String> GridFuseProps) throws IOException, GSSException {
+        proxyFile = new File(GridFuseCredHelper.discoverProxyLocation(GridFuseProps.get("GRID_FUSE_CONF")));
+        CHECK_INTERVAL = 1000L * Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "credentialCheckInterval", 60));
+        RENEW_THRESHOLD = GridFuseProperties.getIntProperty(GridFuseProps, "credentialRenewThreshold", 3600);
+        String command = GridFuseProps.get("credentialRenewCommand");
+        RENEW_COMMAND = (command == null) ? "" : command.trim();
+
+        long modified = proxyFile.lastModified();
+        long length = proxyFile.length();
+        credential = new GridFuseCredHelper().getCredential(proxyFile);
+        loadedModified = modified;
+        loadedLength = length;
+        LOGGER.info("Loaded credential from "+proxyFile+", "+credential.getRemainingLifetime()/60+"mins left");
+
+        watcher = Executors.newSingleThreadScheduledExecutor();
+        watcher.scheduleWithFixedDelay(() -> checkCredential(), CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return GSSCredential the current credential.
+     */
+    public GSSCredential getCredential() {
+        return credential;
+    }
+
+    /**
+     * Read this before getCredential(), so a swap in between makes the
+     * connection look older than it is rather than newer.
+     *
+     * @return int generation of the current credential.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param listener, run on the watcher thread every time a new credential is swapped in.
+     */
+    public void addCredentialListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reloads the credential if the proxy file has changed,
+     * and tries to renew it if it is close to running out.
+     */
+    private void checkCredential() {
+        try {
+            reloadIfChanged();
+            int remaining = remainingLifetime(credential);
+            if (remaining < RENEW_THRESHOLD) {
+                if (RENEW_COMMAND.isEmpty()) {
+                    LOGGER.warning("Credential has "+remaining/60+"mins left and no credentialRenewCommand is set,"
+                                   +" renew "+proxyFile+" before it runs out");
+                }
+                else {
+                    LOGGER.info("Credential has "+remaining/60+"mins left, renewing it");
+                    runRenewCommand();
+                    reloadIfChanged();
+                }
+            }
+        } catch (RuntimeException rE) {
+            LOGGER.log(Level.SEVERE, "Error checking credential", rE);
+        }
+    }
+
+    /**
+     * Swaps in the credential from the proxy file if the file has changed
+     * and holds a credential which lasts longer than the current one.
+     * A file which can't be read yet, e.g. because it is still being
+     * written, is tried again next time.
+     */
+    private void reloadIfChanged() {
+        long modified = proxyFile.lastModified();
+        long length = proxyFile.length();
+        if (modified == 0L || (modified == loadedModified && length == loadedLength)) {
+            return;
+        }
+        GSSCredential renewed;
+        try {
+            renewed = new GridFuseCredHelper().getCredential(proxyFile);
+        } catch (IOException|GSSException credE) {
+            LOGGER.log(Level.WARNING, "Proxy file "+proxyFile+" changed but couldn't be loaded, will retry", credE);
+            return;
+        }
+        loadedModified = modified;
+        loadedLength = length;
+        int renewedLifetime = remainingLifetime(renewed);
+        if (renewedLifetime <= remainingLifetime(credential)) {
+            LOGGER.warning("Proxy file "+proxyFile+" changed but doesn't last any longer, ignoring it");
+            return;
+        }
+        credential = renewed;
+        generation++;
+        LOGGER.info("Swapped in renewed credential, "+renewedLifetime/60+"mins left, generation "+generation);
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException rE) {
+                LOGGER.log(Level.SEVERE, "Credential listener failed", rE);
+            }
+        }
+    }
+
+    /**
+     * Runs credentialRenewCommand, waiting up to a minute for it to finish.
+     */
+    private void runRenewCommand() {
+        try {
+            Process renew = new ProcessBuilder("/bin/sh", "-c", RENEW_COMMAND).inheritIO().start();
+            if (!renew.waitFor(60, TimeUnit.SECONDS)) {
+                renew.destroyForcibly();
+                LOGGER.severe("credentialRenewCommand didn't finish within 60s");
+            }
+            else if (renew.exitValue() != 0) {
+                LOGGER.severe("credentialRenewCommand exited with "+renew.exitValue());
+            }
+        } catch (IOException ioE) {
+            LOGGER.log(Level.SEVERE, "Couldn't run credentialRenewCommand", ioE);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param cred the credential to check.
+     * @return int seconds left on the credential, 0 if it has expired or can't be read.
+     */
+    private static int remainingLifetime(GSSCredential cred) {
+        try {
+            return cred.getRemainingLifetime();
+        } catch (GSSException gssE) {
+            LOGGER.log(Level.SEVERE,"Can't get credential lifetime. Credential probably expired.",gssE);
+            return 0;
+        }
+    }
+
+    /**
+     * Stops watching the proxy file.
+     */
+    public void close() {
+        watcher.shutdownNow();
+    }
+}
@@ -0,0 +1,254 @@
+package gridfuse.prototype;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tracks which blocks of a partially cached file have arrived.
+ *
+ * The cached copy is a sparse file of the full size, blocks are
+ * fetched into it as they are read. A block is either present,
+ * being fetched by somebody, or missing.
+ */
+public class GridFuseBlockMap {
+    final long fileSize;
+    final int blockSize;
+    final int blockCount;
+    private final BitSet present;
+    private final BitSet fetching;
+
+    /**
+     * @param fileSize, size of the whole file in bytes.
+     * @param blockSize, size of each block in bytes.
+     */
+    public GridFuseBlockMap(long fileSize, int blockSize) {
+        this(fileSize, blockSize, new BitSet());
+    }
+
+    private GridFuseBlockMap(long fileSize, int blockSize, BitSet present) {
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.blockCount = (int) ((fileSize + blockSize - 1) / blockSize);
+        this.present = present;
+        this.fetching = new BitSet(blockCount);
+    }
+
+    /**
+     * @param offset first byte wanted.
+     * @param length number of bytes wanted.
+     * @return int[] {first block, last block + 1} covering the range, clipped to the file.
+     */
+    private int[] blockRange(long offset, long length) {
+        long end = Math.min(fileSize, offset + length);
+        if (offset >= end) {
+            return new int[] {0, 0};
+        }
+        return new int[] {(int) (offset / blockSize), (int) ((end + blockSize - 1) / blockSize)};
+    }
+
+    /**
+     * Claims the missing blocks in a range, plus up to readAhead blocks
+     * after it, for the caller to fetch. Blocks somebody else is already
+     * fetching aren't claimed.
+     *
+     * @param offset first byte wanted.
+     * @param length number of bytes wanted.
+     * @param readAhead extra blocks to claim after the range, if they're missing.
+     * @return List of {first block, last block + 1} runs the caller must fetch
+     *         and then pass to finish().
+     */
+    public synchronized List<int[]> claim(long offset, long length, int readAhead) {
+        List<int[]> runs = new ArrayList<int[]>();
+        int[] range = blockRange(offset, length);
+        int last = Math.min(blockCount, range[1] + (range[1] > range[0] ? readAhead : 0));
+        int block = range[0];
+        while (block < last) {
+            if (present.get(block) || fetching.get(block)) {
+                block++;
+                continue;
+            }
+            int runStart = block;
+            //Read ahead only extends a run, it never starts one on its own
+            while (block < last && !present.get(block) && !fetching.get(block)
+                   && (block < range[1] || block > runStart)) {
+                block++;
+            }
+            if (block == runStart) {
+                break;
+            }
+            fetching.set(runStart, block);
+            runs.add(new int[] {runStart, block});
+        }
+        return runs;
+    }
+
+    /**
+     * @param run {first block, last block + 1} from claim().
+     * @return long byte offset of the run.
+     */
+    public long runOffset(int[] run) {
+        return (long) run[0] * blockSize;
+    }
+
+    /**
+     * @param run {first block, last block + 1} from claim().
+     * @return long length of the run in bytes, the last block may be short.
+     */
+    public long runLength(int[] run) {
+        return Math.min(fileSize, (long) run[1] * blockSize) - runOffset(run);
+    }
+
+    /**
+     * Records the end of a fetch started with claim() and wakes anyone waiting.
+     *
+     * @param run {first block, last block + 1} from claim().
+     * @param arrived true if the blocks were fetched, false if they're still missing.
+     */
+    public synchronized void finish(int[] run, boolean arrived) {
+        fetching.clear(run[0], run[1]);
+        if (arrived) {
+            present.set(run[0], run[1]);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for blocks other callers are fetching in a range.
+     *
+     * @param offset first byte wanted.
+     * @param length number of bytes wanted.
+     * @param timeout longest time to wait in milliseconds.
+     * @return boolean, true if every block in the range is present.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public synchronized boolean await(long offset, long length, long timeout) throws InterruptedException {
+        int[] range = blockRange(offset, length);
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int missing = present.nextClearBit(range[0]);
+            if (missing >= range[1]) {
+                return true;
+            }
+            long left = deadline - System.currentTimeMillis();
+            //Nobody is fetching it, so waiting won't help
+            if (!fetching.get(missing) || left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+    }
+
+    /**
+     * Waits until nobody is fetching any of the blocks.
+     *
+     * @param timeout longest time to wait in milliseconds.
+     * @return boolean, true if no fetch is left running.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!fetching.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the map of the file once it has been cut down to a new size.
+     * Blocks still in the file keep what they had, the last one is then
+     * only fetched up to the new size.
+     *
+     * @param newSize size the file is being truncated to, less than fileSize.
+     * @return GridFuseBlockMap the map of the truncated file.
+     */
+    public synchronized GridFuseBlockMap truncate(long newSize) {
+        int keep = (int) ((newSize + blockSize - 1) / blockSize);
+        return new GridFuseBlockMap(newSize, blockSize, present.get(0, keep));
+    }
+
+    /**
+     * @return boolean, true once every block has arrived.
+     */
+    public synchronized boolean isComplete() {
+        return present.nextClearBit(0) >= blockCount;
+    }
+
+    /**
+     * @return long bytes present so far.
+     */
+    public synchronized long bytesPresent() {
+        long bytes = (long) present.cardinality() * blockSize;
+        //The last block may be short
+        if (blockCount > 0 && present.get(blockCount - 1)) {
+            bytes -= (long) blockCount * blockSize - fileSize;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the map to a file, so a partially cached file
+     * is still known to be partial after a restart.
+     *
+     * @param stateFile where to write the map.
+     *
+     * @throws IOException when the file can't be written.
+     */
+    public void save(File stateFile) throws IOException {
+        long[] words;
+        synchronized (this) {
+            words = present.toLongArray();
+        }
+        stateFile.getParentFile().mkdirs();
+        File tmp = new File(stateFile.getPath()+".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeLong(fileSize);
+            out.writeInt(blockSize);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Couldn't replace "+stateFile);
+        }
+    }
+
+    /**
+     * Reads a map written by save().
+     *
+     * @param stateFile where the map was written.
+     * @return GridFuseBlockMap the saved map.
+     *
+     * @throws IOException when the file can't be read.
+     */
+    public static GridFuseBlockMap load(File stateFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+        try {
+            long fileSize = in.readLong();
+            int blockSize = in.readInt();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new GridFuseBlockMap(fileSize, blockSize, BitSet.valueOf(words));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -4,6 +4,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +19,8 @@ import java.util.logging.Logger;
  */
 public abstract class GridFuseCache {
     private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //How long open waits for a transfer to start, and reads wait on a stalled transfer (ms)
+    protected static final long TRANSFER_WAIT = 120000L;
 
     //Unparsed config
     protected HashMap<String,String> GridFuseProps;
@@ -32,6 +39,15 @@ public abstract class GridFuseCache {
     //Remote server operations
     GridOps gridOperation;
 
+    //Large files cached a block at a time
+    GridFusePartialCache partialCache;
+
+    //Files being copied in by open(), which can be read up to their watermark
+    ConcurrentHashMap<String,GridTransferProgress> openTransfers;
+    ExecutorService openTransferExec;
+
+    //Fetches files ahead of them being opened, null for policies which don't
+    GridFusePrefetcher prefetcher;
 
     /**
      * Initialises GridFTP settings from config.properties
@@ -47,8 +63,17 @@ public abstract class GridFuseCache {
 
         maxPoolSize         = Integer.parseInt(GridFuseProps.get("maxPoolSize"));
 
-        dirTree = new GridFuseDirTree();
+        //heap: the tree is objects on the heap, mmap: records in memory-mapped files
+        if ("mmap".equalsIgnoreCase(GridFuseProps.get("metadataStore"))) {
+            dirTree = new GridFuseMappedDirTree(GridFuseProps);
+        }
+        else {
+            dirTree = new GridFuseHeapDirTree(GridFuseProps);
+        }
         gridOperation = new GridOpsGridFTP(GridFuseProps,dirTree);
+        partialCache = new GridFusePartialCache(GridFuseProps,gridOperation);
+        openTransfers = new ConcurrentHashMap<String,GridTransferProgress>();
+        openTransferExec = Executors.newCachedThreadPool();
 
         return;
     }
@@ -70,7 +95,11 @@ public abstract class GridFuseCache {
             FileStat file = dirTree.find_file(path);
             return file;
         } catch (ClassCastException e) {
-            //Object returned wasn't a FileStat, it must be a String.
+            //Not in the tree, or only its name is.
+            if (dirTree.isKnownMissing(path)) {
+                //Asked about a moment ago and it wasn't there
+                return null;
+            }
             String fileName = new File(path).getName();
             //When path = "/", fileName is empty, so fix that.
             if (fileName.equals("")) { fileName = "/"; }
@@ -79,10 +108,14 @@ public abstract class GridFuseCache {
             if (files != null) {
                 for (FileStat file : files) {
                     if ( fileName.equals(file.toString()) ) {
+                        if (file.getErrorCode() == -2) {
+                            dirTree.markMissing(path);
+                        }
                         return file;
                     }
                 }
             }
+            dirTree.markMissing(path);
             return null;
         }
     }
@@ -127,36 +160,251 @@ public abstract class GridFuseCache {
     /**
      * Creates path directories on local drive, copies remote file to the local path
      * thus the file can be opened by the system normally.
-     * Will probably need a better solution for large files.
+     * Large files are only set up to be cached a block at a time,
+     * read() then fetches blocks as they're needed.
+     *
+     * Other files are copied in the background, open returns as soon
+     * as the copy has started and read() waits for the bytes it needs.
+     * A copy an earlier attempt got partway through is resumed.
      *
      * @param path describes where the file is.
-     * @return int 0 for everything being fine. Linux error code otherwise.
+     * @return int 0 when reads have to go through read(), because the file
+     *         is still arriving or only partly cached. 17 when the whole file
+     *         is cached already. Linux error code otherwise.
      */
     public int open(String path) {
+        if (prefetcher != null) {
+            prefetcher.opened(path);
+        }
         String fileName = new File(path).getName();
         File file = new File(localrootdir+path);
-        if (file.exists()) {
+        GridTransferProgress inFlight = openTransfers.get(path);
+        if (inFlight != null) {
+            //Somebody else is already copying it in, share their result
+            return awaitTransferStart(inFlight);
+        }
+        //A copy which failed partway leaves restart markers, carry it on instead
+        boolean resume = gridOperation.hasRestartData(path,FileStat.CACHE_BEHIND);
+        if (file.exists() && !resume) {
+            //A copy may have started since we looked, its readers have to follow it
+            inFlight = openTransfers.get(path);
+            if (inFlight != null) {
+                return awaitTransferStart(inFlight);
+            }
+            //Reads of a partly cached file have to fetch their blocks
+            if (partialCache.isPartial(path)) {
+                return 0;
+            }
             //If the file is already cached return 17 (EEXIST in linux)
             //This might not be very wise but it's easier right now.
             return 17;
         }
 
-        //Copy the file to the local cache
-        int retstat = gridOperation.fileTransfer(path,FileStat.CACHE_BEHIND);
+        long size;
+        try {
+            size = dirTree.find_file(path).getSizeBytes();
+        } catch (ClassCastException ccE) {
+            size = -1L;
+        }
+        if (!resume && partialCache.wantsPartial(size)) {
+            return partialCache.start(path,size);
+        }
+
+        //Copy the file to the local cache in the background
+        GridTransferProgress progress = new GridTransferProgress(path,size);
+        inFlight = openTransfers.putIfAbsent(path,progress);
+        if (inFlight != null) {
+            return awaitTransferStart(inFlight);
+        }
+        if (!resume && file.exists()) {
+            //Another open's copy finished since we looked. Readers may already be
+            //waiting on this progress, the whole file is there for them.
+            openTransfers.remove(path,progress);
+            progress.transferFinished(0);
+            return 17;
+        }
+        try {
+            openTransferExec.execute(() -> {
+                int retstat = gridOperation.fileTransfer(path,FileStat.CACHE_BEHIND,
+                                                         GridConnectionPool.PRIORITY_INTERACTIVE,progress);
+                finishOpenTransfer(path,progress,retstat);
+            });
+        } catch (RejectedExecutionException reE) {
+            //Shutting down
+            openTransfers.remove(path,progress);
+            progress.transferFinished(-5);
+            return -5;
+        }
+        return awaitTransferStart(progress);
+    }
 
-        //TODO: Make this less terrible
-        //Wait until the file exists before continuing. I don't like this.
-        int count = 0;
-        while(!file.exists()) {
-            count++;
-            if (count > 1000000) {
-                LOGGER.warning("Given up waiting for file to exist.");
-                break;
-            }
+    /**
+     * Copies a file into the local cache ahead of it being opened, in the
+     * calling thread at background priority. An open() while it runs
+     * shares the copy, as it would another open's.
+     * Large files, which are cached a block at a time, are left alone.
+     *
+     * @param path describes where the file is.
+     * @param size size of the file in bytes, -1 if unknown.
+     * @return int 0 once it is copied, 17 if it was left alone
+     *         because it's cached or being copied already. Linux error code otherwise.
+     */
+    protected int prefetch(String path, long size) {
+        File file = new File(localrootdir+path);
+        if (file.exists() || openTransfers.containsKey(path) || partialCache.wantsPartial(size)
+                || gridOperation.hasRestartData(path,FileStat.CACHE_BEHIND)) {
+            return 17;
+        }
+        GridTransferProgress progress = new GridTransferProgress(path,size);
+        if (openTransfers.putIfAbsent(path,progress) != null) {
+            return 17;
         }
+        if (file.exists()) {
+            //Copied since we looked, the whole file is there for anyone waiting
+            openTransfers.remove(path,progress);
+            progress.transferFinished(0);
+            return 17;
+        }
+        int retstat = gridOperation.fileTransfer(path,FileStat.CACHE_BEHIND,
+                                                 GridConnectionPool.PRIORITY_BACKGROUND,progress);
+        finishOpenTransfer(path,progress,retstat);
         return retstat;
     }
 
+    /**
+     * Waits until a copy started by open() is writing the local file.
+     * Every open of the file waits on the same copy and gets the same result.
+     *
+     * @param progress the copy's progress.
+     * @return int 0 once the file can be opened. Linux error code otherwise.
+     */
+    private int awaitTransferStart(GridTransferProgress progress) {
+        try {
+            return progress.awaitUnderway(TRANSFER_WAIT);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            return -4;
+        }
+    }
+
+    /**
+     * Tidies up once a copy started by open() has ended.
+     * The local copy gets the remote mtime, so the bytes arriving
+     * after open don't make it look locally modified.
+     *
+     * @param path describes where the file is.
+     * @param progress the copy's progress.
+     * @param retstat how the copy went, 0 for fine.
+     */
+    private void finishOpenTransfer(String path, GridTransferProgress progress, int retstat) {
+        if (retstat == 0) {
+            try {
+                FileStat meta = dirTree.find_file(path);
+                new File(localrootdir+path).setLastModified(meta.getMTime()*1000);
+                //Background syncing doesn't need to fetch it again
+                if (meta.getCacheStatus() == FileStat.CACHE_BEHIND) {
+                    meta.setCacheStatus(FileStat.CACHE_SYNCED);
+                }
+            } catch (ClassCastException ccE) {
+                LOGGER.finer("No remote mtime to give "+path);
+            }
+        }
+        else {
+            LOGGER.severe("Copying "+path+" for open failed: "+retstat);
+            //Without restart markers the next open can't carry it on,
+            //and would take what's there for the whole file
+            if (!gridOperation.hasRestartData(path,FileStat.CACHE_BEHIND)) {
+                new File(localrootdir+path).delete();
+                partialCache.forget(path);
+            }
+        }
+        progress.transferFinished(retstat);
+        openTransfers.remove(path,progress);
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @return boolean, true while open() is still copying the file in,
+     *                  or it is only partially cached.
+     */
+    protected boolean isIncomplete(String path) {
+        return openTransfers.containsKey(path) || partialCache.isPartial(path);
+    }
+
+    /**
+     * Makes sure a range of a file is in the local cache before it is read.
+     *
+     * @param path describes where the file is.
+     * @param offset first byte to be read.
+     * @param size number of bytes to be read.
+     * @return int 0 when the range can be read locally. Linux error code otherwise.
+     */
+    public int read(String path, long offset, long size) {
+        int retstat = awaitOpenTransfer(path,offset+size);
+        if (retstat != 0) {
+            return retstat;
+        }
+        return partialCache.ensureRange(path,offset,size,GridConnectionPool.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Waits for a copy started by open() to get past the given offset.
+     *
+     * @param path describes where the file is.
+     * @param end offset just past the last byte wanted.
+     * @return int 0 once the bytes have arrived, or straight away if open()
+     *         isn't copying the file. Linux error code otherwise.
+     */
+    private int awaitOpenTransfer(String path, long end) {
+        GridTransferProgress progress = openTransfers.get(path);
+        if (progress == null) {
+            return 0;
+        }
+        try {
+            return progress.awaitBytes(end, TRANSFER_WAIT);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            return -4;
+        }
+    }
+
+    /**
+     * Makes sure nothing still to arrive can land past the new end of a
+     * file before it is truncated.
+     *
+     * @param path describes where the file is.
+     * @param newsize size the file is being truncated to.
+     * @return int 0 once the file can be truncated. Linux error code otherwise.
+     */
+    public int truncate(String path, long newsize) {
+        //open()'s copy would carry on writing past the new end
+        int retstat = awaitOpenTransfer(path,Long.MAX_VALUE);
+        if (retstat != 0) {
+            return retstat;
+        }
+        return partialCache.truncate(path,newsize);
+    }
+
+    /**
+     * Fetches whatever hasn't arrived yet of a partially cached file,
+     * or waits for open() to finish copying it in.
+     * Writes only fetch the blocks they overlap, so a written file
+     * needs this before it is sent back.
+     * Does nothing for files which are fully cached.
+     *
+     * @param path describes where the file is.
+     * @param priority GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                 GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     * @return int 0 for everything being fine. Linux error code otherwise.
+     */
+    protected int fillIn(String path, int priority) {
+        int retstat = awaitOpenTransfer(path,Long.MAX_VALUE);
+        if (retstat != 0) {
+            return retstat;
+        }
+        return partialCache.fillIn(path,priority);
+    }
+
     /**
      * Updates the tree with the new file.
      *
@@ -196,6 +444,10 @@ public abstract class GridFuseCache {
     public int unlink(String path) {
         int retstat = gridOperation.unlink(path);
         dirTree.delete(path);
+        partialCache.forget(path);
+        //A file created here later mustn't resume from these
+        gridOperation.clearRestartData(path, FileStat.CACHE_BEHIND);
+        gridOperation.clearRestartData(path, FileStat.CACHE_AHEAD);
         return retstat;
     }
 
@@ -228,6 +480,8 @@ public abstract class GridFuseCache {
 
         //Move and/or rename file on server
         int retstat = gridOperation.rename(path,newpath);
+        partialCache.forget(path);
+        partialCache.forget(newpath);
 
         File file = new File(newpath);
         //Find old location on tree and remove it from there
@@ -242,7 +496,7 @@ public abstract class GridFuseCache {
         if (metaDatum == null) {
             //If we didn't have a FileStat object earlier,
             //then we won't mind adding a string now.
-            dirTree.find_file(newpath);
+            dirTree.add_name(newpath);
         }
         else {
             //Rename metaDatum
@@ -327,10 +581,8 @@ public abstract class GridFuseCache {
             throw new IllegalArgumentException("Mask passed to access is out of bounds: "+mask);
         }
         //Separate out permission bits
-        int[] perms = {0,0,0,0};
-        for ( int i=1; i < 4; i++ ) {
-            perms[i] = Integer.parseInt(Character.toString(file.getPermissions().charAt(i)),8);
-        }
+        int mode = Math.max(0, file.getMode());
+        int[] perms = {0, (mode >> 6) & 7, (mode >> 3) & 7, mode & 7};
         if ( file.getOwner().equals(user) ) {
             if ( (perms[1] & mask) == mask ) {
                 //Owner has permission
@@ -351,6 +603,92 @@ public abstract class GridFuseCache {
         return -1;
     }
     
+    /**
+     * Requests the shutdown of given ExecutorService.
+     *
+     * If the service doesn't shutdown within [timeout] seconds,
+     * then the service is forced to shutdown with shutdownNow().
+     *
+     * @param exec This is the executor you wish to shutdown.
+     * @param name A name for your executor, for terminal output only.
+     * @param timeout How long you are willing to wait for the executor to shut itself down.
+     */
+    protected void stopExecutorService(ExecutorService exec, String name, int timeout) {
+        try {
+            LOGGER.info("Attempting to shutdown "+name);
+            //Patiently request shutdown
+            exec.shutdown();
+            exec.awaitTermination(timeout, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException iE) {
+            LOGGER.warning("Task shutting down "+name+" interrupted");
+        }
+        finally {
+            if (!exec.isTerminated()) {
+                LOGGER.severe(name+" is taking longer than "+timeout+" seconds to shutdown");
+            }
+            //Instant shutdown
+            exec.shutdownNow();
+            LOGGER.info(name+" shutdown");
+        }
+    }
+
+    /**
+     * Marks a file as up to date before it is transferred, so changes
+     * made while the transfer runs mark it unsynced again.
+     *
+     * @param path describes where the file is.
+     * @return FileStat the file's metadata, or null if it isn't in the tree.
+     */
+    protected FileStat markSynced(String path) {
+        try {
+            LOGGER.fine("Marking "+path+" as up to date");
+            FileStat file = dirTree.find_file(path);
+            file.setCacheStatus(FileStat.CACHE_SYNCED);
+            return file;
+        } catch (ClassCastException ccE) {
+            LOGGER.warning("Cannot mark as changes written back or update remote mtime.\n\tUserObject in tree not a string.");
+            return null;
+        }
+    }
+
+    /**
+     * Updates a file's metadata once its transfer has ended.
+     *
+     * @param path describes where the file is.
+     * @param direction the direction it was transferred.
+     * @param file the file's metadata from markSynced(), may be null.
+     * @param retstat result of the transfer.
+     */
+    protected void transferFinished(String path, int direction, FileStat file, int retstat) {
+        if (retstat == 0) {
+            if (direction == FileStat.CACHE_BEHIND) {
+                //Whole file is here now
+                partialCache.forget(path);
+            }
+            if (file != null) {
+                //If we updated the remote file, set its modification
+                //time to be the same as the local file so it doesn't
+                //get sent back and forth
+                if (direction == FileStat.CACHE_AHEAD) {
+                    changeModificationTime(path,file.getMTime());
+                }
+            }
+        }
+        else if (retstat == -2) {
+            LOGGER.finer("File "+path+" doesn't exist, removing from dirTree");
+            //If the file doesn't exist, then it shouldn't be in the dirTree
+            dirTree.delete(path);
+        }
+        else {
+            LOGGER.severe("Transfer of "+path+" failed.");
+            if (file != null) {
+                LOGGER.fine("Marking "+path+" as not synced.");
+                file.setCacheStatus(direction);
+            }
+        }
+    }
+
     /**
      * Sets mtime on the remote file.
      * 
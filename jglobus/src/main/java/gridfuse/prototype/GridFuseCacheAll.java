@@ -3,8 +3,6 @@ package gridfuse.prototype;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -12,8 +10,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 /**
  * GridFuseCacheAll periodically caches everything
  * and writes everything back to the remote store.
@@ -22,34 +18,44 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class GridFuseCacheAll extends GridFuseCache {
     private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
     ScheduledExecutorService scheduledMLSR;
-    ScheduledExecutorService scheduledNOOP;
-    ExecutorService queueSkim;
     ExecutorService transferGetExec;
     ExecutorService transferSendExec;
-    ConcurrentLinkedQueue<String> getQueue;
-    ConcurrentLinkedQueue<String> sendQueue;
+    GridTransferScheduler getScheduler;
+    GridTransferScheduler sendScheduler;
+    GridTransferBatcher batcher;
 
     public GridFuseCacheAll() throws IOException, FileNotFoundException {
         LOGGER.info("Caching type: All");
         init();
 
         scheduledMLSR = Executors.newScheduledThreadPool(1);
-        scheduledNOOP = Executors.newScheduledThreadPool(1);
-        transferGetExec = Executors.newFixedThreadPool(maxPoolSize);
-        transferSendExec = Executors.newFixedThreadPool(maxPoolSize);
+        batcher = new GridTransferBatcher(GridFuseProps);
 
-        getQueue = new ConcurrentLinkedQueue();
-        sendQueue = new ConcurrentLinkedQueue();
-        //Prevents us from copying the same file twice at the same time
-        ConcurrentLinkedQueue<String> inProgressQueue = new ConcurrentLinkedQueue();
+        //Transfers wait here until a worker is free, each worker has one batch in flight
+        int batchesInFlight = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "maxBatchesInFlight", maxPoolSize));
+        getScheduler = new GridTransferScheduler("Get scheduler", batcher::getLookahead, paths -> {
+            String[] wholeFiles = fillInPartialFiles(paths);
+            if (wholeFiles != null) {
+                transferPlanned(wholeFiles,FileStat.CACHE_BEHIND,getScheduler);
+            }
+            LOGGER.finer("Finished transfering a bunch of files");
+        });
+        sendScheduler = new GridTransferScheduler("Send scheduler", batcher::getLookahead, paths -> {
+            transferPlanned(paths,FileStat.CACHE_AHEAD,sendScheduler);
+            LOGGER.finer("Finished transfering a bunch of files");
+        });
+        transferGetExec = Executors.newFixedThreadPool(batchesInFlight);
+        transferSendExec = Executors.newFixedThreadPool(batchesInFlight);
+        getScheduler.start(transferGetExec, batchesInFlight);
+        sendScheduler.start(transferSendExec, batchesInFlight);
 
         Runnable mlsr = () -> {
             //Check through entire directory tree of mainstore
             //and add contents to dirTree.
             gridOperation.mlsr("/");
             //Add every unsynced item to the appropriate queue
-            getQueue.addAll(dirTree.getUnSyncedPaths("/",-1,FileStat.CACHE_BEHIND));
-            sendQueue.addAll(dirTree.getUnSyncedPaths("/",-1,FileStat.CACHE_AHEAD));
+            getScheduler.submitAll(dirTree.getUnSyncedPaths("/",-1,FileStat.CACHE_BEHIND));
+            sendScheduler.submitAll(dirTree.getUnSyncedPaths("/",-1,FileStat.CACHE_AHEAD));
         };
 
         int lsDelay;
@@ -68,118 +74,6 @@ public class GridFuseCacheAll extends GridFuseCache {
         }
         scheduledMLSR.scheduleWithFixedDelay(mlsr, lsDelay,lsFrequency, TimeUnit.SECONDS);
 
-        int tempNum;
-        try {
-            tempNum = Integer.parseInt(GridFuseProps.get("numberOfFilesToTransfer"));
-        } catch (NumberFormatException nfE3) {
-            tempNum = 10;
-            LOGGER.log(Level.INFO,"NumberFormatException while parsing numberOfFileToTransfer, using default of: "+tempNum, nfE3);
-        }
-        final int numberOfFilesToTransfer = tempNum;
-
-        Runnable get = () -> {
-            String path;
-            String[] paths = new String[numberOfFilesToTransfer];
-            synchronized ( getQueue ) {
-                for (int i = 0; i < numberOfFilesToTransfer; i++) {
-                    path = getQueue.poll();
-                    if (path != null) {
-                        //Remove all instances of this path in the queue
-                        ArrayList<String> toremove = new ArrayList<String>();
-                        toremove.add(path);
-                        getQueue.removeAll(toremove);
-                        LOGGER.finer("Removing "+path+" from getQueue");
-
-                        synchronized ( inProgressQueue ) {
-                            //Make sure file is not currently being transfered
-                            if (!inProgressQueue.contains(path)) {
-                                inProgressQueue.add(path);
-                            }
-                            else {
-                                //If the file is already being transfered, leave it until the next pass
-                                LOGGER.finest("File "+path+" already being transferred");
-                                return;
-                            }
-                        }
-                        paths[i] = path;
-                    } else {
-                        if (paths[0] == null) {
-                            return;
-                        }
-                        else {
-                            break;
-                        }
-                    }
-                }
-            }
-            multipleFileTransfer(paths,FileStat.CACHE_BEHIND);
-            LOGGER.finer("Finished transfering a bunch of files");
-            inProgressQueue.removeAll(new ArrayList<String>(Arrays.asList(paths)));
-        };
-        Runnable send = () -> {
-            String path;
-            String[] paths = new String[numberOfFilesToTransfer];
-            synchronized ( sendQueue ) {
-                for (int i = 0; i < numberOfFilesToTransfer; i++) {
-                    path = sendQueue.poll();
-                    if (path != null) {
-                        //Remove all instances of this path in the queue
-                        ArrayList<String> toremove = new ArrayList<String>();
-                        toremove.add(path);
-                        sendQueue.removeAll(toremove);
-                        LOGGER.finer("Removing "+path+" from sendQueue");
-
-                        synchronized ( inProgressQueue ) {
-                            //Make sure file is not currently being transfered
-                            if (!inProgressQueue.contains(path)) {
-                                inProgressQueue.add(path);
-                            }
-                            else {
-                                //If the file is already being transfered, leave it until the next pass
-                                LOGGER.finest("File "+path+" already being transferred");
-                                return;
-                            }
-                        }
-                        paths[i] = path;
-                    } else {
-                        if (paths[0] == null) {
-                            return;
-                        }
-                        else {
-                            break;
-                        }
-                    }
-                }
-            }
-            multipleFileTransfer(paths,FileStat.CACHE_AHEAD);
-            LOGGER.finer("Finished transfering a bunch of files");
-            inProgressQueue.removeAll(new ArrayList<String>(Arrays.asList(paths)));
-        };
-        //TODO: Look at this again, does this thread need to exist or can we rearrange the get and send threads?
-        //Start a thread that skims tasks off the caching queues and submits them to thread pools
-        queueSkim = Executors.newSingleThreadExecutor();
-        queueSkim.submit(() -> {
-            while(!queueSkim.isShutdown()) {
-                transferGetExec.submit(get);
-                transferSendExec.submit(send);
-            }
-        });
-
-        Runnable noop = () -> {
-            gridOperation.noop();
-        };
-
-        int noopFrequency;
-        try {
-            noopFrequency = Integer.parseInt(GridFuseProps.get("noopFrequency"));
-        } catch (NumberFormatException nfE4) {
-            noopFrequency = 540;
-            LOGGER.log(Level.INFO,"NumberFormatException while parsing noopFrequency, using default of: "+noopFrequency, nfE4);
-        }
-        //Schedule a NOOP command to the server, but use noopFrequency as the delay,
-        //it doesn't need to happen until that much time has passed.
-        scheduledNOOP.scheduleWithFixedDelay(noop, noopFrequency, noopFrequency, TimeUnit.SECONDS);
-
         return;
     }
 
@@ -189,42 +83,15 @@ public class GridFuseCacheAll extends GridFuseCache {
      * Remember to add them to the list here.
      */
     public void stopAll() {
+        openTransferExec.shutdownNow();
+        partialCache.saveAll();
         //TODO: These shutdown times should probably be in a config file.
-        stopExecutorService(scheduledNOOP, "NOOP executor", 2);
         stopExecutorService(scheduledMLSR, "MLSR executor", 5);
-        stopExecutorService(queueSkim, "Queue Skim executor", 10);
+        getScheduler.close();
+        sendScheduler.close();
         stopExecutorService(transferGetExec, "File transfer get executor", 5);
         stopExecutorService(transferSendExec, "File transfer send executor", 30);
-    }
-
-    /**
-     * Requests the shutdown of given ExecutorService.
-     *
-     * If the service doesn't shutdown within [timeout] seconds,
-     * then the service is forced to shutdown with shutdownNow().
-     *
-     * @param exec This is the executor you wish to shutdown.
-     * @param name A name for your executor, for terminal output only.
-     * @param timeout How long you are willing to wait for the executor to shut itself down.
-     */
-    private void stopExecutorService(ExecutorService exec, String name, int timeout) {
-        try {
-            LOGGER.info("Attempting to shutdown "+name);
-            //Patiently request shutdown
-            exec.shutdown();
-            exec.awaitTermination(timeout, TimeUnit.SECONDS);
-        }
-        catch (InterruptedException iE) {
-            LOGGER.warning("Task shutting down "+name+" interrupted");
-        }
-        finally {
-            if (!exec.isTerminated()) {
-                LOGGER.severe(name+" is taking longer than "+timeout+" seconds to shutdown");
-            }
-            //Instant shutdown
-            exec.shutdownNow();
-            LOGGER.info(name+" shutdown");
-        }
+        gridOperation.close();
     }
 
     /**
@@ -254,24 +121,58 @@ public class GridFuseCacheAll extends GridFuseCache {
         dirTree.delete(path);
 
         //Remove file from file transfer queues
-        ArrayList<String> toremove = new ArrayList<String>();
-        toremove.add(path);
-        getQueue.removeAll(toremove);
-        sendQueue.removeAll(toremove);
+        getScheduler.remove(path);
+        sendScheduler.remove(path);
         return retstat;
     }
 
+    /**
+     * Opens a file, fetching it first if it isn't cached. A user is waiting,
+     * so the file is taken out of the background sync and fetched on its own
+     * at interactive priority, rather than waiting its turn behind a resync.
+     * If a batch is already sending it, wait for that batch instead.
+     *
+     * @param path describes where the file is.
+     * @return int 0 for everything being fine. Linux error code otherwise.
+     */
+    @Override
+    public int open(String path) {
+        //Cached files are opened straight away, any queued refresh keeps its place
+        boolean cached = new File(localrootdir+path).exists();
+        if (!cached && !getScheduler.promote(path)) {
+            try {
+                if (!getScheduler.awaitDone(path,TRANSFER_WAIT)) {
+                    return -11;
+                }
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+                return -4;
+            }
+        }
+        return super.open(path);
+    }
+
     /**
      * Called by FUSE when release call is made.
+     * Files which were written to are queued to be sent back.
      *
      * @param path describes where the file is.
      * @return int 0 for everything being fine. -1 when there's an error.
      */
     public int release(String path) {
+        partialCache.save(path);
+        //The local copy is still arriving, its length isn't the real size yet
+        if (openTransfers.containsKey(path)) {
+            return 0;
+        }
         FileStat fileMeta = dirTree.find_file(path);
         File file = new File(localrootdir+path);
         //Update the file size parameter
-        fileMeta.setSize(String.valueOf(file.length()));
+        fileMeta.setSize(file.length());
+        //Written to and closed, so send it back now rather than on the next MLSR pass
+        if (fileMeta.getCacheStatus() == FileStat.CACHE_AHEAD) {
+            sendScheduler.submit(path);
+        }
         return 0;
     }
 
@@ -298,109 +199,151 @@ public class GridFuseCacheAll extends GridFuseCache {
     }
 
     /**
-     * Copies a single file to/from mainstore.
+     * Fills in partially cached files a block at a time, copying them
+     * whole would truncate the blocks readers already have.
+     * Files open() is copying in are left to it.
      *
-     * @param path describes where the file is.
+     * @param paths files waiting to be cached, may contain nulls.
+     * @return String[] copy of paths with the partially cached files
+     *         and files being copied by open() replaced by null,
+     *         or null if nothing is left to copy.
+     */
+    private String[] fillInPartialFiles(String[] paths) {
+        String[] wholeFiles = paths.clone();
+        boolean anyLeft = false;
+        for (int i = 0; i < wholeFiles.length; i++) {
+            String path = wholeFiles[i];
+            if (path == null) {
+                continue;
+            }
+            if (openTransfers.containsKey(path)) {
+                wholeFiles[i] = null;
+                continue;
+            }
+            if (!partialCache.isPartial(path)) {
+                anyLeft = true;
+                continue;
+            }
+            if (partialCache.fillIn(path,GridConnectionPool.PRIORITY_BACKGROUND) == 0) {
+                try {
+                    dirTree.find_file(path).setCacheStatus(FileStat.CACHE_SYNCED);
+                } catch (ClassCastException ccE) {
+                    LOGGER.finer("Cannot mark "+path+" as up to date");
+                }
+            }
+            wholeFiles[i] = null;
+        }
+        return anyLeft ? wholeFiles : null;
+    }
+
+    /**
+     * Transfers files in the batches GridTransferBatcher plans for them,
+     * smallest first, with large files on their own.
+     *
+     * @param paths describes where the files are, may contain nulls.
      * @param direction Copy to mainstore: FileStat.CACHE_AHEAD.
      *                  Copy from mainstore: FileStat.CACHE_BEHIND.
-     * @return int 0 for everything being fine. -1 when there's an error.
+     * @param scheduler the scheduler the files came from.
      */
-    public int fileTransfer(String path, int direction) {
-        FileStat file = null;
-        try {
-            LOGGER.fine("Marking "+path+" as up to date");
-            file = dirTree.find_file(path);
-            file.setCacheStatus(FileStat.CACHE_SYNCED);
-        } catch (ClassCastException ccE) {
-            LOGGER.warning("Cannot mark as changes written back or update remote mtime.\n\tUserObject in tree not a string.");
+    private void transferPlanned(String[] paths, int direction, GridTransferScheduler scheduler) {
+        long[] sizes = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] != null) {
+                sizes[i] = transferSize(paths[i],direction);
+            }
         }
-        //Transfer file
-        int retstat = gridOperation.fileTransfer(path,direction);
-        if (retstat == 0) {
-            if (file != null) {
-                //If we updated the remote file, set its modification
-                //time to be the same as the local file so it doesn't
-                //get sent back and forth
-                if (direction == FileStat.CACHE_AHEAD) {
-                    changeModificationTime(path,file.getMTime());
+        for (GridTransferBatcher.Batch batch : batcher.plan(paths,sizes)) {
+            //Leave out files a user opened since, open() is fetching them
+            String[] sending = scheduler.startSending(batch.paths);
+            int left = 0;
+            for (int i = 0; i < sending.length; i++) {
+                if (sending[i] != null && openTransfers.containsKey(sending[i])) {
+                    sending[i] = null;
                 }
+                //Partially cached files only have the blocks written to, fetch the rest first
+                if (sending[i] != null && direction == FileStat.CACHE_AHEAD
+                        && fillIn(sending[i],GridConnectionPool.PRIORITY_BACKGROUND) != 0) {
+                    LOGGER.warning("Couldn't fill in "+sending[i]+" to send it back");
+                    sending[i] = null;
+                }
+                left += (sending[i] != null) ? 1 : 0;
+            }
+            if (left == 0) {
+                continue;
+            }
+            long started = System.currentTimeMillis();
+            if (batch.isSingle()) {
+                fileTransfer(sending[0],direction);
+            }
+            else if (multipleFileTransfer(sending,direction) == 0 && left == sending.length) {
+                //Retried batches would skew the measurement
+                batcher.batchFinished(batch,System.currentTimeMillis()-started);
             }
         }
-        else if (retstat == -2) {
-            LOGGER.finer("File doesn't exist, removing from dirTree");
-            //If the file doesn't exist, then it shouldn't be in the dirTree
-            dirTree.delete(path);
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @param direction FileStat.CACHE_AHEAD uses the cached copy,
+     *                  FileStat.CACHE_BEHIND the remote metadata.
+     * @return long size of the file in bytes, -1 if it isn't known.
+     */
+    private long transferSize(String path, int direction) {
+        if (direction == FileStat.CACHE_AHEAD) {
+            File file = new File(localrootdir+path);
+            return file.exists() ? file.length() : -1L;
         }
-        else {
-            LOGGER.severe("Transfer of "+path+" failed.");
-            if (file != null) {
-                LOGGER.fine("Marking "+path+" as not synced.");
-                file.setCacheStatus(direction);
-            }
+        try {
+            return dirTree.find_file(path).getSizeBytes();
+        } catch (ClassCastException ccE) {
+            return -1L;
         }
-        return retstat;
     }
 
     /**
-     * Copies multiple files to/from mainstore.
+     * Copies a single file to/from mainstore.
      *
      * @param path describes where the file is.
      * @param direction Copy to mainstore: FileStat.CACHE_AHEAD.
      *                  Copy from mainstore: FileStat.CACHE_BEHIND.
      * @return int 0 for everything being fine. -1 when there's an error.
      */
+    public int fileTransfer(String path, int direction) {
+        FileStat file = markSynced(path);
+        //Transfer file, this is background syncing so users come first
+        int retstat = gridOperation.fileTransfer(path,direction,GridConnectionPool.PRIORITY_BACKGROUND);
+        transferFinished(path,direction,file,retstat);
+        return retstat;
+    }
+
+    /**
+     * Copies multiple files to/from mainstore.
+     * Each file is dealt with according to its own result, so one
+     * missing or failed file doesn't affect the rest of the batch.
+     *
+     * @param paths describes where the files are, may contain nulls.
+     * @param direction Copy to mainstore: FileStat.CACHE_AHEAD.
+     *                  Copy from mainstore: FileStat.CACHE_BEHIND.
+     * @return int 0 for everything being fine. Otherwise the error of the last file that failed.
+     */
     public int multipleFileTransfer(String[] paths, int direction) {
-        ArrayList<FileStat> files = new ArrayList<FileStat>();
-        for(String path : paths) {
-            if ( path != null ) {
-                FileStat file = null;
-                try {
-                    LOGGER.fine("Marking "+path+" as up to date");
-                    file = dirTree.find_file(path);
-                    file.setCacheStatus(FileStat.CACHE_SYNCED);
-                    files.add(file);
-                } catch (ClassCastException ccE) {
-                    LOGGER.warning("Cannot mark as changes written back or update remote mtime.\n\tUserObject in tree not a string.");
-                }
+        FileStat[] files = new FileStat[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            if ( paths[i] != null ) {
+                files[i] = markSynced(paths[i]);
             }
         }
-        //Transfer file
-        int retstat = gridOperation.multipleFileTransfer(paths,direction);
-        // TODO: Work out what happens with the return value here
-        if (retstat == 0) {
-            //If we updated the remote files, set their modification
-            //time to be the same as the local files so they don't
-            //get sent back and forth
-            for(String path : paths) {
-                if (direction == FileStat.CACHE_AHEAD) {
-                    try {
-                        changeModificationTime(path,dirTree.find_file(path).getMTime());
-                    } catch (ClassCastException ccE) {
-                        LOGGER.finer("Cannot get FileStat to set MTime on remote store for "+path);
-                    }
+        //Transfer files
+        int[] results = gridOperation.multipleFileTransfer(paths,direction);
+        int retstat = 0;
+        for (int i = 0; i < paths.length; i++) {
+            if ( paths[i] != null ) {
+                transferFinished(paths[i],direction,files[i],results[i]);
+                if (results[i] != 0) {
+                    retstat = results[i];
                 }
             }
         }
-        else if (retstat == -2) {
-            LOGGER.finer("One of the files doesn't exist, removing from dirTree\n\n\n???????????????????????????\n\n\n");
-            //If the file doesn't exist, then it shouldn't be in the dirTree
-            for(String path : paths) {
-                if ( path != null ) {
-                    dirTree.delete(path);
-                }
-            }
-        }
-        else {
-            for(String path : paths) {
-                if ( path != null ) {
-                    LOGGER.severe("Transfer of "+path+" failed.");
-                }
-            }
-            for(FileStat file : files) {
-                LOGGER.fine("Marking "+file.toString()+" as not synced.");
-                file.setCacheStatus(direction);
-            }
-        }
         return retstat;
     }
 
@@ -0,0 +1,276 @@
+package gridfuse.prototype;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * GridFuseCacheLazy keeps all the metadata of the remote store
+ * up to date, but only caches a file's contents when it is opened.
+ *
+ * The local cache is kept under cacheQuotaMB by GridFuseEvictor,
+ * which deletes the cached copies of files nobody is using.
+ * Files written to are sent back when they're released, and
+ * can't be evicted until they have been.
+ */
+public class GridFuseCacheLazy extends GridFuseCache {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    ScheduledExecutorService scheduledMLSR;
+    ExecutorService transferSendExec;
+    GridTransferScheduler sendScheduler;
+    GridFuseEvictor evictor;
+
+    public GridFuseCacheLazy() throws IOException, FileNotFoundException {
+        LOGGER.info("Caching type: Lazy");
+        init();
+
+        evictor = new GridFuseEvictor(GridFuseProps, this::isEvictable, this::evicted);
+        //Files cached before a restart count against the quota too
+        evictor.scan();
+        prefetcher = new GridFusePrefetcher(GridFuseProps, dirTree, this::prefetch);
+
+        int batchesInFlight = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "maxBatchesInFlight", maxPoolSize));
+        int batchFiles = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "numberOfFilesToTransfer", 10));
+        sendScheduler = new GridTransferScheduler("Write back scheduler", () -> batchFiles, this::sendBack);
+        transferSendExec = Executors.newFixedThreadPool(batchesInFlight);
+        sendScheduler.start(transferSendExec, batchesInFlight);
+
+        scheduledMLSR = Executors.newScheduledThreadPool(1);
+        Runnable mlsr = () -> {
+            //Keep the whole namespace current, contents are fetched on open
+            gridOperation.mlsr("/");
+            //Anything written to and not yet sent back, e.g. from before a restart
+            sendScheduler.submitAll(dirTree.getUnSyncedPaths("/",-1,FileStat.CACHE_AHEAD));
+            evictor.maybeEvict();
+        };
+        int lsDelay = GridFuseProperties.getIntProperty(GridFuseProps, "lsDelay", 3);
+        int lsFrequency = GridFuseProperties.getIntProperty(GridFuseProps, "lsFrequency", 30);
+        scheduledMLSR.scheduleWithFixedDelay(mlsr, lsDelay,lsFrequency, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shutdown all the ExecutorServices.
+     *
+     * Remember to add them to the list here.
+     */
+    public void stopAll() {
+        prefetcher.close();
+        openTransferExec.shutdownNow();
+        partialCache.saveAll();
+        stopExecutorService(scheduledMLSR, "MLSR executor", 5);
+        sendScheduler.close();
+        stopExecutorService(transferSendExec, "File transfer send executor", 30);
+        evictor.close();
+        gridOperation.close();
+    }
+
+    /**
+     * Queries the cached directory tree for a list of files and metadata
+     * in the directory given in path.
+     *
+     * @param path describes the location of the directory to be read.
+     * @return FileStat[] Array of FileStat objects holding the contents of the requested directory.
+     */
+    public FileStat[] readdir(String path) {
+        return dirTree.cached_readdir(path);
+    }
+
+    /**
+     * Opens a file, fetching it first if it isn't cached.
+     * A cached copy older than the remote file is thrown away and
+     * fetched again, unless it has changes which haven't been sent back.
+     *
+     * @param path describes where the file is.
+     * @return int 0 for everything being fine. Linux error code otherwise.
+     */
+    @Override
+    public int open(String path) {
+        long remoteSize = -1L;
+        try {
+            FileStat meta = dirTree.find_file(path);
+            remoteSize = meta.getSizeBytes();
+            File file = new File(localrootdir+path);
+            if (file.exists() && meta.getCacheStatus() != FileStat.CACHE_AHEAD
+                    && !openTransfers.containsKey(path)
+                    && meta.getMTime()*1000 > file.lastModified()) {
+                LOGGER.fine("Cached copy of "+path+" is out of date, fetching it again");
+                evictor.evict(path);
+            }
+        } catch (ClassCastException ccE) {
+            LOGGER.finer("No metadata for "+path+" yet");
+        }
+        evictor.opened(path,remoteSize);
+        int retstat = super.open(path);
+        if (retstat != 0 && retstat != 17) {
+            evictor.openFailed(path);
+        }
+        return retstat;
+    }
+
+    /**
+     * Copies a file in ahead of it being opened, as long as there's room
+     * for it under the high watermark.
+     *
+     * @param path describes where the file is.
+     * @param size size of the file in bytes, -1 if unknown.
+     * @return int 0 once it is copied, 17 if it was left alone. Linux error code otherwise.
+     */
+    @Override
+    protected int prefetch(String path, long size) {
+        if (!evictor.hasRoom(size)) {
+            return 17;
+        }
+        int retstat = super.prefetch(path,size);
+        if (retstat == 0) {
+            evictor.prefetched(path,new File(localrootdir+path).length());
+        }
+        return retstat;
+    }
+
+    /**
+     * Called by FUSE when release call is made.
+     * Files which were written to are queued to be sent back.
+     *
+     * @param path describes where the file is.
+     * @return int 0 for everything being fine. -1 when there's an error.
+     */
+    public int release(String path) {
+        partialCache.save(path);
+        //The local copy is still arriving, its length isn't the real size yet
+        if (openTransfers.containsKey(path)) {
+            evictor.released(path,-1L);
+            return 0;
+        }
+        File file = new File(localrootdir+path);
+        try {
+            FileStat fileMeta = dirTree.find_file(path);
+            //Update the file size parameter
+            fileMeta.setSize(file.length());
+            if (fileMeta.getCacheStatus() == FileStat.CACHE_AHEAD) {
+                sendScheduler.submit(path);
+            }
+        } catch (ClassCastException ccE) {
+            LOGGER.warning("Cannot update size of "+path+".\n\tUserObject in tree not a FileStat.");
+        }
+        evictor.released(path,file.length());
+        return 0;
+    }
+
+    /**
+     * Called by FUSE when write call is made.
+     * Updates file metadata in tree to inform of changes to be written back.
+     *
+     * @param path describes where the file is.
+     * @return int 0 for everything being fine.
+     */
+    public int write(String path) {
+        try {
+            FileStat fileMeta = dirTree.find_file(path);
+            //If we have write access
+            if ( access(fileMeta,02) == 0 ) {
+                //Mark the local file as ahead of the remote store, this keeps it from being evicted
+                fileMeta.setCacheStatus(FileStat.CACHE_AHEAD);
+                return 0;
+            }
+        } catch (ClassCastException ccE) {
+            LOGGER.warning("Cannot mark changes to be written back.\n\tUserObject in tree not a FileStat.");
+        }
+        return -13;
+    }
+
+    /**
+     * Deletes a file from the GridFTP server, the cached directory tree
+     * and the local cache's accounts.
+     *
+     * @param path describes where the file is.
+     * @return int 0 for everything being fine. -1 when there's an error.
+     * -2 when there's a ServerException (probably that the file or directory doesn't exist)
+     */
+    @Override
+    public int unlink(String path) {
+        int retstat = super.unlink(path);
+        sendScheduler.remove(path);
+        evictor.forget(path);
+        return retstat;
+    }
+
+    /**
+     * Renames a file (path) and/or moves it to another directory (newpath),
+     * then updates cached directory tree and the local cache's accounts.
+     *
+     * @param path describes where the file is.
+     * @param newpath describes where the file should be moved to.
+     * @return int 0 for everything being fine.
+     */
+    @Override
+    public int rename(String path, String newpath) {
+        int retstat = super.rename(path,newpath);
+        evictor.renamed(path,newpath);
+        return retstat;
+    }
+
+    /**
+     * Sends a batch of written files back to mainstore.
+     *
+     * @param batch describes where the files are.
+     */
+    private void sendBack(String[] batch) {
+        //The scheduler marks the batch done afterwards, so leave its array alone
+        String[] paths = batch.clone();
+        FileStat[] files = new FileStat[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            //Partially cached files only have the blocks written to, fetch the rest first.
+            //Left marked as ahead if that fails, so they're sent on the next pass.
+            if ( paths[i] != null && fillIn(paths[i],GridConnectionPool.PRIORITY_BACKGROUND) != 0 ) {
+                LOGGER.warning("Couldn't fill in "+paths[i]+" to send it back");
+                paths[i] = null;
+            }
+            if ( paths[i] != null ) {
+                files[i] = markSynced(paths[i]);
+            }
+        }
+        int[] results = gridOperation.multipleFileTransfer(paths,FileStat.CACHE_AHEAD);
+        for (int i = 0; i < paths.length; i++) {
+            if ( paths[i] != null ) {
+                transferFinished(paths[i],FileStat.CACHE_AHEAD,files[i],results[i]);
+            }
+        }
+        LOGGER.finer("Finished sending back "+paths.length+" files");
+    }
+
+    /**
+     * Says whether a file's cached copy can be deleted. Files still being
+     * copied in, or with changes not yet sent back, can't be.
+     *
+     * @param path describes where the file is.
+     * @return boolean, true if the cached copy can be deleted.
+     */
+    private boolean isEvictable(String path) {
+        if (openTransfers.containsKey(path)
+                || sendScheduler.getState(path) != GridTransferScheduler.State.DONE) {
+            return false;
+        }
+        try {
+            return dirTree.find_file(path).getCacheStatus() != FileStat.CACHE_AHEAD;
+        } catch (ClassCastException ccE) {
+            //No metadata yet, e.g. before the first MLSR, so we can't tell it's clean
+            return false;
+        }
+    }
+
+    /**
+     * Called once a file's cached copy has been deleted. A failed copy
+     * kept to resume from is gone now, so its restart markers go too.
+     *
+     * @param path describes where the file is.
+     */
+    private void evicted(String path) {
+        partialCache.forget(path);
+        gridOperation.clearRestartData(path,FileStat.CACHE_BEHIND);
+    }
+}
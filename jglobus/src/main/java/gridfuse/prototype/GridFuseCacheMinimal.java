@@ -18,12 +18,17 @@ public class GridFuseCacheMinimal extends GridFuseCache {
     public GridFuseCacheMinimal() throws IOException, FileNotFoundException {
         LOGGER.info("Caching type: Minimal");
         init();
+        prefetcher = new GridFusePrefetcher(GridFuseProps, dirTree, this::prefetch);
     }
 
     /**
      * Called when program shuts down, stop any extra threads in here.
      */
     public void stopAll() {
+        prefetcher.close();
+        openTransferExec.shutdownNow();
+        partialCache.saveAll();
+        gridOperation.close();
         return;
     }
 
@@ -95,6 +100,18 @@ public class GridFuseCacheMinimal extends GridFuseCache {
      * @return int 0 for everything being fine. Otherwise linux error code.
      */
     public int release(String path) {
+        if (isIncomplete(path)) {
+            partialCache.save(path);
+            //Its mtime moves as bytes arrive, only a write means it has changed
+            if (!isWritten(path)) {
+                return 0;
+            }
+            //Writes only fetch the blocks they overlap, the rest is needed to send it back
+            int retstat = fillIn(path,GridConnectionPool.PRIORITY_INTERACTIVE);
+            if (retstat != 0) {
+                return retstat;
+            }
+        }
         File file = new File(localrootdir+path);
         FileStat fileMeta;
         try {
@@ -120,6 +137,18 @@ public class GridFuseCacheMinimal extends GridFuseCache {
         }
     }
 
+    /**
+     * @param path describes where the file is.
+     * @return boolean, true if the file has been written to since it was last sent back.
+     */
+    private boolean isWritten(String path) {
+        try {
+            return dirTree.find_file(path).getCacheStatus() == FileStat.CACHE_AHEAD;
+        } catch (ClassCastException ccE) {
+            return false;
+        }
+    }
+
     /**
      * Called by FUSE when write call is made.
      * Updates file metadata in tree to inform of changes to be written back.
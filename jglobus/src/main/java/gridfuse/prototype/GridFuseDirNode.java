@@ -0,0 +1,149 @@
+package gridfuse.prototype;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A node in the GridFuseHeapDirTree, holding a file's metadata
+ * (a FileStat) or, until that is known, just its name (a String).
+ *
+ * Children are kept in a hash map keyed by name, so finding one
+ * takes the same time however big the directory is. They stay in
+ * the order they were added, which is the order readdir lists them.
+ *
+ * The map is a snapshot which is never changed once published.
+ * Writers copy it, change the copy and publish that in its place,
+ * holding the node's lock so writers to one directory take turns.
+ * Readers just read whichever snapshot is current, so they never
+ * wait, and never see a directory half way through a change.
+ */
+public class GridFuseDirNode {
+    private static final Map<String,GridFuseDirNode> NO_CHILDREN = Collections.emptyMap();
+
+    //Key in the parent's children, fixed when the node is made
+    final String name;
+    private volatile Object userObject;
+    private volatile GridFuseDirNode parent;
+    //Current snapshot of the children, replaced whole by writers
+    private volatile Map<String,GridFuseDirNode> children = NO_CHILDREN;
+
+    /**
+     * @param userObject a FileStat, or the file's name as a String.
+     * @param parent the directory the node goes in, null for the root.
+     */
+    public GridFuseDirNode(Object userObject, GridFuseDirNode parent) {
+        this.name = userObject.toString();
+        this.userObject = userObject;
+        this.parent = parent;
+    }
+
+    public Object getUserObject() {
+        return userObject;
+    }
+
+    /**
+     * Replaces the node's metadata. Hold the node's lock if the new
+     * value depends on the old one.
+     *
+     * @param userObject a FileStat, or the file's name as a String.
+     */
+    public void setUserObject(Object userObject) {
+        this.userObject = userObject;
+    }
+
+    public GridFuseDirNode getParent() {
+        return parent;
+    }
+
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    /**
+     * @param childName name of the child.
+     * @return GridFuseDirNode the child, or null if there's no child of that name.
+     */
+    public GridFuseDirNode getChild(String childName) {
+        return children.get(childName);
+    }
+
+    /**
+     * Finds a child, adding one holding just its name if there isn't one.
+     *
+     * @param childName name of the child.
+     * @return GridFuseDirNode the child.
+     */
+    public GridFuseDirNode getOrAddChild(String childName) {
+        GridFuseDirNode child = children.get(childName);
+        if (child != null) {
+            return child;
+        }
+        synchronized (this) {
+            child = children.get(childName);
+            if (child == null) {
+                LinkedHashMap<String,GridFuseDirNode> edit = copyChildren();
+                child = new GridFuseDirNode(childName, this);
+                edit.put(childName, child);
+                publishChildren(edit);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Takes this node out of its parent's children.
+     */
+    public void removeFromParent() {
+        GridFuseDirNode oldParent = parent;
+        if (oldParent == null) {
+            return;
+        }
+        synchronized (oldParent) {
+            if (oldParent.children.get(name) == this) {
+                LinkedHashMap<String,GridFuseDirNode> edit = oldParent.copyChildren();
+                edit.remove(name);
+                oldParent.publishChildren(edit);
+            }
+            parent = null;
+        }
+    }
+
+    public int getChildCount() {
+        return children.size();
+    }
+
+    /**
+     * @return Collection of the children as they are now, in the order they were added.
+     *         Later changes to the node don't affect it.
+     */
+    public Collection<GridFuseDirNode> children() {
+        return children.values();
+    }
+
+    /**
+     * Starts a change to the children. Call with the node's lock held,
+     * and hand the result to publishChildren() when done.
+     *
+     * @return LinkedHashMap a copy of the children to change.
+     */
+    LinkedHashMap<String,GridFuseDirNode> copyChildren() {
+        return new LinkedHashMap<String,GridFuseDirNode>(children);
+    }
+
+    /**
+     * Makes changed children visible to readers, all at once.
+     * Call with the node's lock held.
+     *
+     * @param edit the changed copy from copyChildren(), not to be changed again.
+     */
+    void publishChildren(LinkedHashMap<String,GridFuseDirNode> edit) {
+        children = edit.isEmpty() ? NO_CHILDREN : Collections.unmodifiableMap(edit);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(userObject);
+    }
+}
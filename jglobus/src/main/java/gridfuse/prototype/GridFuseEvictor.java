@@ -0,0 +1,434 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the local cache under a disk quota by deleting cached copies
+ * of files nobody is using.
+ *
+ * Cached files are kept in least recently used order. Once they add up
+ * to more than evictHighWatermark percent of cacheQuotaMB, files are
+ * evicted in the background until they're under evictLowWatermark
+ * percent. With evictionPolicy = lru the least recently used file goes
+ * first. With evictionPolicy = size the oldest few files are weighed by
+ * size times idle time, so one big old file goes before many small ones.
+ *
+ * How often each file is opened is tracked in a GridFuseFrequencySketch,
+ * so a scan reading every file once can't push out the files people use
+ * all the time. Of the least recently used files, the one opened least
+ * often goes first. A newly fetched file which is opened less often than
+ * the file it would push out isn't admitted, it is evicted itself as
+ * soon as it is released. The sketch is saved at shutdown, so the hot
+ * set isn't forgotten on restart.
+ *
+ * Files which are open are never evicted, nor are files the cache says
+ * aren't evictable, which is how dirty files are kept until they have
+ * been written back.
+ */
+public class GridFuseEvictor {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    public static final int POLICY_LRU = 0;
+    public static final int POLICY_SIZE = 1;
+    //Least recently used files weighed against each other when picking one to evict
+    private static final int CANDIDATES = 16;
+
+    final long QUOTA;
+    final long HIGH_WATERMARK;
+    final long LOW_WATERMARK;
+    final int POLICY;
+    final String localrootdir;
+    //Says whether a cached file may be evicted, apart from being open
+    final Predicate<String> evictable;
+    //Told about each file after its cached copy is deleted
+    final Consumer<String> evicted;
+    //Cached files, least recently used first
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long totalBytes = 0L;
+    private final ExecutorService evictExec = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    //How often files have been opened lately
+    final GridFuseFrequencySketch sketch;
+    final File sketchFile;
+
+    /**
+     * A cached file.
+     */
+    private static class Entry {
+        long size;
+        long lastAccess;
+        //Opens not yet released
+        int openCount;
+        //False until a newly fetched file has been let into the cache
+        boolean admitted = true;
+
+        Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for localrootdir,
+     *                       cacheQuotaMB, evictHighWatermark, evictLowWatermark,
+     *                       evictionPolicy, frequencySketchSize and frequencyStateFile.
+     * @param evictable, says whether a cached file may be evicted.
+     * @param evicted, told about each file after its cached copy is deleted.
+     */
+    public GridFuseEvictor(HashMap<String,String> GridFuseProps, Predicate<String> evictable, Consumer<String> evicted) {
+        this.evictable = evictable;
+        this.evicted = evicted;
+        localrootdir = GridFuseProps.get("localrootdir");
+        QUOTA = 1024L*1024L * Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "cacheQuotaMB", 10240));
+        int high = Math.max(1, Math.min(100, GridFuseProperties.getIntProperty(GridFuseProps, "evictHighWatermark", 90)));
+        int low = Math.max(0, Math.min(high, GridFuseProperties.getIntProperty(GridFuseProps, "evictLowWatermark", 75)));
+        HIGH_WATERMARK = QUOTA / 100 * high;
+        LOW_WATERMARK = QUOTA / 100 * low;
+        POLICY = "size".equalsIgnoreCase(GridFuseProps.get("evictionPolicy")) ? POLICY_SIZE : POLICY_LRU;
+        sketch = new GridFuseFrequencySketch(GridFuseProperties.getIntProperty(GridFuseProps, "frequencySketchSize", 65536));
+        String stateFile = GridFuseProps.get("frequencyStateFile");
+        sketchFile = new File((stateFile == null || stateFile.trim().isEmpty()) ? GridFuseProps.get("GRID_FUSE_CONF")+"/frequency.sketch" : stateFile.trim());
+        if (sketchFile.exists()) {
+            try {
+                if (!sketch.load(sketchFile)) {
+                    LOGGER.info("frequencySketchSize has changed, starting with no access counts");
+                }
+            } catch (IOException ioE) {
+                LOGGER.log(Level.WARNING, "Couldn't load access counts from "+sketchFile, ioE);
+            }
+        }
+    }
+
+    /**
+     * Finds the files already in the local cache, oldest first,
+     * so they can be evicted too.
+     */
+    public void scan() {
+        List<File> found = new ArrayList<File>();
+        listFiles(new File(localrootdir), found);
+        Collections.sort(found, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        synchronized (this) {
+            for (File file : found) {
+                String path = file.getPath().substring(localrootdir.length());
+                if (!entries.containsKey(path)) {
+                    entries.put(path, new Entry(file.length(), file.lastModified()));
+                    totalBytes += file.length();
+                }
+            }
+        }
+        LOGGER.info("Local cache holds "+found.size()+" files, "+totalBytes/(1024*1024)+"MB of "+QUOTA/(1024*1024)+"MB");
+        maybeEvict();
+    }
+
+    private static void listFiles(File dir, List<File> found) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listFiles(file, found);
+            }
+            else {
+                found.add(file);
+            }
+        }
+    }
+
+    /**
+     * Called before a file is opened. It can't be evicted until it is released.
+     *
+     * @param path describes where the file is.
+     * @param size expected size of the cached copy, negative if unknown.
+     */
+    public synchronized void opened(String path, long size) {
+        sketch.increment(path);
+        boolean fetching = !entries.containsKey(path) && !new File(localrootdir+path).exists();
+        Entry entry = touch(path);
+        if (fetching) {
+            //It has to earn its place in the cache when it is released
+            entry.admitted = false;
+        }
+        entry.openCount++;
+        if (size > entry.size) {
+            totalBytes += size - entry.size;
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Called when a file has been fetched ahead of being opened. It has
+     * to earn its place in the cache like any other newly fetched file.
+     *
+     * @param path describes where the file is.
+     * @param size size of the cached copy.
+     */
+    public synchronized void prefetched(String path, long size) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = new Entry(size, System.currentTimeMillis());
+            entry.admitted = false;
+            entries.put(path, entry);
+            totalBytes += size;
+        }
+    }
+
+    /**
+     * @param size bytes about to be fetched.
+     * @return boolean, true if they fit under the high watermark.
+     */
+    public synchronized boolean hasRoom(long size) {
+        return totalBytes + Math.max(0L, size) <= HIGH_WATERMARK;
+    }
+
+    /**
+     * Called when an open failed, so there will be no release.
+     *
+     * @param path describes where the file is.
+     */
+    public synchronized void openFailed(String path) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.openCount > 0) {
+            entry.openCount--;
+        }
+    }
+
+    /**
+     * Called when a file is released. Evicts in the background if the cache is too full.
+     *
+     * @param path describes where the file is.
+     * @param size size of the cached copy, negative to keep the size from opened().
+     */
+    public void released(String path, long size) {
+        synchronized (this) {
+            Entry entry = touch(path);
+            if (entry.openCount > 0) {
+                entry.openCount--;
+            }
+            if (size >= 0) {
+                totalBytes += size - entry.size;
+                entry.size = size;
+            }
+            if (!entry.admitted && entry.openCount == 0 && size >= 0) {
+                admit(path, entry);
+            }
+        }
+        maybeEvict();
+    }
+
+    /**
+     * Decides whether a newly fetched file stays in the cache. While the
+     * cache has room it does. Once it is full, the file is evicted straight
+     * away if it is opened less often than the file which would be evicted
+     * to make room. On a tie it stays, its bytes have already been fetched
+     * and its entry is the most recent. Call with the lock held.
+     *
+     * @param path describes where the file is.
+     * @param entry the file's entry.
+     */
+    private void admit(String path, Entry entry) {
+        if (totalBytes > HIGH_WATERMARK) {
+            String victim = pickVictim(path);
+            if (victim != null && sketch.frequency(path) < sketch.frequency(victim) && evictable.test(path)) {
+                LOGGER.fine("Not keeping "+path+", it is opened less often than "+victim);
+                delete(path, entry);
+                return;
+            }
+        }
+        entry.admitted = true;
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @return Entry for the file, moved to the most recently used end.
+     */
+    private Entry touch(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = new Entry(0L, 0L);
+            entries.put(path, entry);
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        return entry;
+    }
+
+    /**
+     * Stops tracking a file, because it has been deleted.
+     *
+     * @param path describes where the file was.
+     */
+    public synchronized void forget(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Tracks a file under its new name.
+     *
+     * @param path where the file was.
+     * @param newpath where the file is now.
+     */
+    public synchronized void renamed(String path, String newpath) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            forget(newpath);
+            entries.put(newpath, entry);
+        }
+    }
+
+    /**
+     * Deletes a file's cached copy now, unless it is open or not evictable.
+     *
+     * @param path describes where the file is.
+     * @return boolean, true if the cached copy is gone.
+     */
+    public synchronized boolean evict(String path) {
+        Entry entry = entries.get(path);
+        if ((entry != null && entry.openCount > 0) || !evictable.test(path)) {
+            return false;
+        }
+        delete(path, entry);
+        return true;
+    }
+
+    /**
+     * Starts evicting in the background if the cache is over the high watermark.
+     */
+    public void maybeEvict() {
+        synchronized (this) {
+            if (totalBytes <= HIGH_WATERMARK) {
+                return;
+            }
+        }
+        if (evicting.compareAndSet(false, true)) {
+            try {
+                evictExec.execute(this::evictToLowWatermark);
+            } catch (RejectedExecutionException reE) {
+                //Shutting down
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Evicts files until the cache is under the low watermark,
+     * or nothing more can be evicted.
+     */
+    private void evictToLowWatermark() {
+        try {
+            int count = 0;
+            long freed = 0L;
+            while (true) {
+                synchronized (this) {
+                    if (totalBytes <= LOW_WATERMARK) {
+                        break;
+                    }
+                    String victim = pickVictim(null);
+                    if (victim == null) {
+                        LOGGER.warning("Local cache is over its quota but everything left is open or not written back ("
+                                       +totalBytes/(1024*1024)+"MB)");
+                        break;
+                    }
+                    Entry entry = entries.get(victim);
+                    freed += entry.size;
+                    count++;
+                    delete(victim, entry);
+                }
+            }
+            if (count > 0) {
+                LOGGER.info("Evicted "+count+" files, "+freed/(1024*1024)+"MB, from the local cache");
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Picks the next file to evict from the least recently used few,
+     * the one opened least often, or with the size policy the one with
+     * the most size times idle time per open. Call with the lock held.
+     *
+     * @param exclude a file not to pick, may be null.
+     * @return String path of the file, or null if nothing can be evicted.
+     */
+    private String pickVictim(String exclude) {
+        long now = System.currentTimeMillis();
+        String best = null;
+        double bestScore = -1;
+        int candidates = 0;
+        for (Map.Entry<String,Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.openCount > 0 || e.getKey().equals(exclude) || !evictable.test(e.getKey())) {
+                continue;
+            }
+            //Least recently used wins ties
+            double score = 1.0 / (1 + sketch.frequency(e.getKey()));
+            if (POLICY == POLICY_SIZE) {
+                score *= (double) Math.max(1L, entry.size) * Math.max(1L, now - entry.lastAccess);
+            }
+            if (score > bestScore) {
+                best = e.getKey();
+                bestScore = score;
+            }
+            if (++candidates >= CANDIDATES) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Deletes a file's cached copy and stops tracking it. Call with the lock held.
+     *
+     * @param path describes where the file is.
+     * @param entry the file's entry, may be null.
+     */
+    private void delete(String path, Entry entry) {
+        File file = new File(localrootdir+path);
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("Couldn't evict "+path);
+            return;
+        }
+        if (entry != null) {
+            entries.remove(path);
+            totalBytes -= entry.size;
+        }
+        LOGGER.fine("Evicted "+path);
+        evicted.accept(path);
+    }
+
+    /**
+     * @return long bytes in the local cache.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Stops evicting and saves the access counts for next time.
+     */
+    public void close() {
+        evictExec.shutdownNow();
+        try {
+            sketch.save(sketchFile);
+        } catch (IOException ioE) {
+            LOGGER.log(Level.WARNING, "Couldn't save access counts to "+sketchFile, ioE);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package gridfuse.prototype;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Estimates how often each file has been opened, in a fixed amount of
+ * memory however many files there are.
+ *
+ * This is a count-min sketch: each path picks one counter in each of
+ * four rows, an open increments them, and the estimate is the smallest
+ * of the four. Hash collisions can only make estimates too high.
+ * Each row hashes the path's characters with its own seed, so two paths
+ * which collide in one row are unlikely to collide in the others.
+ * Counters are four bits each, so they stop at 15.
+ *
+ * Once there have been ten opens per counter in a row, every counter is
+ * halved. That ages old popularity away, so files which were hot last
+ * month don't stay hot forever.
+ */
+public class GridFuseFrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    //Opens per counter in a row between agings
+    private static final int SAMPLE_FACTOR = 10;
+    private static final int MAGIC = 0x47465346;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x27D4EB2F165667C5L};
+
+    //Counters per row, a power of two
+    final int width;
+    //Two counters to a byte, row after row
+    private final byte[] table;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param counters counters per row, rounded up to a power of two.
+     */
+    public GridFuseFrequencySketch(int counters) {
+        width = Integer.highestOneBit((Math.max(64, Math.min(1 << 26, counters)) - 1) << 1);
+        table = new byte[ROWS * width / 2];
+        sampleSize = SAMPLE_FACTOR * width;
+    }
+
+    /**
+     * @param path the file.
+     * @return int[] index of the file's counter in each row.
+     */
+    private int[] indexes(String path) {
+        long[] hashes = SEEDS.clone();
+        //One pass over the characters, mixing each into every row's hash
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            for (int row = 0; row < ROWS; row++) {
+                hashes[row] = (hashes[row] ^ c) * 0x100000001B3L + SEEDS[row];
+            }
+        }
+        int[] counters = new int[ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            //Spread every bit of the hash into the low bits the index uses
+            long hash = hashes[row];
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            counters[row] = row * width + ((int) hash & (width - 1));
+        }
+        return counters;
+    }
+
+    private int get(int counter) {
+        return (table[counter >> 1] >> ((counter & 1) << 2)) & 0xF;
+    }
+
+    /**
+     * Counts one open of a file.
+     *
+     * @param path the file.
+     */
+    public synchronized void increment(String path) {
+        int min = MAX_COUNT;
+        int[] counters = indexes(path);
+        for (int counter : counters) {
+            min = Math.min(min, get(counter));
+        }
+        if (min == MAX_COUNT) {
+            return;
+        }
+        //Only the smallest counters go up, which keeps collisions from inflating the rest
+        for (int counter : counters) {
+            if (get(counter) == min) {
+                table[counter >> 1] += 1 << ((counter & 1) << 2);
+            }
+        }
+        if (++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * @param path the file.
+     * @return int roughly how many times the file has been opened lately, 0 to 15.
+     */
+    public synchronized int frequency(String path) {
+        int min = MAX_COUNT;
+        for (int counter : indexes(path)) {
+            min = Math.min(min, get(counter));
+        }
+        return min;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void age() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) ((table[i] >> 1) & 0x77);
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Writes the sketch to a file, replacing the old file in one go.
+     *
+     * @param stateFile where to write it.
+     *
+     * @throws IOException when the file can't be written.
+     */
+    public synchronized void save(File stateFile) throws IOException {
+        stateFile.getParentFile().mkdirs();
+        File tmp = new File(stateFile.getPath()+".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(additions);
+            out.write(table);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Couldn't replace "+stateFile);
+        }
+    }
+
+    /**
+     * Reads counts written by save() into this sketch.
+     *
+     * @param stateFile where the sketch was written.
+     * @return boolean, false if it was saved with a different size and can't be used.
+     *
+     * @throws IOException when the file can't be read.
+     */
+    public synchronized boolean load(File stateFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(stateFile+" isn't a saved frequency sketch");
+            }
+            if (in.readInt() != width) {
+                return false;
+            }
+            int saved = in.readInt();
+            in.readFully(table);
+            additions = saved;
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package gridfuse.prototype;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A GridFuseDirTree kept on the heap, chosen with metadataStore = heap.
+ *
+ * Each node finds its children by name in a hash map, so looking
+ * up a path takes time proportional to its depth, not to the size
+ * of the directories along it.
+ *
+ * The tree can be used from many threads at once. Lookups and
+ * listings never block, they read the current snapshot of each
+ * directory's children. Changes to a directory are made by one
+ * writer at a time, holding that directory node's lock, and
+ * published as a new snapshot. See GridFuseDirNode.
+ */
+public class GridFuseHeapDirTree extends GridFuseDirTree {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+
+    //Metadata cache tree root node
+    private final GridFuseDirNode root = new GridFuseDirNode("/", null);
+
+    /**
+     * Constructor, creates root and its parent.
+     * Missing paths are remembered for 5 seconds.
+     */
+    public GridFuseHeapDirTree() {
+        super();
+    }
+
+    /**
+     * Constructor, creates root and its parent.
+     *
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       negativeCacheTTL and negativeCacheSize.
+     */
+    public GridFuseHeapDirTree(HashMap<String,String> GridFuseProps) {
+        super(GridFuseProps);
+    }
+
+    /**
+     * Adds the metadata of several files in the same directory to the
+     * tree, publishing the directory's new children once.
+     * Adding a directory's entries one at a time would copy its children
+     * for every entry.
+     *
+     * @param path where the files go in the tree.
+     * @param metaData FileStat metadata of each file.
+     */
+    @Override
+    protected void add_nodes(String path, List<FileStat> metaData) {
+        //Prepare tree
+        GridFuseDirNode current_dir = search_tree(path);
+
+        synchronized (current_dir) {
+            //Copied when the first new child turns up
+            LinkedHashMap<String,GridFuseDirNode> edit = null;
+            for (FileStat metaDatum : metaData) {
+                //Deal with current and parent directories
+                if( metaDatum.toString().equals(".") ) {
+                    //Update the current directory with the new details
+                    metaDatum.setFilename(current_dir.toString());
+                    try {
+                        //Try to keep the number of hard links when updating, otherwise don't worry.
+                        metaDatum.setNLink( ((FileStat) current_dir.getUserObject()).getNLink() );
+                    } catch (ClassCastException ccE) {
+                        //doesn't matter
+                    }
+                    current_dir.setUserObject( (Object) metaDatum );
+                }
+                else if( metaDatum.toString().equals("..") ) {
+                    //Update the parent directory with the new details
+                    GridFuseDirNode parent_dir = current_dir.getParent();
+                    if (parent_dir != null) {
+                        synchronized (parent_dir) {
+                            metaDatum.setFilename(parent_dir.toString());
+                            try {
+                                //Try to keep the number of hard links from the parent when updating, otherwise don't worry.
+                                metaDatum.setNLink( ((FileStat) parent_dir.getUserObject()).getNLink() );
+                            } catch (ClassCastException ccE) {
+                                //doesn't matter
+                            }
+                            parent_dir.setUserObject( (Object) metaDatum);
+                        }
+                    }
+                }
+                else {
+                    //Add to tree if it doesn't already exist, otherwise just update metadata
+                    GridFuseDirNode gotNode = (edit == null) ? current_dir.getChild(metaDatum.toString())
+                                                             : edit.get(metaDatum.toString());
+                    if (gotNode == null) {
+                        //Node didn't exist, add it to tree
+                        if (edit == null) {
+                            edit = current_dir.copyChildren();
+                        }
+                        edit.put(metaDatum.toString(), new GridFuseDirNode(metaDatum, current_dir));
+                        negativeCache.invalidate(childPath(path, metaDatum.toString()));
+                        if ( metaDatum.getType().equals("dir") ) {
+                            incrementNLink(current_dir);
+                        }
+                        continue;
+                    }
+                    //Make sure the node contains a FileStat object.
+                    FileStat gotUserObject;
+                    try {
+                        gotUserObject = (FileStat) gotNode.getUserObject();
+                        //Check if the remote file has been modified more recently
+                        if ( metaDatum.getMTime() > gotUserObject.getMTime() ) {
+                            gotUserObject.setCacheStatus(FileStat.CACHE_BEHIND);
+                        }
+                        //Only update the dirTree if the local file requires updating.
+                        if (gotUserObject.getCacheStatus() == FileStat.CACHE_BEHIND) {
+                            //Keep the number of hard links when updating
+                            metaDatum.setNLink( gotUserObject.getNLink() );
+                            //Share the node's copy of the name
+                            metaDatum.setFilename(gotNode.name);
+                            //Update existing node
+                            gotNode.setUserObject( (Object) metaDatum);
+                        }
+                    }
+                    catch (ClassCastException ccE) {
+                        //Node only contained a string, replace with FileStat
+                        metaDatum.setFilename(gotNode.name);
+                        gotNode.setUserObject( (Object) metaDatum);
+                        negativeCache.invalidate(childPath(path, metaDatum.toString()));
+                        if ( metaDatum.getType().equals("dir") ) {
+                            incrementNLink(current_dir);
+                        }
+                    }
+                }
+            }
+            if (edit != null) {
+                current_dir.publishChildren(edit);
+            }
+        }
+    }
+
+    /**
+     * Counts one more subdirectory in a directory's hard links.
+     * Call with the directory node's lock held.
+     *
+     * @param dir the directory.
+     */
+    private void incrementNLink(GridFuseDirNode dir) {
+        try {
+            ((FileStat) dir.getUserObject()).incrementNLink();
+        } catch (ClassCastException ccE) {
+            LOGGER.fine("Directory ("+dir.toString()+") is not a FileStat object yet.");
+        }
+    }
+
+    /**
+     * Searches through the cached directory tree down the given path
+     * creates nodes as it goes if they do not already exist.
+     * Created nodes contain a filename (String) as their userObject.
+     *
+     * @param path describes where the file should be located in the tree.
+     * @return GridFuseDirNode the node which represents the end of the given path
+     * with its ancestors defined by the rest of the path.
+     */
+    private GridFuseDirNode search_tree(String path) {
+        GridFuseDirNode current_dir = root;
+        //Walk down the tree a path component at a time
+        for ( String dir : path.split("/") ) {
+            if ( dir.equals("") ) {
+                continue;
+            }
+            //If it runs out of tree before it gets to the end of the path,
+            //this adds new nodes with just filenames
+            current_dir = current_dir.getOrAddChild(dir);
+        }
+        //It's in the tree now, so it isn't missing
+        negativeCache.invalidate(path);
+        return current_dir;
+    }
+
+    /**
+     * Makes sure a path is in the tree, adding nodes holding just
+     * filenames for any part of it which isn't.
+     *
+     * @param path describes where the file should be located in the tree.
+     */
+    @Override
+    protected void add_name(String path) {
+        search_tree(path);
+    }
+
+    /**
+     * Searches through the cached directory tree down the given path,
+     * without changing the tree.
+     *
+     * @param path describes where the file should be located in the tree.
+     * @return GridFuseDirNode the node which represents the end of the given path,
+     * or null if it isn't in the tree.
+     */
+    private GridFuseDirNode lookup(String path) {
+        GridFuseDirNode current_dir = root;
+        for ( String dir : path.split("/") ) {
+            if ( dir.equals("") ) {
+                continue;
+            }
+            current_dir = current_dir.getChild(dir);
+            if (current_dir == null) {
+                return null;
+            }
+        }
+        return current_dir;
+    }
+
+    /**
+     * Searches through the cached directory tree down the given path,
+     * without changing the tree.
+     *
+     * @param path describes where the file should be located in the tree.
+     * @throws ClassCastException when the path isn't in the tree,
+     *                            or its node doesn't contain a FileStat object.
+     * @return FileStat object, the metaData which represents the end of the given path.
+     */
+    @Override
+    protected FileStat find_file(String path) throws ClassCastException {
+        GridFuseDirNode node = lookup(path);
+        if (node == null) {
+            throw new ClassCastException(path+" isn't in the tree");
+        }
+        return (FileStat) node.getUserObject();
+    }
+
+    /**
+     * Provides cached metaData for the files inside a given directory.
+     *
+     * @param path the path to the directory you want.
+     * @return FileStat array containing cached metadata.
+     */
+    @Override
+    protected FileStat[] cached_readdir(String path) {
+        GridFuseDirNode dir = lookup(path);
+        ArrayList<FileStat> metasDatum = new ArrayList<FileStat>();
+        if (dir == null) {
+            return new FileStat[0];
+        }
+
+        try {
+            FileStat cdir = new FileStat((FileStat) dir.getUserObject());
+            cdir.setType("cdir");
+            metasDatum.add(cdir);
+        } catch (ClassCastException ccE) {
+            //I don't know why this might happen.
+            LOGGER.warning("ClassCastException with file (current directory): " + dir.getUserObject().toString());
+        }
+        if (!dir.isRoot()) {
+            try {
+                FileStat pdir = new FileStat((FileStat) dir.getParent().getUserObject());
+                pdir.setType("pdir");
+                metasDatum.add(pdir);
+            } catch (ClassCastException ccE2) {
+                //This should only happen when we're opening the root directory,
+                //in which case the parent should be the one on the local filesystem
+                //anyway.
+                LOGGER.fine("ClassCastException with file (parent directory): " + dir.getParent().getUserObject().toString());
+            }
+        }
+
+        //Iterate through directory contents
+        for (GridFuseDirNode gotNode : dir.children()) {
+            Object userObject = gotNode.getUserObject();
+            if (userObject instanceof FileStat) {
+                metasDatum.add((FileStat) userObject);
+            }
+            else {
+                //This can happen with files which are only in the local cache.
+                LOGGER.finest("ClassCastException with file: " + userObject.toString());
+            }
+        }
+
+        //Send back as an Array
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            //The whole tree, far too big to log on every readdir normally
+            printTree("/","\t",0);
+        }
+        return metasDatum.toArray(new FileStat[metasDatum.size()]);
+    }
+
+    /**
+     * Remove an entry from the dirTree.
+     *
+     * @param path That which is to be deleted.
+     */
+    @Override
+    protected void delete(String path) {
+        //Get the nodes for the file and its parent
+        GridFuseDirNode fileNode = lookup(path);
+        if (fileNode == null) {
+            //Nothing to delete
+            return;
+        }
+        GridFuseDirNode pNode = fileNode.getParent();
+        if (pNode == null) {
+            //Can't delete the root
+            return;
+        }
+
+        synchronized (pNode) {
+            fileNode.removeFromParent();
+            try {
+                //See if this is a directory (not a regular file)
+                if ( !((FileStat) fileNode.getUserObject()).getType().equals("file") ) {
+                    //Try to decrement the number of hard links to the parent directory
+                    try {
+                        ((FileStat) pNode.getUserObject()).decrementNLink();
+                    } catch (ClassCastException ccE) {
+                        LOGGER.fine("Parent node ("+pNode.toString()+") is not a FileStat object.");
+                    }
+                }
+            } catch (ClassCastException ccE) {
+                LOGGER.fine(fileNode.toString()+" is not a FileStat object.");
+            }
+        }
+        return;
+    }
+
+    /**
+     * Descends through the dirTree searching for files which are
+     * out of sync and returns an ArrayList of files to be 
+     * synchronised.
+     *
+     * @param path This is the path you want to start searching from.
+     * @param depth Number of levels deep you want to go.
+     *              0 for Just resyncing the current directory.
+     *              -1 for everything below this point.
+     */
+    @Override
+    public ArrayList<String> getUnSyncedPaths(String path, int depth, int direction) {
+        GridFuseDirNode node = lookup(path);
+        if (node == null) {
+            return new ArrayList<String>();
+        }
+        //Paths below here start with this prefix
+        String prefix = node.isRoot() ? "" : (path.endsWith("/") ? path.substring(0, path.length()-1) : path);
+        return getUnSyncedPaths(null, node, prefix, depth, direction);
+    }
+
+    /**
+     * Descends through the dirTree searching for files which are
+     * out of sync and returns an ArrayList of files to be 
+     * synchronised.
+     *
+     * @param node This is the node you want to start searching from.
+     * @param nodePath The path of node, "" for the root.
+     * @param depth Number of levels deep you want to go.
+     *              0 for Just resyncing the current directory.
+     *              -1 for everything below this point.
+     */
+    private ArrayList<String> getUnSyncedPaths(ArrayList<String> unsyncedPaths, GridFuseDirNode node, String nodePath, int depth, int direction) {
+        if (unsyncedPaths == null) {
+            unsyncedPaths = new ArrayList<String>();
+        }
+        //Iterate through the directory contents
+        for (GridFuseDirNode gotNode : node.children()) {
+            Object userObject = gotNode.getUserObject();
+            if (!(userObject instanceof FileStat)) {
+                //Only a name, nothing known to sync
+                continue;
+            }
+            FileStat gotUserObject = (FileStat) userObject;
+            //Build file path from the parent's path
+            String path = nodePath+"/"+gotNode.name;
+            if (gotUserObject.getType().contains("dir")) {
+                if ( depth != 0 ) {
+                    //Go deeper, everything down there is added to the same list
+                    getUnSyncedPaths(unsyncedPaths,gotNode,path,depth-1,direction);
+                }
+                else {
+                    //Don't need to copy directories so go on to the next file.
+                    continue;
+                }
+            }
+            else {
+                int cacheStatus = gotUserObject.getCacheStatus();
+                if (cacheStatus == direction) {
+                    //Add file to list of unsynced files
+                    unsyncedPaths.add(path);
+                    LOGGER.finer("Adding "+path+" to unsyncedPaths list");
+                }
+            }
+        }
+        return unsyncedPaths;
+    }
+
+    /**
+     * Uses Logger to recursively print cached directory tree structure 
+     * to terminal for debugging.
+     *
+     * @param node This is the node you want to start printing from. If node is
+     * null, print from root.
+     * @param treeStringBuilder StringBuilder which creates/holds the dirTree output
+     * @param prepender How you want to display the depth of the tree (e.g. "\t")
+     * @param depth Set this to 0, it increments itself when going deeper into the tree
+     */
+    private void printTree(GridFuseDirNode node, StringBuilder treeStringBuilder, String prepender, int depth) {
+        if (node == null) {
+            node = root;
+        }
+        if (depth < 0) {
+            depth = 0;
+        }
+        //This appends to the StringBuilder with [depth] copies of the prepender string
+        String prepending = new String(new char[depth]).replace("\0",prepender);
+        treeStringBuilder.append(prepending + node.toString() + "\n");
+        //Each time we get here, the tree will be at a deeper level so increment depth
+        depth++;
+        for (GridFuseDirNode gotNode : node.children()) {
+            printTree(gotNode, treeStringBuilder, prepender, depth);
+        }
+    }
+
+    /**
+     * Uses Logger to recursively print cached directory tree structure 
+     * to terminal for debugging.
+     *
+     * @param path This is the directory you want to start printing from. If path is
+     * null, print from root.
+     * @param prepender How you want to display the depth of the tree (e.g. "\t")
+     * @param depth Set this to 0, it increments itself when going deeper into the tree
+     */
+    @Override
+    protected void printTree(String path, String prepender, int depth) {
+        if (path == null) { path = "/"; }
+        StringBuilder treeStringBuilder = new StringBuilder();
+        GridFuseDirNode node = lookup(path);
+        if (node == null) {
+            LOGGER.info(path+" isn't in the directory tree");
+            return;
+        }
+        printTree(node,treeStringBuilder,prepender,depth);
+        LOGGER.info("Directory tree:\n"+treeStringBuilder.toString());
+        return;
+    }
+
+}
@@ -0,0 +1,620 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A GridFuseDirTree kept in memory-mapped files by a GridFuseMappedStore,
+ * chosen with metadataStore = mmap.
+ *
+ * With tens of millions of files the on-heap tree is tens of millions of
+ * objects, which the garbage collector has to trace however little of it
+ * changes. Here the tree takes next to no heap, the operating system's
+ * page cache decides which parts of it stay in memory, and garbage
+ * collection doesn't take longer as the store grows.
+ *
+ * The FileStats handed out are views of a record: reading one reads the
+ * record and changing one writes to it, as changing a FileStat in the
+ * heap tree does. Readers share a lock and writers take turns.
+ */
+public class GridFuseMappedDirTree extends GridFuseDirTree {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    private static final int ROOT = GridFuseMappedStore.ROOT;
+    //Entries added per turn with the write lock, an MLSR batch can be a whole directory
+    private static final int ENTRIES_PER_LOCK = 1024;
+
+    private final GridFuseMappedStore store;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       metadataStoreDir, negativeCacheTTL and negativeCacheSize.
+     *
+     * @throws IOException when the store's files can't be made.
+     */
+    public GridFuseMappedDirTree(HashMap<String,String> GridFuseProps) throws IOException {
+        super(GridFuseProps);
+        String dir = GridFuseProps.get("metadataStoreDir");
+        store = new GridFuseMappedStore(new File((dir == null || dir.trim().isEmpty()) ? GridFuseProps.get("GRID_FUSE_CONF")+"/metadata" : dir.trim()));
+    }
+
+    /**
+     * A FileStat which reads and writes a record in the store. Once the
+     * record is reused for another file the view is cut loose from it,
+     * and reads and writes its own empty fields instead.
+     */
+    private class MappedFileStat extends FileStat {
+        final int id;
+        final int generation;
+
+        //Only made with the lock held
+        MappedFileStat(int id) {
+            super("", 0);
+            this.id = id;
+            this.generation = store.getGeneration(id);
+        }
+
+        /**
+         * @return boolean, true if the record now belongs to another file.
+         */
+        private boolean reused() {
+            return store.getGeneration(id) != generation;
+        }
+
+        @Override
+        public String getFilename() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getFilename() : store.getName(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setFilename(String newfilename) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setFilename(newfilename);
+                }
+                else {
+                    store.setName(id, newfilename);
+                }
+            } catch (IOException ioE) {
+                throw new UncheckedIOException(ioE);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        int typeId() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.typeId() : store.getType(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setType(String newtype) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setType(newtype);
+                }
+                else {
+                    store.setType(id, FileStat.typeIdOf(newtype));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public int getMode() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getMode() : store.getMode(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        int ownerId() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.ownerId() : store.getOwner(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        int groupId() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.groupId() : store.getGroup(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public long getSizeBytes() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getSizeBytes() : store.getSize(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setSize(long newsize) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setSize(newsize);
+                }
+                else {
+                    store.setSize(id, Math.max(-1L, newsize));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public long getMTime() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getMTime() : store.getMTime(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setMTime(long newmtime) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setMTime(newmtime);
+                }
+                else {
+                    store.setMTime(id, newmtime);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public long getNLink() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getNLink() : store.getNLink(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setNLink(long newnlink) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setNLink(newnlink);
+                }
+                else {
+                    store.setNLink(id, (int) Math.min(Integer.MAX_VALUE, newnlink));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public void incrementNLink() {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.incrementNLink();
+                }
+                else {
+                    store.setNLink(id, store.getNLink(id) + 1);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public void decrementNLink() {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.decrementNLink();
+                }
+                else {
+                    store.setNLink(id, Math.max(0, store.getNLink(id) - 1));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        @Override
+        public int getCacheStatus() {
+            lock.readLock().lock();
+            try {
+                return reused() ? super.getCacheStatus() : store.getCacheStatus(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        @Override
+        public void setCacheStatus(int newcacheStatus) {
+            lock.writeLock().lock();
+            try {
+                if (reused()) {
+                    super.setCacheStatus(newcacheStatus);
+                }
+                else {
+                    store.setCacheStatus(id, newcacheStatus);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds file or directory metaData to the tree.
+     *
+     * @param path where the file goes in the tree.
+     * @param metaDatum FileStat metadata.
+     *
+     * @return FileStat view of the file now in the tree.
+     */
+    @Override
+    protected FileStat add_node(String path, FileStat metaDatum) {
+        add_nodes(path, Collections.singletonList(metaDatum));
+        try {
+            return find_file(childPath(path, metaDatum.toString()));
+        } catch (ClassCastException ccE) {
+            //"." or "..", which update a directory rather than add a file
+            return metaDatum;
+        }
+    }
+
+    /**
+     * Adds the metadata of several files in the same directory to the tree.
+     * Files already there are updated the same way as in GridFuseHeapDirTree.
+     * The write lock is let go every ENTRIES_PER_LOCK entries, so readers
+     * aren't held up while a huge directory goes in.
+     *
+     * @param path where the files go in the tree.
+     * @param metaData FileStat metadata of each file.
+     */
+    @Override
+    protected void add_nodes(String path, List<FileStat> metaData) {
+        int from = 0;
+        do {
+            int to = Math.min(metaData.size(), from + ENTRIES_PER_LOCK);
+            addEntries(path, metaData.subList(from, to));
+            from = to;
+        } while (from < metaData.size());
+    }
+
+    /**
+     * Adds some of the files in a directory, holding the write lock throughout.
+     * The directory is looked up again each time, it may have been
+     * removed and put back while the lock was let go.
+     *
+     * @param path where the files go in the tree.
+     * @param metaData FileStat metadata of each file.
+     */
+    private void addEntries(String path, List<FileStat> metaData) {
+        lock.writeLock().lock();
+        try {
+            int current_dir = searchId(path);
+            negativeCache.invalidate(path);
+            for (FileStat metaDatum : metaData) {
+                String name = metaDatum.toString();
+                if (name.equals(".") || name.equals("..")) {
+                    //Update the current or parent directory with the new details
+                    int dir = name.equals(".") ? current_dir : store.getParent(current_dir);
+                    if (dir < 0) {
+                        continue;
+                    }
+                    //Try to keep the number of hard links when updating
+                    boolean hadMeta = store.hasMeta(dir);
+                    int nlink = store.getNLink(dir);
+                    store.setMeta(dir, metaDatum);
+                    if (hadMeta) {
+                        store.setNLink(dir, nlink);
+                    }
+                    continue;
+                }
+                int got = store.child(current_dir, name);
+                if (got < 0) {
+                    //Didn't exist, add it
+                    got = store.addChild(current_dir, name);
+                    store.setMeta(got, metaDatum);
+                    negativeCache.invalidate(childPath(path, name));
+                    if (metaDatum.getType().equals("dir")) {
+                        incrementNLink(current_dir);
+                    }
+                }
+                else if (store.hasMeta(got)) {
+                    //Check if the remote file has been modified more recently
+                    if (metaDatum.getMTime() > store.getMTime(got)) {
+                        store.setCacheStatus(got, FileStat.CACHE_BEHIND);
+                    }
+                    //Only update if the local file requires updating
+                    if (store.getCacheStatus(got) == FileStat.CACHE_BEHIND) {
+                        //Keep the number of hard links when updating
+                        int nlink = store.getNLink(got);
+                        store.setMeta(got, metaDatum);
+                        store.setNLink(got, nlink);
+                    }
+                }
+                else {
+                    //Only had a name, now it has metadata
+                    store.setMeta(got, metaDatum);
+                    negativeCache.invalidate(childPath(path, name));
+                    if (metaDatum.getType().equals("dir")) {
+                        incrementNLink(current_dir);
+                    }
+                }
+            }
+        } catch (IOException ioE) {
+            LOGGER.log(Level.SEVERE, "Couldn't add files in "+path+" to the metadata store", ioE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Counts one more subdirectory in a directory's hard links.
+     * Call with the write lock held.
+     *
+     * @param dir the directory's record.
+     */
+    private void incrementNLink(int dir) {
+        if (store.hasMeta(dir)) {
+            store.setNLink(dir, store.getNLink(dir) + 1);
+        }
+    }
+
+    /**
+     * Finds a path's record, adding records holding just names for any
+     * part of it which isn't there. Call with the write lock held.
+     *
+     * @param path describes where the file should be located in the tree.
+     * @return int the record.
+     *
+     * @throws IOException when the store can't grow.
+     */
+    private int searchId(String path) throws IOException {
+        int id = ROOT;
+        for (String dir : path.split("/")) {
+            if (dir.equals("")) {
+                continue;
+            }
+            int child = store.child(id, dir);
+            id = (child < 0) ? store.addChild(id, dir) : child;
+        }
+        return id;
+    }
+
+    /**
+     * Finds a path's record. Call with a lock held.
+     *
+     * @param path describes where the file should be located in the tree.
+     * @return int the record, or -1 if it isn't there.
+     */
+    private int lookupId(String path) {
+        int id = ROOT;
+        for (String dir : path.split("/")) {
+            if (dir.equals("")) {
+                continue;
+            }
+            id = store.child(id, dir);
+            if (id < 0) {
+                return -1;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Makes sure a path is in the tree, adding records holding just
+     * names for any part of it which isn't.
+     *
+     * @param path describes where the file should be located in the tree.
+     */
+    @Override
+    protected void add_name(String path) {
+        lock.writeLock().lock();
+        try {
+            searchId(path);
+            negativeCache.invalidate(path);
+        } catch (IOException ioE) {
+            LOGGER.log(Level.SEVERE, "Couldn't add "+path+" to the metadata store", ioE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param path describes where the file should be located in the tree.
+     * @throws ClassCastException when the path isn't in the tree,
+     *                            or only its name is.
+     * @return FileStat view of the file's record.
+     */
+    @Override
+    protected FileStat find_file(String path) throws ClassCastException {
+        lock.readLock().lock();
+        try {
+            int id = lookupId(path);
+            if (id < 0 || !store.hasMeta(id)) {
+                throw new ClassCastException(path+" has no metadata in the tree");
+            }
+            return new MappedFileStat(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param path the path to the directory you want.
+     * @return FileStat array containing cached metadata.
+     */
+    @Override
+    protected FileStat[] cached_readdir(String path) {
+        lock.readLock().lock();
+        try {
+            int dir = lookupId(path);
+            if (dir < 0) {
+                return new FileStat[0];
+            }
+            ArrayList<FileStat> metasDatum = new ArrayList<FileStat>();
+            if (store.hasMeta(dir)) {
+                FileStat cdir = new FileStat(new MappedFileStat(dir));
+                cdir.setType("cdir");
+                metasDatum.add(cdir);
+            }
+            int parent = store.getParent(dir);
+            if (parent >= 0 && store.hasMeta(parent)) {
+                FileStat pdir = new FileStat(new MappedFileStat(parent));
+                pdir.setType("pdir");
+                metasDatum.add(pdir);
+            }
+            for (int child = store.getFirstChild(dir); child >= 0; child = store.getNextSibling(child)) {
+                if (store.hasMeta(child)) {
+                    metasDatum.add(new MappedFileStat(child));
+                }
+            }
+            return metasDatum.toArray(new FileStat[metasDatum.size()]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an entry from the tree.
+     *
+     * @param path That which is to be deleted.
+     */
+    @Override
+    protected void delete(String path) {
+        lock.writeLock().lock();
+        try {
+            int id = lookupId(path);
+            if (id <= ROOT) {
+                //Nothing to delete, or the root
+                return;
+            }
+            int parent = store.getParent(id);
+            boolean dir = store.hasMeta(id) && !"file".equals(FileStat.typeName(store.getType(id)));
+            store.remove(id);
+            if (dir && store.hasMeta(parent)) {
+                //One less subdirectory linking to the parent
+                store.setNLink(parent, Math.max(0, store.getNLink(parent) - 1));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Descends through the tree searching for files which are
+     * out of sync. Takes the lock one directory at a time,
+     * so writers aren't held up for the whole walk.
+     *
+     * @param path This is the path you want to start searching from.
+     * @param depth Number of levels deep you want to go.
+     *              0 for Just resyncing the current directory.
+     *              -1 for everything below this point.
+     */
+    @Override
+    public ArrayList<String> getUnSyncedPaths(String path, int depth, int direction) {
+        ArrayList<String> unsyncedPaths = new ArrayList<String>();
+        int start;
+        lock.readLock().lock();
+        try {
+            start = lookupId(path);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (start < 0) {
+            return unsyncedPaths;
+        }
+        String prefix = (start == ROOT) ? "" : (path.endsWith("/") ? path.substring(0, path.length()-1) : path);
+        getUnSyncedPaths(unsyncedPaths, start, prefix, depth, direction);
+        return unsyncedPaths;
+    }
+
+    private void getUnSyncedPaths(ArrayList<String> unsyncedPaths, int dir, String dirPath, int depth, int direction) {
+        ArrayList<String> subdirPaths = new ArrayList<String>();
+        ArrayList<Integer> subdirs = new ArrayList<Integer>();
+        lock.readLock().lock();
+        try {
+            for (int child = store.getFirstChild(dir); child >= 0; child = store.getNextSibling(child)) {
+                if (!store.hasMeta(child)) {
+                    //Only a name, nothing known to sync
+                    continue;
+                }
+                String path = dirPath+"/"+store.getName(child);
+                if (FileStat.typeName(store.getType(child)).contains("dir")) {
+                    if (depth != 0) {
+                        subdirPaths.add(path);
+                        subdirs.add(child);
+                    }
+                }
+                else if (store.getCacheStatus(child) == direction) {
+                    unsyncedPaths.add(path);
+                    LOGGER.finer("Adding "+path+" to unsyncedPaths list");
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int i = 0; i < subdirs.size(); i++) {
+            getUnSyncedPaths(unsyncedPaths, subdirs.get(i), subdirPaths.get(i), depth-1, direction);
+        }
+    }
+
+    /**
+     * Uses Logger to recursively print the tree for debugging.
+     *
+     * @param path This is the directory you want to start printing from. If path is
+     * null, print from root.
+     * @param prepender How you want to display the depth of the tree (e.g. "\t")
+     * @param depth Set this to 0, it increments itself when going deeper into the tree
+     */
+    @Override
+    protected void printTree(String path, String prepender, int depth) {
+        if (path == null) { path = "/"; }
+        StringBuilder treeStringBuilder = new StringBuilder();
+        lock.readLock().lock();
+        try {
+            int id = lookupId(path);
+            if (id < 0) {
+                LOGGER.info(path+" isn't in the directory tree");
+                return;
+            }
+            printTree(id, treeStringBuilder, prepender, Math.max(0, depth));
+        } finally {
+            lock.readLock().unlock();
+        }
+        LOGGER.info("Directory tree:\n"+treeStringBuilder.toString());
+    }
+
+    private void printTree(int id, StringBuilder treeStringBuilder, String prepender, int depth) {
+        String prepending = new String(new char[depth]).replace("\0",prepender);
+        treeStringBuilder.append(prepending + store.getName(id) + "\n");
+        for (int child = store.getFirstChild(id); child >= 0; child = store.getNextSibling(child)) {
+            printTree(child, treeStringBuilder, prepender, depth+1);
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the cached directory tree in memory-mapped files instead of
+ * on the Java heap, for GridFuseMappedDirTree.
+ *
+ * Every file or directory is a fixed-width record, numbered from 0
+ * (the root). A record holds its metadata, the number of its parent,
+ * and links to its first and last child and its siblings, which keep
+ * a directory's files in the order they were added. Names are written
+ * one after another into a separate file, the name arena. A third file
+ * holds an open-addressed hash table from (parent, name) to record, so
+ * finding a file in a directory takes the same time however big it is.
+ *
+ * The files are deleted as soon as they're open, so they go away when
+ * the process does and nothing is kept across restarts; MLSR fills the
+ * tree again.
+ *
+ * Records of deleted files go on a free list and are reused once
+ * REUSE_DELAY more have been freed after them, so a FileStat view of a
+ * file just deleted can still read it. Each reuse bumps the record's
+ * generation, which lets a view tell its file has gone. Names which are
+ * no longer used are dropped by copying the rest into a new name arena,
+ * once more than half of it is dead.
+ *
+ * Not thread safe, GridFuseMappedDirTree does the locking.
+ */
+public class GridFuseMappedStore {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    public static final int ROOT = 0;
+    //Record type of a file whose metadata isn't known, besides the ids FileStat gives real types
+    public static final byte NAME_ONLY = -1;
+
+    //Record layout
+    private static final int RECORD_SIZE = 64;
+    private static final int PARENT = 0;
+    private static final int FIRST_CHILD = 4;
+    private static final int LAST_CHILD = 8;
+    private static final int NEXT_SIBLING = 12;
+    private static final int PREV_SIBLING = 16;
+    //Length of the name in bytes, the top bit is set once the record is deleted
+    private static final int NAME_LENGTH = 20;
+    private static final int LENGTH_MASK = 0x7FFF;
+    private static final int DELETED = 0x8000;
+    private static final int TYPE = 22;
+    private static final int CACHE_STATUS = 23;
+    private static final int NAME_OFFSET = 24;
+    private static final int SIZE = 32;
+    private static final int MTIME = 40;
+    private static final int MODE = 48;
+    //Bumped each time the record is reused
+    private static final int GENERATION = 50;
+    private static final int OWNER = 52;
+    private static final int GROUP = 56;
+    private static final int NLINK = 60;
+    private static final int NONE = -1;
+
+    //Each file is mapped in pieces of this size (64MB)
+    private static final int SEGMENT_SHIFT = 26;
+    //Index slots hold record+1 (0 for empty, -1 for removed) and the key's hash
+    private static final int SLOT_SIZE = 8;
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final int MIN_SLOTS = 1 << 16;
+    //Freed records waiting behind a record before it's reused
+    private static final int REUSE_DELAY = 1024;
+    //Least dead space in the name arena worth compacting it for
+    private static final long MIN_DEAD_NAMES = 1L << SEGMENT_SHIFT;
+
+    private final File dir;
+    private final Segments records;
+    private Segments names;
+    private Segments index;
+    private int recordCount = 0;
+    //Freed records, oldest first, linked through NEXT_SIBLING
+    private int freeHead = NONE;
+    private int freeTail = NONE;
+    private int freeCount = 0;
+    private long namesEnd = 0L;
+    //Bytes of the name arena records point at, the rest is dead
+    private long liveNameBytes = 0L;
+    private int slots;
+    private int slotsUsed = 0;
+    private int slotsRemoved = 0;
+
+    /**
+     * Creates an empty store holding just the root, "/".
+     *
+     * @param dir where to put the files.
+     *
+     * @throws IOException when the files can't be made.
+     */
+    public GridFuseMappedStore(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        records = new Segments(dir, "records");
+        names = new Segments(dir, "names");
+        slots = MIN_SLOTS;
+        index = new Segments(dir, "index");
+        index.ensure((long) slots * SLOT_SIZE);
+        newRecord(NONE, "/");
+    }
+
+    /**
+     * @return int how many records there are, deleted ones included.
+     */
+    public int count() {
+        return recordCount;
+    }
+
+    /**
+     * @return int how many records are free to be reused.
+     */
+    public int freeCount() {
+        return freeCount;
+    }
+
+    /**
+     * @return long how far into the name arena names have been written.
+     */
+    long nameArenaSize() {
+        return namesEnd;
+    }
+
+    /**
+     * @return int how many slots the index has.
+     */
+    int indexSlots() {
+        return slots;
+    }
+
+    /**
+     * @param parent a directory's record.
+     * @param name name of a file in it.
+     * @return int the file's record, or -1 if it isn't there.
+     */
+    public int child(int parent, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(parent, nameBytes);
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long pos = (long) slot * SLOT_SIZE;
+            int stored = index.getInt(pos);
+            if (stored == EMPTY) {
+                return NONE;
+            }
+            if (stored != REMOVED && index.getInt(pos + 4) == hash) {
+                int id = stored - 1;
+                if (getParent(id) == parent && nameEquals(id, nameBytes)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a file to the end of a directory, holding just its name.
+     *
+     * @param parent the directory's record.
+     * @param name the file's name, not already in the directory.
+     * @return int the file's record.
+     *
+     * @throws IOException when the files can't grow.
+     */
+    public int addChild(int parent, String name) throws IOException {
+        int id = newRecord(parent, name);
+        int last = records.getInt(pos(parent) + LAST_CHILD);
+        if (last == NONE) {
+            records.putInt(pos(parent) + FIRST_CHILD, id);
+        }
+        else {
+            records.putInt(pos(last) + NEXT_SIBLING, id);
+            records.putInt(pos(id) + PREV_SIBLING, last);
+        }
+        records.putInt(pos(parent) + LAST_CHILD, id);
+        indexAdd(id, hash(parent, name.getBytes(StandardCharsets.UTF_8)));
+        return id;
+    }
+
+    /**
+     * Takes a file out of its directory, along with everything under it.
+     * Its metadata can still be read.
+     *
+     * @param id the file's record.
+     */
+    public void remove(int id) {
+        int parent = getParent(id);
+        if (parent == NONE || isDeleted(id)) {
+            return;
+        }
+        int prev = records.getInt(pos(id) + PREV_SIBLING);
+        int next = records.getInt(pos(id) + NEXT_SIBLING);
+        records.putInt((prev == NONE) ? pos(parent) + FIRST_CHILD : pos(prev) + NEXT_SIBLING, next);
+        records.putInt((next == NONE) ? pos(parent) + LAST_CHILD : pos(next) + PREV_SIBLING, prev);
+        unindex(id);
+    }
+
+    /**
+     * Takes a record and everything under it out of the index.
+     *
+     * @param id the record.
+     */
+    private void unindex(int id) {
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+        pending.add(id);
+        while (!pending.isEmpty()) {
+            int next = pending.remove(pending.size() - 1);
+            for (int child = getFirstChild(next); child != NONE; child = getNextSibling(child)) {
+                pending.add(child);
+            }
+            indexRemove(next);
+            records.putShort(pos(next) + NAME_LENGTH, (short) (records.getShort(pos(next) + NAME_LENGTH) | DELETED));
+            free(next);
+        }
+    }
+
+    /**
+     * Puts a deleted record at the end of the free list.
+     * Its children have been freed or queued to be already,
+     * as its sibling link is reused for the list.
+     *
+     * @param id the record.
+     */
+    private void free(int id) {
+        records.putInt(pos(id) + NEXT_SIBLING, NONE);
+        if (freeTail == NONE) {
+            freeHead = id;
+        }
+        else {
+            records.putInt(pos(freeTail) + NEXT_SIBLING, id);
+        }
+        freeTail = id;
+        freeCount++;
+    }
+
+    public int getParent(int id) {
+        return records.getInt(pos(id) + PARENT);
+    }
+
+    public int getFirstChild(int id) {
+        return records.getInt(pos(id) + FIRST_CHILD);
+    }
+
+    public int getNextSibling(int id) {
+        return records.getInt(pos(id) + NEXT_SIBLING);
+    }
+
+    public String getName(int id) {
+        long pos = pos(id);
+        byte[] bytes = new byte[records.getShort(pos + NAME_LENGTH) & LENGTH_MASK];
+        names.get(records.getLong(pos + NAME_OFFSET), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gives a record a new name, in the same directory.
+     *
+     * @param id the record.
+     * @param name the new name.
+     *
+     * @throws IOException when the files can't grow.
+     */
+    public void setName(int id, String name) throws IOException {
+        boolean indexed = !isDeleted(id) && getParent(id) != NONE;
+        if (indexed) {
+            indexRemove(id);
+        }
+        writeName(id, name);
+        if (indexed) {
+            indexAdd(id, hash(getParent(id), name.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * @param id the record.
+     * @return int how many times the record has been reused, wrapping at 65536.
+     */
+    public int getGeneration(int id) {
+        return records.getShort(pos(id) + GENERATION) & 0xFFFF;
+    }
+
+    /**
+     * @param id the record.
+     * @return boolean, true if the file has been taken out of the tree.
+     */
+    public boolean isDeleted(int id) {
+        return (records.getShort(pos(id) + NAME_LENGTH) & DELETED) != 0;
+    }
+
+    /**
+     * @param id the record.
+     * @return byte id of the file's type in FileStat's pool, or NAME_ONLY.
+     */
+    public byte getType(int id) {
+        return records.getByte(pos(id) + TYPE);
+    }
+
+    public void setType(int id, byte type) {
+        records.putByte(pos(id) + TYPE, type);
+    }
+
+    /**
+     * @param id the record.
+     * @return boolean, true if there's metadata for the file, not just its name.
+     */
+    public boolean hasMeta(int id) {
+        return getType(id) >= 0;
+    }
+
+    public byte getCacheStatus(int id) {
+        return records.getByte(pos(id) + CACHE_STATUS);
+    }
+
+    public void setCacheStatus(int id, int cacheStatus) {
+        records.putByte(pos(id) + CACHE_STATUS, (byte) cacheStatus);
+    }
+
+    public long getSize(int id) {
+        return records.getLong(pos(id) + SIZE);
+    }
+
+    public void setSize(int id, long size) {
+        records.putLong(pos(id) + SIZE, size);
+    }
+
+    public long getMTime(int id) {
+        return records.getLong(pos(id) + MTIME);
+    }
+
+    public void setMTime(int id, long mtime) {
+        records.putLong(pos(id) + MTIME, mtime);
+    }
+
+    public int getMode(int id) {
+        //Permission bits or -1, either fits a short
+        return records.getShort(pos(id) + MODE);
+    }
+
+    public int getOwner(int id) {
+        return records.getInt(pos(id) + OWNER);
+    }
+
+    public int getGroup(int id) {
+        return records.getInt(pos(id) + GROUP);
+    }
+
+    public int getNLink(int id) {
+        return records.getInt(pos(id) + NLINK);
+    }
+
+    public void setNLink(int id, int nlink) {
+        records.putInt(pos(id) + NLINK, nlink);
+    }
+
+    /**
+     * Copies a FileStat's metadata, all but the name, into a record.
+     *
+     * @param id the record.
+     * @param meta the metadata.
+     */
+    public void setMeta(int id, FileStat meta) {
+        long pos = pos(id);
+        records.putLong(pos + SIZE, meta.getSizeBytes());
+        records.putLong(pos + MTIME, meta.getMTime());
+        records.putShort(pos + MODE, (short) meta.getMode());
+        records.putInt(pos + OWNER, meta.ownerId());
+        records.putInt(pos + GROUP, meta.groupId());
+        records.putInt(pos + NLINK, (int) Math.min(Integer.MAX_VALUE, meta.getNLink()));
+        records.putByte(pos + CACHE_STATUS, (byte) meta.getCacheStatus());
+        records.putByte(pos + TYPE, (byte) meta.typeId());
+    }
+
+    private static long pos(int id) {
+        return (long) id * RECORD_SIZE;
+    }
+
+    /**
+     * Takes the oldest free record, if enough have been freed since,
+     * otherwise adds one to the end of the records file.
+     *
+     * @param parent the record of the directory it goes in, -1 for the root.
+     * @param name the file's name.
+     * @return int a new record holding just the name.
+     *
+     * @throws IOException when the files can't grow.
+     */
+    private int newRecord(int parent, String name) throws IOException {
+        int id;
+        long pos;
+        if (freeCount > REUSE_DELAY) {
+            id = freeHead;
+            pos = pos(id);
+            freeHead = records.getInt(pos + NEXT_SIBLING);
+            freeCount--;
+            liveNameBytes -= records.getShort(pos + NAME_LENGTH) & LENGTH_MASK;
+            int generation = records.getShort(pos + GENERATION) + 1;
+            for (int field = 0; field < RECORD_SIZE; field += 8) {
+                records.putLong(pos + field, 0L);
+            }
+            records.putShort(pos + GENERATION, (short) generation);
+        }
+        else {
+            if (recordCount == Integer.MAX_VALUE) {
+                throw new IOException("Metadata store is full");
+            }
+            id = recordCount;
+            pos = pos(id);
+            records.ensure(pos + RECORD_SIZE);
+            recordCount++;
+        }
+        records.putInt(pos + PARENT, parent);
+        records.putInt(pos + FIRST_CHILD, NONE);
+        records.putInt(pos + LAST_CHILD, NONE);
+        records.putInt(pos + NEXT_SIBLING, NONE);
+        records.putInt(pos + PREV_SIBLING, NONE);
+        records.putByte(pos + TYPE, NAME_ONLY);
+        writeName(id, name);
+        return id;
+    }
+
+    /**
+     * Writes a name to the end of the name arena and points a record at it.
+     * The record's old name, if it had one, is dead from then on.
+     *
+     * @param id the record.
+     * @param name the name.
+     *
+     * @throws IOException when the name arena can't grow.
+     */
+    private void writeName(int id, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > LENGTH_MASK) {
+            throw new IOException("Name too long: "+name);
+        }
+        long dead = namesEnd - liveNameBytes;
+        if (dead > MIN_DEAD_NAMES && dead > liveNameBytes) {
+            compactNames();
+        }
+        short length = records.getShort(pos(id) + NAME_LENGTH);
+        long offset = nameStart(namesEnd, bytes.length);
+        names.ensure(offset + bytes.length);
+        names.put(offset, bytes);
+        records.putLong(pos(id) + NAME_OFFSET, offset);
+        records.putShort(pos(id) + NAME_LENGTH, (short) (bytes.length | (length & DELETED)));
+        namesEnd = offset + bytes.length;
+        liveNameBytes += bytes.length - (length & LENGTH_MASK);
+    }
+
+    /**
+     * A name never straddles two segments, one which won't fit
+     * in what's left of a segment starts the next one.
+     *
+     * @param end end of the names written so far.
+     * @param length length of the name in bytes.
+     * @return long where the name goes.
+     */
+    private static long nameStart(long end, int length) {
+        long segmentEnd = ((end >> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+        return (end + length > segmentEnd) ? segmentEnd : end;
+    }
+
+    /**
+     * Copies the name of every record into a new name arena, dropping
+     * the names nothing points at any more. Freed records keep theirs,
+     * they can still be read until they're reused.
+     *
+     * @throws IOException when the new file can't be made.
+     */
+    private void compactNames() throws IOException {
+        long before = namesEnd;
+        Segments compacted = new Segments(dir, "names");
+        long end = 0L;
+        for (int id = 0; id < recordCount; id++) {
+            byte[] bytes = nameBytes(id);
+            long offset = nameStart(end, bytes.length);
+            compacted.ensure(offset + bytes.length);
+            compacted.put(offset, bytes);
+            records.putLong(pos(id) + NAME_OFFSET, offset);
+            end = offset + bytes.length;
+        }
+        names.close();
+        names = compacted;
+        namesEnd = end;
+        LOGGER.info("Compacted metadata store names from "+before+" to "+end+" bytes, "
+                    +recordCount+" records of which "+freeCount+" are free");
+    }
+
+    /**
+     * @param id a record.
+     * @param nameBytes a name in UTF-8.
+     * @return boolean, true if the record has that name.
+     */
+    private boolean nameEquals(int id, byte[] nameBytes) {
+        long pos = pos(id);
+        if ((records.getShort(pos + NAME_LENGTH) & LENGTH_MASK) != nameBytes.length) {
+            return false;
+        }
+        long offset = records.getLong(pos + NAME_OFFSET);
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (names.getByte(offset + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int parent, byte[] nameBytes) {
+        int h = parent * 0x9E3779B9;
+        for (byte b : nameBytes) {
+            h = 31 * h + b;
+        }
+        //Spread the bits, as neighbouring slots are probed
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * @param id a record.
+     * @param hash hash of its parent and name.
+     *
+     * @throws IOException when the index can't grow.
+     */
+    private void indexAdd(int id, int hash) throws IOException {
+        //Keep at most half the slots taken, so probes stay short
+        if ((slotsUsed + slotsRemoved + 1) * 2L > slots) {
+            rebuildIndex((slotsUsed + 1) * 4L > slots ? slots * 2 : slots);
+        }
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long pos = (long) slot * SLOT_SIZE;
+            if (index.getInt(pos) == EMPTY) {
+                index.putInt(pos, id + 1);
+                index.putInt(pos + 4, hash);
+                slotsUsed++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param id a record which is in the index.
+     */
+    private void indexRemove(int id) {
+        int hash = hash(getParent(id), nameBytes(id));
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long pos = (long) slot * SLOT_SIZE;
+            int stored = index.getInt(pos);
+            if (stored == EMPTY) {
+                return;
+            }
+            if (stored == id + 1) {
+                //Left as a marker, later keys may have probed past this slot
+                index.putInt(pos, REMOVED);
+                slotsUsed--;
+                slotsRemoved++;
+                return;
+            }
+        }
+    }
+
+    private byte[] nameBytes(int id) {
+        long pos = pos(id);
+        byte[] bytes = new byte[records.getShort(pos + NAME_LENGTH) & LENGTH_MASK];
+        names.get(records.getLong(pos + NAME_OFFSET), bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the index into a new file with the given number of slots,
+     * dropping removed markers.
+     *
+     * @param newSlots number of slots, a power of two.
+     *
+     * @throws IOException when the new file can't be made.
+     */
+    private void rebuildIndex(int newSlots) throws IOException {
+        if (newSlots <= 0) {
+            throw new IOException("Metadata store index is full");
+        }
+        Segments rebuilt = new Segments(dir, "index");
+        rebuilt.ensure((long) newSlots * SLOT_SIZE);
+        int mask = newSlots - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            long pos = (long) slot * SLOT_SIZE;
+            int stored = index.getInt(pos);
+            if (stored == EMPTY || stored == REMOVED) {
+                continue;
+            }
+            int hash = index.getInt(pos + 4);
+            for (int newSlot = hash & mask; ; newSlot = (newSlot + 1) & mask) {
+                long newPos = (long) newSlot * SLOT_SIZE;
+                if (rebuilt.getInt(newPos) == EMPTY) {
+                    rebuilt.putInt(newPos, stored);
+                    rebuilt.putInt(newPos + 4, hash);
+                    break;
+                }
+            }
+        }
+        index.close();
+        index = rebuilt;
+        slots = newSlots;
+        slotsRemoved = 0;
+    }
+
+    /**
+     * A file mapped into memory a segment at a time, as one buffer
+     * can't be more than 2GB. Grows a segment at a time.
+     */
+    private static class Segments {
+        private static final int MASK = (1 << SEGMENT_SHIFT) - 1;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+        Segments(File dir, String prefix) throws IOException {
+            File mapped = File.createTempFile(prefix, ".map", dir);
+            file = new RandomAccessFile(mapped, "rw");
+            channel = file.getChannel();
+            //Still there while it's open, gone when it's closed or the process exits
+            mapped.delete();
+        }
+
+        /**
+         * Maps enough segments to reach a position. New space reads as zeros.
+         *
+         * @param end position just past the last byte needed.
+         */
+        void ensure(long end) throws IOException {
+            while (((long) segments.size() << SEGMENT_SHIFT) < end) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                                         (long) segments.size() << SEGMENT_SHIFT, 1L << SEGMENT_SHIFT));
+            }
+        }
+
+        private MappedByteBuffer segment(long pos) {
+            return segments.get((int) (pos >>> SEGMENT_SHIFT));
+        }
+
+        byte getByte(long pos) {
+            return segment(pos).get((int) (pos & MASK));
+        }
+
+        void putByte(long pos, byte value) {
+            segment(pos).put((int) (pos & MASK), value);
+        }
+
+        short getShort(long pos) {
+            return segment(pos).getShort((int) (pos & MASK));
+        }
+
+        void putShort(long pos, short value) {
+            segment(pos).putShort((int) (pos & MASK), value);
+        }
+
+        int getInt(long pos) {
+            return segment(pos).getInt((int) (pos & MASK));
+        }
+
+        void putInt(long pos, int value) {
+            segment(pos).putInt((int) (pos & MASK), value);
+        }
+
+        long getLong(long pos) {
+            return segment(pos).getLong((int) (pos & MASK));
+        }
+
+        void putLong(long pos, long value) {
+            segment(pos).putLong((int) (pos & MASK), value);
+        }
+
+        void get(long pos, byte[] bytes) {
+            MappedByteBuffer segment = segment(pos);
+            int offset = (int) (pos & MASK);
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = segment.get(offset + i);
+            }
+        }
+
+        void put(long pos, byte[] bytes) {
+            MappedByteBuffer segment = segment(pos);
+            int offset = (int) (pos & MASK);
+            for (int i = 0; i < bytes.length; i++) {
+                segment.put(offset + i, bytes[i]);
+            }
+        }
+
+        void close() throws IOException {
+            segments.clear();
+            file.close();
+        }
+    }
+}
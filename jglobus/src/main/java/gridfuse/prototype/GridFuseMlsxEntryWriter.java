@@ -2,6 +2,7 @@ package gridfuse.prototype;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import org.globus.ftp.MlsxEntry;
 import org.globus.ftp.MlsxEntryWriter;
 import java.util.TimeZone;
@@ -13,9 +14,22 @@ import java.text.ParseException;
  * This provides the object to send to globus's MLSR command.
  * It can take the metadata returned and send it to the directory
  * tree to be added in the correct place.
+ *
+ * Entries come a directory at a time, so they're added to the tree
+ * in batches, one per directory. Big directories are sent in batches
+ * at least as big as what's already there, so copying the directory's
+ * children for each batch costs no more than copying them once.
  */
 public class GridFuseMlsxEntryWriter implements MlsxEntryWriter {
+    //Smallest batch sent before the directory is finished
+    private static final int MIN_BATCH = 1024;
+
     GridFuseDirTree dirTree;
+    //Directory the batch is for
+    private String batchPath = null;
+    private ArrayList<FileStat> batch = new ArrayList<FileStat>();
+    //Entries of batchPath already sent
+    private int sent = 0;
 
     /**
      * Constructor, pass in the directory tree object to which
@@ -55,15 +69,35 @@ public class GridFuseMlsxEntryWriter implements MlsxEntryWriter {
                                     entry.get(MlsxEntry.UNIX_OWNER),
                                     entry.get(MlsxEntry.UNIX_GROUP),
                                     FileStat.CACHE_BEHIND);
-        dirTree.add_node(path,fileMeta);
+        if (!path.equals(batchPath)) {
+            flush();
+            batchPath = path;
+            sent = 0;
+        }
+        batch.add(fileMeta);
+        if (batch.size() >= Math.max(MIN_BATCH, sent)) {
+            flush();
+        }
         return;
     }
 
+    /**
+     * Adds the entries waiting in the batch to the tree.
+     */
+    private void flush() {
+        if (!batch.isEmpty()) {
+            dirTree.add_nodes(batchPath,batch);
+            sent += batch.size();
+            batch = new ArrayList<FileStat>();
+        }
+    }
+
     /**
      * Notifies the writer that the stream of entries has ended.
-     *
+     * Adds whatever is left in the batch to the tree.
      */
     public void close() {
+        flush();
         return;
     }
 }
@@ -0,0 +1,79 @@
+package gridfuse.prototype;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each distinct name (a user, a group, a file type) a small id,
+ * so millions of FileStats can hold an int instead of their own copy
+ * of the same few strings.
+ *
+ * Ids are never reused or taken back, so only put names in here which
+ * there are few of.
+ */
+public class GridFuseNamePool {
+    private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+    //Names by id, replaced whole when one is added
+    private volatile String[] names = new String[0];
+    private final int maxNames;
+    //Id handed out once the pool is full
+    private final int fullId;
+
+    /**
+     * @param maxNames most names the pool holds.
+     * @param seeds names which get the first ids, in order. Once the pool
+     *              is full, names not in it get the id of the last seed.
+     */
+    public GridFuseNamePool(int maxNames, String... seeds) {
+        this.maxNames = Math.max(seeds.length, maxNames);
+        for (String seed : seeds) {
+            idOf(seed);
+        }
+        fullId = seeds.length - 1;
+    }
+
+    /**
+     * @param name the name.
+     * @return int the name's id, -1 for null.
+     */
+    public int idOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (names.length >= maxNames) {
+                return fullId;
+            }
+            //Keep our own copy, so the name doesn't hold on to whatever it was cut from
+            String copy = new String(name);
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = copy;
+            names = grown;
+            ids.put(copy, names.length - 1);
+            return names.length - 1;
+        }
+    }
+
+    /**
+     * @param id an id from idOf().
+     * @return String the name, null for -1.
+     */
+    public String nameOf(int id) {
+        return (id < 0) ? null : names[id];
+    }
+
+    /**
+     * @return int how many names are in the pool.
+     */
+    public int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,100 @@
+package gridfuse.prototype;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers paths which were looked for recently and didn't exist,
+ * so asking about them again can be answered without asking the server.
+ * Shells, editors and $PATH lookups ask about a lot of files which
+ * aren't there, and usually ask again straight away.
+ *
+ * Each path is remembered for a limited time, and only the most
+ * recently missed paths are kept. A path stops counting as missing
+ * as soon as it is added to the tree. A path under a missing
+ * directory counts as missing too.
+ */
+public class GridFuseNegativeCache {
+    //How long a path is remembered as missing (ms), 0 turns the cache off
+    final long TTL;
+    final int MAX_ENTRIES;
+    //When each path stops counting as missing, least recently used first
+    private final LinkedHashMap<String,Long> missing;
+    //Lets invalidate() skip the lock when nothing is remembered
+    private volatile boolean empty = true;
+
+    /**
+     * @param ttl how long a path is remembered as missing, in milliseconds.
+     * @param maxEntries most paths remembered at once.
+     */
+    public GridFuseNegativeCache(long ttl, int maxEntries) {
+        TTL = Math.max(0L, ttl);
+        MAX_ENTRIES = Math.max(1, maxEntries);
+        missing = new LinkedHashMap<String,Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * @param path the path asked about.
+     * @return boolean, true if the path, or a directory above it, was missing recently.
+     */
+    public boolean isMissing(String path) {
+        if (empty) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (String p = path; p != null && !p.isEmpty() && !p.equals("/"); p = parentOf(p)) {
+                Long expires = missing.get(p);
+                if (expires != null) {
+                    if (expires > now) {
+                        return true;
+                    }
+                    missing.remove(p);
+                }
+            }
+            empty = missing.isEmpty();
+            return false;
+        }
+    }
+
+    /**
+     * Remembers that a path doesn't exist.
+     *
+     * @param path the path asked about.
+     */
+    public synchronized void add(String path) {
+        if (TTL == 0L) {
+            return;
+        }
+        missing.put(path, System.currentTimeMillis() + TTL);
+        empty = false;
+    }
+
+    /**
+     * Forgets that a path, or any directory above it, was missing,
+     * because it exists now.
+     *
+     * @param path the path which now exists.
+     */
+    public void invalidate(String path) {
+        if (empty) {
+            return;
+        }
+        synchronized (this) {
+            for (String p = path; p != null && !p.isEmpty() && !p.equals("/"); p = parentOf(p)) {
+                missing.remove(p);
+            }
+            empty = missing.isEmpty();
+        }
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return (slash <= 0) ? null : path.substring(0, slash);
+    }
+}
@@ -0,0 +1,311 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches large files a block at a time, as they are read,
+ * instead of copying the whole file before open returns.
+ *
+ * Opening a file of at least partialRetrieveThreshold MB just creates
+ * a sparse file of the right size. Each read then fetches the blocks
+ * it needs with a partial retrieve, plus partialReadAhead blocks after
+ * them, so the first bytes are readable after one round trip.
+ *
+ * Block maps are saved under partialStateDir, so partially cached
+ * files are still known to be partial after a restart.
+ */
+public class GridFusePartialCache {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //How long a read waits for blocks someone else is fetching (ms)
+    private static final long FETCH_WAIT = 120000L;
+    //Blocks fetched at a time when filling a file in, so readers aren't stuck behind one huge fetch
+    private static final int FILL_CHUNK_BLOCKS = 16;
+
+    final boolean ENABLED;
+    //Files at least this big are cached a block at a time (bytes)
+    final long THRESHOLD;
+    final int BLOCK_SIZE;
+    //Blocks fetched after the ones a read asked for
+    final int READ_AHEAD;
+    final File stateDir;
+    final String localrootdir;
+    final GridOps gridOperation;
+    private final ConcurrentHashMap<String,GridFuseBlockMap> blockMaps = new ConcurrentHashMap<String,GridFuseBlockMap>();
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       localrootdir, partialRetrieve, partialRetrieveThreshold,
+     *                       partialBlockSize, partialReadAhead and partialStateDir.
+     * @param gridOperation, remote operations used to fetch blocks.
+     */
+    public GridFusePartialCache(HashMap<String,String> GridFuseProps, GridOps gridOperation) {
+        this.gridOperation = gridOperation;
+        localrootdir = GridFuseProps.get("localrootdir");
+        //Off unless asked for, it changes how open, read and write behave for big files
+        ENABLED = "true".equalsIgnoreCase(GridFuseProps.get("partialRetrieve"));
+        THRESHOLD = 1024L*1024L * GridFuseProperties.getIntProperty(GridFuseProps, "partialRetrieveThreshold", 64);
+        BLOCK_SIZE = 1024 * Math.max(64, GridFuseProperties.getIntProperty(GridFuseProps, "partialBlockSize", 4096));
+        READ_AHEAD = Math.max(0, GridFuseProperties.getIntProperty(GridFuseProps, "partialReadAhead", 2));
+        String dir = GridFuseProps.get("partialStateDir");
+        stateDir = new File((dir == null || dir.trim().isEmpty()) ? GridFuseProps.get("GRID_FUSE_CONF")+"/partial" : dir.trim());
+        loadSaved(stateDir, "");
+    }
+
+    /**
+     * Loads the block maps of files left partially cached by an earlier run.
+     *
+     * @param dir directory of saved block maps to look through.
+     * @param path the path within the cache dir corresponds to.
+     */
+    private void loadSaved(File dir, String path) {
+        File[] saved = dir.listFiles();
+        if (saved == null) {
+            return;
+        }
+        for (File state : saved) {
+            String name = state.getName();
+            if (state.isDirectory()) {
+                loadSaved(state, path+"/"+name);
+            }
+            else if (name.endsWith(".blocks")) {
+                String filePath = path+"/"+name.substring(0, name.length()-".blocks".length());
+                try {
+                    blockMaps.put(filePath, GridFuseBlockMap.load(state));
+                } catch (IOException ioE) {
+                    //Can't tell which blocks we have, so start again
+                    LOGGER.log(Level.WARNING, "Couldn't read block map for "+filePath+", refetching it", ioE);
+                    blockMaps.put(filePath, new GridFuseBlockMap(new File(localrootdir+filePath).length(), BLOCK_SIZE));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param size size of the remote file in bytes.
+     * @return boolean, true if a file this big should be cached a block at a time.
+     */
+    public boolean wantsPartial(long size) {
+        return ENABLED && size >= THRESHOLD;
+    }
+
+    /**
+     * Starts caching a file a block at a time by creating a sparse
+     * file of the full size in the local cache.
+     *
+     * @param path describes where the file is.
+     * @param size size of the remote file in bytes.
+     * @return int 0 for everything being fine. Linux error code otherwise.
+     */
+    public int start(String path, long size) {
+        File file = new File(localrootdir+path);
+        file.getParentFile().mkdirs();
+        GridFuseBlockMap blockMap = new GridFuseBlockMap(size, BLOCK_SIZE);
+        if (blockMaps.putIfAbsent(path, blockMap) != null) {
+            return 0;
+        }
+        try {
+            //Save the empty map first, a crash then leaves the file marked partial
+            blockMap.save(stateFile(path));
+            RandomAccessFile sparse = new RandomAccessFile(file, "rw");
+            try {
+                sparse.setLength(size);
+            } finally {
+                sparse.close();
+            }
+        } catch (IOException ioE) {
+            LOGGER.log(Level.SEVERE, "Couldn't create sparse file for "+path, ioE);
+            blockMaps.remove(path);
+            stateFile(path).delete();
+            return -5;
+        }
+        LOGGER.fine("Caching "+path+" ("+size+" bytes) a block at a time");
+        return 0;
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @return GridFuseBlockMap, or null if the file isn't partially cached.
+     */
+    private GridFuseBlockMap getBlockMap(String path) {
+        return blockMaps.get(path);
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @return boolean, true if the file is only partially cached.
+     */
+    public boolean isPartial(String path) {
+        return getBlockMap(path) != null;
+    }
+
+    /**
+     * Makes sure a range of a file is in the local cache, fetching
+     * whatever is missing. Files which aren't partially cached are
+     * already there, so return straight away.
+     *
+     * @param path describes where the file is.
+     * @param offset first byte to be read.
+     * @param size number of bytes to be read.
+     * @param priority GridConnectionPool.PRIORITY_INTERACTIVE for reads,
+     *                 GridConnectionPool.PRIORITY_BACKGROUND for filling files in.
+     * @return int 0 when the range can be read locally. Linux error code otherwise.
+     */
+    public int ensureRange(String path, long offset, long size, int priority) {
+        GridFuseBlockMap blockMap = getBlockMap(path);
+        if (blockMap == null) {
+            return 0;
+        }
+        int readAhead = (priority == GridConnectionPool.PRIORITY_INTERACTIVE) ? READ_AHEAD : 0;
+        int retstat = 0;
+        //Try twice, a block someone else failed to fetch gets another go
+        for (int attempt = 0; attempt < 2; attempt++) {
+            List<int[]> runs = blockMap.claim(offset, size, readAhead);
+            for (int[] run : runs) {
+                int fetched = gridOperation.partialTransfer(path, blockMap.runOffset(run), blockMap.runLength(run), priority);
+                blockMap.finish(run, fetched == 0);
+                if (fetched != 0) {
+                    retstat = fetched;
+                }
+            }
+            try {
+                if (blockMap.await(offset, size, FETCH_WAIT)) {
+                    completeIfDone(path, blockMap);
+                    return 0;
+                }
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+                return -4;
+            }
+        }
+        LOGGER.severe("Couldn't fetch bytes "+offset+"-"+(offset+size)+" of "+path);
+        return (retstat != 0) ? retstat : -5;
+    }
+
+    /**
+     * Fetches every block of a file which hasn't arrived yet.
+     *
+     * @param path describes where the file is.
+     * @param priority GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                 GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     * @return int 0 for everything being fine. Linux error code otherwise.
+     */
+    public int fillIn(String path, int priority) {
+        GridFuseBlockMap blockMap = getBlockMap(path);
+        if (blockMap == null) {
+            return 0;
+        }
+        long chunk = (long) blockMap.blockSize * FILL_CHUNK_BLOCKS;
+        for (long offset = 0; offset < blockMap.fileSize; offset += chunk) {
+            int retstat = ensureRange(path, offset, chunk, priority);
+            if (retstat != 0) {
+                return retstat;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Cuts the block map of a partially cached file down before the file
+     * is truncated, so blocks fetched later don't write past the new end.
+     * Files which grow keep their map, the bytes added are all local.
+     *
+     * @param path describes where the file is.
+     * @param newsize size the file is being truncated to.
+     * @return int 0 once the file can be truncated. Linux error code otherwise.
+     */
+    public int truncate(String path, long newsize) {
+        GridFuseBlockMap blockMap = getBlockMap(path);
+        if (blockMap == null || newsize >= blockMap.fileSize) {
+            return 0;
+        }
+        GridFuseBlockMap truncated = blockMap.truncate(newsize);
+        if (!blockMaps.replace(path, blockMap, truncated)) {
+            //Completed or replaced meanwhile, whoever did it has the file now
+            return truncate(path, newsize);
+        }
+        try {
+            //Fetches already running on the old map could still write past the new end
+            if (!blockMap.awaitIdle(FETCH_WAIT)) {
+                LOGGER.severe("Blocks of "+path+" still arriving, can't truncate it");
+                blockMaps.replace(path, truncated, blockMap);
+                return -16;
+            }
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            blockMaps.replace(path, truncated, blockMap);
+            return -4;
+        }
+        save(path, truncated);
+        completeIfDone(path, truncated);
+        return 0;
+    }
+
+    /**
+     * Forgets the block map once every block has arrived.
+     *
+     * @param path describes where the file is.
+     * @param blockMap the file's block map.
+     */
+    private void completeIfDone(String path, GridFuseBlockMap blockMap) {
+        if (blockMap.isComplete() && blockMaps.remove(path, blockMap)) {
+            LOGGER.fine("Every block of "+path+" has arrived");
+            stateFile(path).delete();
+        }
+    }
+
+    /**
+     * Stops treating a file as partial, because it has been
+     * copied in full, deleted or replaced.
+     *
+     * @param path describes where the file is.
+     */
+    public void forget(String path) {
+        blockMaps.remove(path);
+        stateFile(path).delete();
+    }
+
+    /**
+     * Saves the block map of every partially cached file.
+     */
+    public void saveAll() {
+        for (Map.Entry<String,GridFuseBlockMap> entry : blockMaps.entrySet()) {
+            save(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Saves the block map of a file, if it is partially cached.
+     *
+     * @param path describes where the file is.
+     */
+    public void save(String path) {
+        GridFuseBlockMap blockMap = blockMaps.get(path);
+        if (blockMap != null) {
+            save(path, blockMap);
+        }
+    }
+
+    private void save(String path, GridFuseBlockMap blockMap) {
+        try {
+            blockMap.save(stateFile(path));
+        } catch (IOException ioE) {
+            LOGGER.log(Level.WARNING, "Couldn't save block map for "+path, ioE);
+        }
+    }
+
+    /**
+     * @param path describes where the file is.
+     * @return File where the file's block map is saved.
+     */
+    private File stateFile(String path) {
+        return new File(stateDir, path+".blocks");
+    }
+}
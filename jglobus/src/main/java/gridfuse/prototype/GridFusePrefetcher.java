@@ -0,0 +1,380 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.ToIntBiFunction;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the files a user is likely to open next, before they open them.
+ *
+ * Jobs often open the files in a directory in name order, run_0001.nxs,
+ * run_0002.nxs and so on. Once two files in a row are opened that way,
+ * the next few files in the directory are fetched in the background, so
+ * by the time they're opened they're already on their way.
+ *
+ * At most prefetchBudgetMB of files fetched ahead are waiting to be opened
+ * at once. How far ahead to fetch starts at prefetchFiles, grows while
+ * fetched files get opened and halves when they don't, down to nothing.
+ * After that a long run of files opened in order is needed before it
+ * tries again.
+ */
+public class GridFusePrefetcher {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //Directories whose listing and position are remembered
+    private static final int MAX_DIRS = 256;
+    //How long a directory listing is trusted (ms)
+    private static final long LIST_TTL = 30000L;
+    //A fetched file not opened within this long was a wrong guess (ms)
+    private static final long UNUSED_TTL = 600000L;
+    //Files which can be skipped between two opens which still count as in order
+    private static final int MAX_GAP = 2;
+    //Opens in order needed to try again once wrong guesses have stopped prefetching
+    private static final int PROBE_RUN = 4;
+    //Opens waiting to be looked at, any more than this are ignored
+    private static final int MAX_QUEUED_OPENS = 1024;
+
+    final int MAX_FILES;
+    //Most bytes fetched ahead and not yet opened
+    final long BUDGET;
+    final GridFuseDirTree dirTree;
+    //Fetches a file (path, size), returns 0 if it did
+    final ToIntBiFunction<String,Long> fetcher;
+    private final ExecutorService prefetchExec;
+    //Where the user is in each directory, least recently used first
+    private final LinkedHashMap<String,DirState> dirs = new LinkedHashMap<String,DirState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,DirState> eldest) {
+            return size() > MAX_DIRS;
+        }
+    };
+    //Files fetched ahead, or being fetched, which haven't been opened yet
+    private final HashMap<String,Guess> outstanding = new HashMap<String,Guess>();
+    private long outstandingBytes = 0L;
+    //How many files ahead to fetch right now
+    private int window;
+    private long hits = 0L;
+    private long misses = 0L;
+    //Opens not looked at yet, and whether a task is working through them
+    private final ArrayDeque<String> opens = new ArrayDeque<String>();
+    private boolean tracking = false;
+
+    /**
+     * Where the user has got to in a directory.
+     */
+    private static class DirState {
+        //Files in the directory, sorted by name
+        String[] names;
+        long[] sizes;
+        long listedAt;
+        int lastIndex = -1;
+        //Highest index fetched ahead
+        int aheadTo = -1;
+        //Opens in order so far
+        int run = 0;
+    }
+
+    /**
+     * A file fetched ahead.
+     */
+    private static class Guess {
+        final long size;
+        final long time = System.currentTimeMillis();
+
+        Guess(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       prefetchFiles, prefetchBudgetMB and prefetchThreads.
+     * @param dirTree, directory tree the listings come from.
+     * @param fetcher, copies a file into the local cache.
+     */
+    public GridFusePrefetcher(HashMap<String,String> GridFuseProps, GridFuseDirTree dirTree, ToIntBiFunction<String,Long> fetcher) {
+        this.dirTree = dirTree;
+        this.fetcher = fetcher;
+        MAX_FILES = Math.max(0, GridFuseProperties.getIntProperty(GridFuseProps, "prefetchFiles", 4));
+        BUDGET = 1024L*1024L * Math.max(0, GridFuseProperties.getIntProperty(GridFuseProps, "prefetchBudgetMB", 256));
+        window = MAX_FILES;
+        prefetchExec = Executors.newFixedThreadPool(Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "prefetchThreads", 2)));
+    }
+
+    /**
+     * Called when a file is opened. Checks whether it was fetched ahead,
+     * then leaves working out whether it carries on a run, and fetching
+     * the files after it, to prefetchExec. Listing the directory can take
+     * a while, and opens shouldn't wait on it.
+     *
+     * @param path describes where the file is.
+     */
+    public void opened(String path) {
+        if (MAX_FILES == 0) {
+            return;
+        }
+        synchronized (this) {
+            Guess guess = outstanding.remove(path);
+            if (guess != null) {
+                outstandingBytes -= guess.size;
+                hit();
+            }
+            //Runs can't be seen if opens are taken out of order, so one task works through them all
+            if (opens.size() < MAX_QUEUED_OPENS) {
+                opens.add(path);
+            }
+            if (tracking) {
+                return;
+            }
+            tracking = true;
+        }
+        try {
+            prefetchExec.execute(this::trackOpens);
+        } catch (RejectedExecutionException reE) {
+            //Shutting down
+            synchronized (this) {
+                tracking = false;
+                opens.clear();
+            }
+        }
+    }
+
+    /**
+     * Works through the opens opened() has queued, in order, until there are none left.
+     */
+    private void trackOpens() {
+        while (true) {
+            String path;
+            synchronized (this) {
+                path = opens.poll();
+                if (path == null) {
+                    tracking = false;
+                    return;
+                }
+            }
+            track(path);
+        }
+    }
+
+    /**
+     * Fetches the files after an opened file if it carries on a run.
+     *
+     * @param path describes where the file is.
+     */
+    private void track(String path) {
+        File file = new File(path);
+        String parent = (file.getParent() == null) ? "/" : file.getParent();
+        String name = file.getName();
+        //List the directory without the lock, if what we have is old or doesn't have the file
+        DirState listing = null;
+        synchronized (this) {
+            DirState dir = dirs.get(parent);
+            if (dir == null || dir.names == null || Arrays.binarySearch(dir.names, name) < 0
+                    || System.currentTimeMillis() - dir.listedAt >= LIST_TTL) {
+                listing = new DirState();
+            }
+        }
+        if (listing != null) {
+            list(parent, listing);
+        }
+
+        ArrayList<String> fetch = new ArrayList<String>();
+        ArrayList<Long> fetchSizes = new ArrayList<Long>();
+        synchronized (this) {
+            expireGuesses();
+            DirState dir = dirs.get(parent);
+            if (dir == null) {
+                dir = new DirState();
+                dirs.put(parent, dir);
+            }
+            if (listing != null) {
+                relist(dir, listing);
+            }
+            int index = (dir.names == null) ? -1 : Math.max(-1, Arrays.binarySearch(dir.names, name));
+            if (index < 0) {
+                return;
+            }
+            if (dir.lastIndex >= 0 && index > dir.lastIndex && index - dir.lastIndex <= MAX_GAP + 1) {
+                dir.run++;
+                //Files skipped over won't be opened now
+                for (int i = dir.lastIndex + 1; i < index; i++) {
+                    if (outstanding.containsKey(childPath(parent, dir.names[i]))) {
+                        miss(childPath(parent, dir.names[i]));
+                    }
+                }
+            }
+            else if (index != dir.lastIndex) {
+                dir.run = 0;
+                dir.aheadTo = index;
+            }
+            dir.lastIndex = index;
+
+            int ahead = window;
+            if (ahead == 0 && dir.run >= PROBE_RUN) {
+                //Wrong guesses stopped us, this looks like a run worth another go
+                ahead = 1;
+            }
+            if (dir.run < 1 || ahead == 0) {
+                return;
+            }
+            for (int i = Math.max(index, dir.aheadTo) + 1; i < dir.names.length && i <= index + ahead; i++) {
+                String next = childPath(parent, dir.names[i]);
+                long size = Math.max(0L, dir.sizes[i]);
+                if (outstanding.containsKey(next)) {
+                    continue;
+                }
+                if (outstandingBytes + size > BUDGET) {
+                    break;
+                }
+                dir.aheadTo = i;
+                outstanding.put(next, new Guess(size));
+                outstandingBytes += size;
+                fetch.add(next);
+                fetchSizes.add(size);
+            }
+        }
+        for (int i = 0; i < fetch.size(); i++) {
+            String next = fetch.get(i);
+            long size = fetchSizes.get(i);
+            try {
+                prefetchExec.execute(() -> prefetch(next, size));
+            } catch (RejectedExecutionException reE) {
+                //Shutting down
+                giveUp(next);
+            }
+        }
+    }
+
+    /**
+     * Fetches a file ahead of it being opened.
+     *
+     * @param path describes where the file is.
+     * @param size size of the file in bytes.
+     */
+    private void prefetch(String path, long size) {
+        synchronized (this) {
+            //Opened, or given up on, while it waited
+            if (!outstanding.containsKey(path)) {
+                return;
+            }
+        }
+        LOGGER.fine("Prefetching "+path);
+        int retstat = fetcher.applyAsInt(path, size);
+        if (retstat != 0) {
+            //Already cached, too big, or failed, it doesn't count either way
+            giveUp(path);
+        }
+    }
+
+    /**
+     * Stops counting a file against the budget, without calling it a hit or a miss.
+     *
+     * @param path describes where the file is.
+     */
+    private synchronized void giveUp(String path) {
+        Guess guess = outstanding.remove(path);
+        if (guess != null) {
+            outstandingBytes -= guess.size;
+        }
+    }
+
+    /**
+     * A fetched file was opened, fetch further ahead. Call with the lock held.
+     */
+    private void hit() {
+        hits++;
+        window = Math.min(MAX_FILES, window + 1);
+    }
+
+    /**
+     * A fetched file wasn't opened, fetch less far ahead. Call with the lock held.
+     *
+     * @param path describes where the file is.
+     */
+    private void miss(String path) {
+        misses++;
+        giveUp(path);
+        window = window / 2;
+        LOGGER.fine("Prefetched "+path+" wasn't used, fetching "+window+" files ahead ("+hits+" hits, "+misses+" misses)");
+    }
+
+    /**
+     * Counts files fetched a long time ago and never opened as misses.
+     * Call with the lock held.
+     */
+    private void expireGuesses() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String,Guess>> it = outstanding.entrySet().iterator();
+        ArrayList<String> expired = new ArrayList<String>();
+        while (it.hasNext()) {
+            Map.Entry<String,Guess> e = it.next();
+            if (now - e.getValue().time > UNUSED_TTL) {
+                expired.add(e.getKey());
+            }
+        }
+        for (String path : expired) {
+            miss(path);
+        }
+    }
+
+    /**
+     * Lists the files in a directory, sorted by name.
+     *
+     * @param parent the directory.
+     * @param listing where the names, sizes and time of listing go.
+     */
+    private void list(String parent, DirState listing) {
+        ArrayList<FileStat> files = new ArrayList<FileStat>();
+        for (FileStat file : dirTree.cached_readdir(parent)) {
+            if (file != null && !file.getType().contains("dir")) {
+                files.add(file);
+            }
+        }
+        files.sort((f1, f2) -> f1.toString().compareTo(f2.toString()));
+        listing.names = new String[files.size()];
+        listing.sizes = new long[files.size()];
+        for (int i = 0; i < listing.names.length; i++) {
+            listing.names[i] = files.get(i).toString();
+            listing.sizes[i] = files.get(i).getSizeBytes();
+        }
+        listing.listedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Replaces a directory's listing, keeping the user's place in it.
+     * Call with the lock held.
+     *
+     * @param dir where the user is in the directory.
+     * @param listing the new listing from list().
+     */
+    private void relist(DirState dir, DirState listing) {
+        String last = (dir.lastIndex >= 0) ? dir.names[dir.lastIndex] : null;
+        dir.names = listing.names;
+        dir.sizes = listing.sizes;
+        dir.listedAt = listing.listedAt;
+        //Indexes into the old listing mean nothing now
+        dir.lastIndex = (last == null) ? -1 : Math.max(-1, Arrays.binarySearch(dir.names, last));
+        dir.aheadTo = dir.lastIndex;
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.endsWith("/") ? parent+name : parent+"/"+name;
+    }
+
+    /**
+     * Stops fetching ahead.
+     */
+    public void close() {
+        LOGGER.info("Prefetching: "+hits+" files used, "+misses+" not");
+        prefetchExec.shutdownNow();
+    }
+}
@@ -8,7 +8,6 @@ import java.io.File;
 import java.util.Properties;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class GridFuseProperties {
@@ -60,4 +59,27 @@ public class GridFuseProperties {
         inputStream.close();
         return GridFuseProps;
     }
+
+    /**
+     * Parses an integer config value, falling back to a default
+     * if it is missing or isn't a number.
+     *
+     * @param GridFuseProps parsed configuration properties.
+     * @param key name of the property.
+     * @param defaultValue value to use if the property can't be parsed.
+     * @return int the configured value, or defaultValue.
+     */
+    public static int getIntProperty(HashMap<String,String> GridFuseProps, String key, int defaultValue) {
+        String value = GridFuseProps.get(key);
+        if (value == null || value.trim().isEmpty()) {
+            //Optional, not being set is normal
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfE) {
+            LOGGER.warning("Couldn't parse "+key+" = "+value+" as a number, using default of: "+defaultValue);
+            return defaultValue;
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package gridfuse.prototype;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel for connection keepalives.
+ *
+ * Tasks are dropped into the slot for the tick they are due on,
+ * so scheduling is constant time and each tick only looks at one slot.
+ * Tasks due more than one turn of the wheel away wait out the extra
+ * turns in their slot.
+ *
+ * Due tasks are run on a separate worker thread, so a slow NOOP
+ * doesn't hold up the wheel.
+ */
+public class GridKeepAliveWheel {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * A task waiting in a slot.
+     */
+    private static class Timeout {
+        final Runnable task;
+        //Full turns of the wheel left before the task is due
+        int rounds;
+
+        Timeout(Runnable task, int rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Timeout>[] slots;
+    //Length of a tick (ms)
+    final long TICK;
+    //Number of ticks since the wheel started, only changed by the ticker thread
+    private volatile long currentTick = 0;
+    private ScheduledExecutorService ticker;
+    private ExecutorService worker;
+
+    /**
+     * @param tick, length of a tick in milliseconds. Tasks run
+     *              up to one tick late.
+     */
+    public GridKeepAliveWheel(long tick) {
+        TICK = Math.max(1L, tick);
+        //Java can't make an array of a generic type directly
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<Timeout>[] wheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+        slots = wheel;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots[i] = new ConcurrentLinkedQueue<Timeout>();
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        worker = Executors.newSingleThreadExecutor();
+        ticker.scheduleAtFixedRate(() -> tick(), TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task to run once, after the given delay.
+     *
+     * @param delay, milliseconds from now.
+     * @param task, what to run.
+     */
+    public void schedule(long delay, Runnable task) {
+        //At least two ticks away, so a tick happening right now can't skip over it
+        long ticks = Math.max(2L, (delay + TICK - 1) / TICK);
+        long due = currentTick + ticks;
+        int rounds = (int) ((ticks - 1) / WHEEL_SIZE);
+        slots[(int) (due % WHEEL_SIZE)].add(new Timeout(task, rounds));
+    }
+
+    /**
+     * Moves the wheel on by one tick and hands due tasks to the worker.
+     */
+    private void tick() {
+        long next = currentTick + 1;
+        Iterator<Timeout> slotIter = slots[(int) (next % WHEEL_SIZE)].iterator();
+        currentTick = next;
+        while (slotIter.hasNext()) {
+            Timeout timeout = slotIter.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            slotIter.remove();
+            try {
+                worker.execute(() -> {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException rE) {
+                        LOGGER.log(Level.SEVERE, "Keepalive task failed", rE);
+                    }
+                });
+            } catch (RejectedExecutionException reE) {
+                //Shutting down
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the wheel. Tasks which haven't run yet are dropped.
+     */
+    public void close() {
+        ticker.shutdownNow();
+        worker.shutdownNow();
+    }
+}
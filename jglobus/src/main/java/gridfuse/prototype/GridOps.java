@@ -16,15 +16,78 @@ interface GridOps {
     public int fileTransfer(String path, int direction);
 
     /**
-     * Transfers files to or from remote server, depending on direction parameter.
+     * Transfers a file to or from remote server, depending on direction parameter.
      *
      * @param path, directory path
+     * @param direction, FileStat.CACHE_BEHIND = get file from remote server.
+     *                  FileStat.CACHE_AHEAD = send file to remote server.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     *
+     * @return int 0 for everything being fine, otherwise linux error codes.
+     */
+    public int fileTransfer(String path, int direction, int priority);
+
+    /**
+     * Transfers a file to or from remote server, depending on direction parameter,
+     * reporting how far it has got as it goes.
+     *
+     * @param path, directory path
+     * @param direction, FileStat.CACHE_BEHIND = get file from remote server.
+     *                  FileStat.CACHE_AHEAD = send file to remote server.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     * @param progress, receives the transfer's markers, may be null.
+     *
+     * @return int 0 for everything being fine, otherwise linux error codes.
+     */
+    public int fileTransfer(String path, int direction, int priority, GridTransferProgress progress);
+
+    /**
+     * Transfers files to or from remote server, depending on direction parameter.
+     * Batches are background work, so they never hold up interactive calls.
+     * Files which fail are retried on their own, the rest aren't sent again.
+     *
+     * @param paths, file paths, may contain nulls.
      * @param direction, FileStat.CACHE_BEHIND = get files from remote server.
      *                  FileStat.CACHE_AHEAD = send files to remote server.
      *
+     * @return int[] result for each entry of paths, 0 for everything being fine
+     *         (and for nulls), otherwise linux error codes.
+     */
+    public int[] multipleFileTransfer(String[] paths, int direction);
+
+    /**
+     * @param path, file path
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     *
+     * @return boolean, true if an earlier attempt at the transfer failed partway
+     *         and left restart markers to resume from.
+     */
+    public boolean hasRestartData(String path, int direction);
+
+    /**
+     * Forgets the restart markers of a transfer which can no longer be resumed,
+     * such as when the file is deleted.
+     *
+     * @param path, file path
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     */
+    public void clearRestartData(String path, int direction);
+
+    /**
+     * Copies a byte range of a remote file into the same range
+     * of the cached copy, leaving the rest of the cached copy alone.
+     *
+     * @param path, file path
+     * @param offset, first byte to copy.
+     * @param length, number of bytes to copy.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     *
      * @return int 0 for everything being fine, otherwise linux error codes.
      */
-    public int multipleFileTransfer(String[] path, int direction);
+    public int partialTransfer(String path, long offset, long length, int priority);
 
     /**
      * Creates a remote directory.
@@ -84,7 +147,7 @@ interface GridOps {
 
     /**
      * Recursively searches through remote directory (path) and adds the
-     * results to dirTree
+     * results to dirTree. Runs as background work.
      *
      * @param path the path to the top level directory you want to list from.
      * @return int 0 for everything being fine, otherwise linux error codes.
@@ -92,7 +155,7 @@ interface GridOps {
     public int mlsr(String path);
 
     /**
-     * Performs a NOOP request to keep connections alive.
+     * Closes all connections to the remote servers.
      */
-    public void noop();
+    public void close();
 }
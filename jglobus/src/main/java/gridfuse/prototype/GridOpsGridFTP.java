@@ -13,11 +13,22 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Vector;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.globus.ftp.ByteRangeList;
 import org.globus.ftp.GridFTPClient;
+import org.globus.ftp.MarkerListener;
 import org.globus.ftp.exception.ClientException;
 import org.globus.ftp.exception.ServerException;
 import org.globus.ftp.MlsxEntry;
+import org.ietf.jgss.GSSException;
 
 /**
  * Contains all the methods required to perform
@@ -32,6 +43,24 @@ public class GridOpsGridFTP implements GridOps {
     protected GridConnectionPool mainstoreBinarySendpool;
     protected GridConnectionPool tnodeBinaryGetpool;
     protected GridConnectionPool tnodeBinarySendpool;
+    //Shared by all the pools for each host
+    protected GridCircuitBreaker mainstoreBreaker;
+    protected GridCircuitBreaker tnodeBreaker;
+    //Shared credential, reloaded when the proxy file is renewed
+    protected GridCredentialManager credentials;
+    //Picks parallelism, striping and TCP buffers for transfers
+    protected GridTransferTuner transferTuner;
+
+    protected GridRestartStore restartStore;
+    //Sends NOOPs to pooled connections before the servers time them out
+    protected GridKeepAliveWheel keepAliveWheel;
+    //How long each kind of operation will wait for a connection (ms)
+    protected long metadataBorrowTimeout;
+    protected long transferBorrowTimeout;
+    protected long backgroundBorrowTimeout;
+    protected int transferRetries;
+    protected long retryDelay;
+    protected long retryMaxDelay;
     protected String localrootdir;
     protected String mainstorerootdir;
     protected String cacherootdir;
@@ -42,7 +71,8 @@ public class GridOpsGridFTP implements GridOps {
      * @param GridFuseProps, parsed configuration properties for GridFTP
      * @param dirTree, directory tree object
      *
-     * @throws IOException when myproxy certificate is missing.
+     * @throws IOException when myproxy certificate is missing,
+     * or a remote host can't be reached within startupTimeout seconds.
      */
     public GridOpsGridFTP(HashMap<String,String> GridFuseProps, GridFuseDirTree dirTree) throws IOException {
         this.dirTree = dirTree;
@@ -54,18 +84,86 @@ public class GridOpsGridFTP implements GridOps {
         localrootdir            = GridFuseProps.get("localrootdir");
         cacherootdir            = GridFuseProps.get("cacherootdir");
         mainstorerootdir        = GridFuseProps.get("mainstorerootdir");
-        String grid_fuse_conf   = GridFuseProps.get("GRID_FUSE_CONF");
 
+        int startupTimeout      = GridFuseProperties.getIntProperty(GridFuseProps, "startupTimeout", 120);
+        metadataBorrowTimeout   = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "borrowTimeoutMetadata", 10);
+        transferBorrowTimeout   = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "borrowTimeoutTransfer", 30);
+        backgroundBorrowTimeout = 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "borrowTimeoutBackground", 120);
+        transferRetries         = Math.max(0, GridFuseProperties.getIntProperty(GridFuseProps, "transferRetries", 3));
+        retryDelay              = Math.max(1L, 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "transferRetryDelay", 1));
+        retryMaxDelay           = Math.max(retryDelay, 1000L * GridFuseProperties.getIntProperty(GridFuseProps, "transferRetryMaxDelay", 30));
+
+        long started = System.currentTimeMillis();
+        //Load the credential once and share it between the pools
         try {
-            mainstoreASCIIpool      = new GridConnectionPool(mainstorehost,mainstoreport,maxPoolSize,"ASCII",grid_fuse_conf);
-            mainstoreBinaryGetpool  = new GridConnectionPool(mainstorehost,mainstoreport,maxPoolSize,"Binary",grid_fuse_conf);
-            mainstoreBinarySendpool = new GridConnectionPool(mainstorehost,mainstoreport,maxPoolSize,"Binary",grid_fuse_conf);
-            tnodeBinaryGetpool      = new GridConnectionPool(tnodehost,tnodeport,maxPoolSize,"Binary",grid_fuse_conf);
-            tnodeBinarySendpool     = new GridConnectionPool(tnodehost,tnodeport,maxPoolSize,"Binary",grid_fuse_conf);
-        } catch (IOException ioE) {
+            credentials = new GridCredentialManager(GridFuseProps);
+        } catch (IOException|GSSException credE) {
             LOGGER.info("Remember to get myproxy certificate.");
-            throw new IOException(ioE);
+            throw new IOException("Was a GSSException. Change this.", credE);
+        }
+        long credentialLoaded = System.currentTimeMillis();
+
+        mainstoreBreaker        = new GridCircuitBreaker(mainstorehost,GridFuseProps);
+        tnodeBreaker            = new GridCircuitBreaker(tnodehost,GridFuseProps);
+        keepAliveWheel          = new GridKeepAliveWheel(1000L);
+        transferTuner           = new GridTransferTuner(GridFuseProps);
+        restartStore            = new GridRestartStore(GridFuseProps);
+        mainstoreASCIIpool      = new GridConnectionPool(mainstorehost,mainstoreport,"ASCII",credentials,mainstoreBreaker,keepAliveWheel,GridFuseProps);
+        mainstoreBinaryGetpool  = new GridConnectionPool(mainstorehost,mainstoreport,"Binary",credentials,mainstoreBreaker,keepAliveWheel,GridFuseProps);
+        mainstoreBinarySendpool = new GridConnectionPool(mainstorehost,mainstoreport,"Binary",credentials,mainstoreBreaker,keepAliveWheel,GridFuseProps);
+        tnodeBinaryGetpool      = new GridConnectionPool(tnodehost,tnodeport,"Binary",credentials,tnodeBreaker,keepAliveWheel,GridFuseProps);
+        tnodeBinarySendpool     = new GridConnectionPool(tnodehost,tnodeport,"Binary",credentials,tnodeBreaker,keepAliveWheel,GridFuseProps);
+
+        //Warm every pool up at once, but only wait until each host has one connection.
+        //The rest carry on connecting in the background.
+        CompletableFuture<Void> mainstoreReady = firstSuccess(Arrays.asList(mainstoreASCIIpool.start(),
+                                                                            mainstoreBinaryGetpool.start(),
+                                                                            mainstoreBinarySendpool.start()));
+        CompletableFuture<Void> tnodeReady = firstSuccess(Arrays.asList(tnodeBinaryGetpool.start(),
+                                                                        tnodeBinarySendpool.start()));
+        try {
+            CompletableFuture.allOf(mainstoreReady, tnodeReady).get(startupTimeout, TimeUnit.SECONDS);
+        } catch (ExecutionException|TimeoutException startE) {
+            LOGGER.severe("Failed to connect to remote stores");
+            close();
+            throw new IOException("Failed to connect to remote store", startE);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted while connecting to remote store", iE);
+        }
+        long ready = System.currentTimeMillis();
+
+        LOGGER.info("Startup timing: credential "+(credentialLoaded-started)+"ms"
+                    +", mainstore ASCII "+mainstoreASCIIpool.getFirstConnectionTime()+"ms"
+                    +", mainstore get "+mainstoreBinaryGetpool.getFirstConnectionTime()+"ms"
+                    +", mainstore send "+mainstoreBinarySendpool.getFirstConnectionTime()+"ms"
+                    +", tnode get "+tnodeBinaryGetpool.getFirstConnectionTime()+"ms"
+                    +", tnode send "+tnodeBinarySendpool.getFirstConnectionTime()+"ms"
+                    +" (-1 = still connecting), ready after "+(ready-started)+"ms");
+    }
+
+    /**
+     * Combines pool start up futures.
+     *
+     * @param futures, futures returned by GridConnectionPool.start().
+     * @return CompletableFuture which completes as soon as any of futures succeeds,
+     *         or exceptionally once all of them have failed.
+     */
+    private static CompletableFuture<Void> firstSuccess(List<CompletableFuture<Void>> futures) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        AtomicInteger failures = new AtomicInteger(0);
+        for (CompletableFuture<Void> future : futures) {
+            future.whenComplete((ignored, failure) -> {
+                if (failure == null) {
+                    result.complete(null);
+                }
+                else if (failures.incrementAndGet() == futures.size()) {
+                    result.completeExceptionally(failure);
+                }
+            });
         }
+        return result;
     }
 
     /**
@@ -78,160 +176,556 @@ public class GridOpsGridFTP implements GridOps {
      * @return int 0 for everything being fine, otherwise linux error codes.
      */
     public int fileTransfer(String path, int direction) {
+        return fileTransfer(path, direction, GridConnectionPool.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Transfers a file to or from remote server, depending on direction parameter.
+     *
+     * @param path, directory path
+     * @param direction, FileStat.CACHE_BEHIND = get file from remote server.
+     *                  FileStat.CACHE_AHEAD = send file to remote server.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     *
+     * @return int 0 for everything being fine, otherwise linux error codes.
+     */
+    public int fileTransfer(String path, int direction, int priority) {
+        return fileTransfer(path, direction, priority, null);
+    }
+
+    /**
+     * Transfers a file to or from remote server, depending on direction parameter,
+     * reporting how far it has got as it goes.
+     *
+     * @param path, directory path
+     * @param direction, FileStat.CACHE_BEHIND = get file from remote server.
+     *                  FileStat.CACHE_AHEAD = send file to remote server.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     * @param progress, receives the transfer's markers, may be null.
+     *
+     * @return int 0 for everything being fine, otherwise linux error codes.
+     */
+    public int fileTransfer(String path, int direction, int priority, GridTransferProgress progress) {
         GridFTPClient mainstore;
         GridFTPClient tnode;
+        long timeout = (priority == GridConnectionPool.PRIORITY_BACKGROUND) ? backgroundBorrowTimeout : transferBorrowTimeout;
         if (direction == FileStat.CACHE_BEHIND) {
-            mainstore = mainstoreBinaryGetpool.getConnectionFromPool();
-            tnode = tnodeBinaryGetpool.getConnectionFromPool();
+            mainstore = mainstoreBinaryGetpool.getConnectionFromPool(priority, timeout);
+            tnode = tnodeBinaryGetpool.getConnectionFromPool(priority, timeout);
         }
         else if (direction == FileStat.CACHE_AHEAD) {
-            mainstore = mainstoreBinarySendpool.getConnectionFromPool();
-            tnode = tnodeBinarySendpool.getConnectionFromPool();
+            mainstore = mainstoreBinarySendpool.getConnectionFromPool(priority, timeout);
+            tnode = tnodeBinarySendpool.getConnectionFromPool(priority, timeout);
         }
         else {
             LOGGER.severe("Bad direction, trying to transfer "+path+" with direction: "+direction);
             return -1;
         }
-        if (mainstore == null) {
-            LOGGER.severe("\n\nMainstore connection is null.\n\n");
-            return -1;
-        }
-        if (tnode == null) {
-            LOGGER.severe("\n\nTransfer Node connection is null.\n\n");
-            return -1;
+        if (mainstore == null || tnode == null) {
+            if (mainstore == null) {
+                LOGGER.severe("\n\nMainstore connection is null.\n\n");
+            }
+            if (tnode == null) {
+                LOGGER.severe("\n\nTransfer Node connection is null.\n\n");
+            }
+            returnTransferConnections(mainstore, tnode, direction, false);
+            return noConnectionError(mainstore == null ? mainstoreBreaker : tnodeBreaker);
         }
+        boolean broken = false;
+        boolean reusable = true;
+        long size = transferSize(path, direction);
+        //Pick up where an earlier attempt left off, if the source hasn't changed since
+        String version = sourceVersion(path, direction);
+        File destination = (direction == FileStat.CACHE_BEHIND) ? new File(localrootdir+path) : null;
+        ByteRangeList restart = (version == null) ? null : restartStore.load(direction, path, version, destination);
+        GridRestartStore.Recorder recorder = (version == null) ? null : restartStore.recorder(direction, path, version, restart, progress);
+        MarkerListener listener = (recorder != null) ? recorder : progress;
+        long started = System.currentTimeMillis();
         try {
             if (direction == FileStat.CACHE_AHEAD) {
                 LOGGER.fine("Writing "+path+" back to mainstore");
+                int sizeClass = transferTuner.prepare(tnode, mainstore, size);
+                startTransfer(tnode, mainstore, path, restart, progress);
                 //Initiate third party transfer
-                tnode.transfer(cacherootdir+path,mainstore,mainstorerootdir+path,false,null);
+                tnode.extendedTransfer(cacherootdir+path,mainstore,mainstorerootdir+path,listener);
+                transferTuner.logThroughput(path, size, started, sizeClass);
             }
             else if (direction == FileStat.CACHE_BEHIND) {
                 LOGGER.fine("Caching "+path+" from mainstore");
-                File file = new File(localrootdir+path);
-                file.getParentFile().mkdirs();
+                destination.getParentFile().mkdirs();
+                int sizeClass = transferTuner.prepare(mainstore, tnode, size);
+                startTransfer(mainstore, tnode, path, restart, progress);
                 //Initiate third party transfer
-                mainstore.transfer(mainstorerootdir+path,tnode,cacherootdir+path,false,null);
+                mainstore.extendedTransfer(mainstorerootdir+path,tnode,cacherootdir+path,listener);
+                transferTuner.logThroughput(path, size, started, sizeClass);
             }
+            restartStore.clear(direction, path);
         } catch (IOException ioE) {
             LOGGER.log(Level.SEVERE,"IOException in fileTransfer(): ", ioE);
-            return -2;
+            broken = true;
+            flushRestartMarkers(recorder);
+            return -5;
         } catch (ClientException cE) {
             LOGGER.log(Level.SEVERE,"Client exception in fileTransfer(): ", cE);
+            broken = true;
+            flushRestartMarkers(recorder);
             return -1;
         } catch (ServerException sE) {
+            //The other server may still owe a reply, or have its data channel
+            //open, which the next user of the connection would read instead
+            reusable = false;
             if (sE.toString().contains("No such file or directory")) {
+                restartStore.clear(direction, path);
                 return -2;
             }
             LOGGER.log(Level.SEVERE,"Server exception in fileTransfer(): ", sE);
+            if (restart != null) {
+                //The server may not accept our markers, so the next attempt starts again
+                restartStore.clear(direction, path);
+            }
+            else {
+                flushRestartMarkers(recorder);
+            }
             return -1;
         }
         finally {
-            if (direction == FileStat.CACHE_BEHIND) {
-                mainstoreBinaryGetpool.returnConnectionToPool(mainstore);
-                tnodeBinaryGetpool.returnConnectionToPool(tnode);
-            }
-            else if (direction == FileStat.CACHE_AHEAD) {
-                mainstoreBinarySendpool.returnConnectionToPool(mainstore);
-                tnodeBinarySendpool.returnConnectionToPool(tnode);
-            }
+            returnTransferConnections(mainstore, tnode, direction, broken, reusable && !broken);
         }
         return 0;
     }
 
+    /**
+     * Tells both servers where to restart a resumed transfer from,
+     * then marks the transfer as started.
+     *
+     * @param source, connection to the server sending the data.
+     * @param destination, connection to the server receiving the data.
+     * @param path, file path
+     * @param restart, ranges already at the destination, null to start from scratch.
+     * @param progress, receives the transfer's markers, may be null.
+     *
+     * @throws IOException when either connection fails.
+     * @throws ServerException when either server rejects the restart markers.
+     */
+    private void startTransfer(GridFTPClient source, GridFTPClient destination, String path,
+                               ByteRangeList restart, GridTransferProgress progress) throws IOException, ServerException {
+        if (restart != null) {
+            source.setRestartMarker(restart);
+            destination.setRestartMarker(restart);
+            restartStore.resumed(path, restart);
+            if (progress != null) {
+                progress.resumedFrom(restart);
+            }
+        }
+        if (progress != null) {
+            progress.transferStarted();
+        }
+    }
+
+    /**
+     * Saves the restart markers of a failed transfer, so the next attempt can resume.
+     *
+     * @param recorder, the transfer's recorder, may be null.
+     */
+    private void flushRestartMarkers(GridRestartStore.Recorder recorder) {
+        if (recorder != null) {
+            recorder.flush();
+        }
+    }
+
+    /**
+     * Describes the version of a file's source, so restart markers
+     * saved for an older version aren't used.
+     *
+     * @param path, file path
+     * @param direction, FileStat.CACHE_AHEAD uses the cached copy,
+     *                   FileStat.CACHE_BEHIND the remote metadata.
+     *
+     * @return String mtime and size of the source, null if they aren't known.
+     */
+    private String sourceVersion(String path, int direction) {
+        if (direction == FileStat.CACHE_AHEAD) {
+            File file = new File(localrootdir+path);
+            return file.exists() ? file.lastModified()+":"+file.length() : null;
+        }
+        try {
+            FileStat meta = dirTree.find_file(path);
+            return meta.getMTime()+":"+meta.getSize();
+        } catch (ClassCastException ccE) {
+            return null;
+        }
+    }
+
+    /**
+     * @param path, file path
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     *
+     * @return boolean, true if an earlier attempt at the transfer can be resumed.
+     */
+    public boolean hasRestartData(String path, int direction) {
+        return restartStore.hasRestartData(direction, path);
+    }
+
+    /**
+     * Forgets the restart markers of a transfer which can no longer be resumed,
+     * such as when the file is deleted.
+     *
+     * @param path, file path
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     */
+    public void clearRestartData(String path, int direction) {
+        restartStore.clear(direction, path);
+    }
+
     /**
      * Transfers files to or from remote server, depending on direction parameter.
+     * The files go in one batch. If the batch fails partway, the files it
+     * didn't finish are transferred one at a time, retrying with exponential
+     * backoff, so one bad file doesn't fail the whole batch. Once a host
+     * is down the rest are left unsynced for the next pass, with -5.
      *
-     * @param path, directory path
+     * @param paths, file paths, may contain nulls.
      * @param direction, FileStat.CACHE_BEHIND = get files from remote server.
      *                  FileStat.CACHE_AHEAD = send files to remote server.
      *
-     * @return int 0 for everything being fine, otherwise linux error codes.
+     * @return int[] result for each entry of paths, 0 for everything being fine
+     *         (and for nulls), otherwise linux error codes.
      */
-    public int multipleFileTransfer(String[] paths, int direction) {
+    public int[] multipleFileTransfer(String[] paths, int direction) {
+        int[] results = new int[paths.length];
+        //A batch can't carry restart markers for each file,
+        //so files an earlier attempt got partway through are resumed one at a time
+        ArrayList<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] == null) {
+                continue;
+            }
+            if (restartStore.hasRestartData(direction, paths[i])) {
+                //With a host down it would fail straight away, it stays unsynced for the next pass
+                results[i] = hostDown() ? -5 : retryTransfer(paths[i], direction, fileTransfer(paths[i], direction, GridConnectionPool.PRIORITY_BACKGROUND));
+            }
+            else {
+                batch.add(i);
+            }
+        }
+        if (batch.isEmpty()) {
+            return results;
+        }
         GridFTPClient mainstore;
         GridFTPClient tnode;
+        int priority = GridConnectionPool.PRIORITY_BACKGROUND;
+        long timeout = backgroundBorrowTimeout;
         if (direction == FileStat.CACHE_BEHIND) {
-            mainstore = mainstoreBinaryGetpool.getConnectionFromPool();
-            tnode = tnodeBinaryGetpool.getConnectionFromPool();
+            mainstore = mainstoreBinaryGetpool.getConnectionFromPool(priority, timeout);
+            tnode = tnodeBinaryGetpool.getConnectionFromPool(priority, timeout);
         }
         else if (direction == FileStat.CACHE_AHEAD) {
-            mainstore = mainstoreBinarySendpool.getConnectionFromPool();
-            tnode = tnodeBinarySendpool.getConnectionFromPool();
+            mainstore = mainstoreBinarySendpool.getConnectionFromPool(priority, timeout);
+            tnode = tnodeBinarySendpool.getConnectionFromPool(priority, timeout);
         }
         else {
             LOGGER.severe("Bad direction, trying to transfer a bunch of files with direction: "+direction);
-            return -1;
+            Arrays.fill(results, -1);
+            return results;
         }
-        if (mainstore == null) {
-            LOGGER.severe("\n\nMainstore connection is null.\n\n");
-            return -1;
+        if (mainstore == null || tnode == null) {
+            if (mainstore == null) {
+                LOGGER.severe("\n\nMainstore connection is null.\n\n");
+            }
+            if (tnode == null) {
+                LOGGER.severe("\n\nTransfer Node connection is null.\n\n");
+            }
+            returnTransferConnections(mainstore, tnode, direction, false);
+            //Nothing was tried, the files stay unsynced for the next pass
+            int retstat = noConnectionError(mainstore == null ? mainstoreBreaker : tnodeBreaker);
+            for (int i : batch) {
+                results[i] = retstat;
+            }
+            return results;
         }
-        if (tnode == null) {
-            LOGGER.severe("\n\nTransfer Node connection is null.\n\n");
-            return -1;
+        String[] batchPaths = new String[batch.size()];
+        String[] batchVersions = new String[batch.size()];
+        for (int j = 0; j < batchPaths.length; j++) {
+            batchPaths[j] = paths[batch.get(j)];
+            batchVersions[j] = sourceVersion(batchPaths[j], direction);
         }
-        ArrayList<String> fullCachePaths = new ArrayList<String>();
-        ArrayList<String> fullMainstorePaths = new ArrayList<String>();
-        for(String path : paths) {
-            if ( path != null ) {
-                fullCachePaths.add(cacherootdir+path);
-                fullMainstorePaths.add(mainstorerootdir+path);
+        GridRestartStore.BatchRecorder recorder = restartStore.batchRecorder(direction, batchPaths, batchVersions);
+        int retstat = batchTransfer(mainstore, tnode, batchPaths, direction, recorder);
+        if (retstat == 0) {
+            return results;
+        }
+        //Files before the one that failed made it, the one that failed and those after it didn't
+        boolean failedFileSeen = false;
+        for (int j = 0; j < batchPaths.length; j++) {
+            int i = batch.get(j);
+            if (recorder.isComplete(j)) {
+                results[i] = 0;
+            }
+            else if (!failedFileSeen) {
+                failedFileSeen = true;
+                LOGGER.warning("Batch transfer failed at "+batchPaths[j]+" ("+retstat+"), transferring the rest one at a time");
+                results[i] = retryTransfer(batchPaths[j], direction, retstat);
+            }
+            else if (hostDown()) {
+                //Each attempt would fail straight away, leave the rest unsynced for the next pass
+                results[i] = -5;
+            }
+            else {
+                results[i] = retryTransfer(batchPaths[j], direction, fileTransfer(batchPaths[j], direction, GridConnectionPool.PRIORITY_BACKGROUND));
             }
         }
+        return results;
+    }
+
+    /**
+     * Sends one batch of files as a single multiple transfer.
+     * The connections are returned to their pools afterwards.
+     *
+     * @param mainstore, mainstore connection.
+     * @param tnode, transfer node connection.
+     * @param paths, file paths, no nulls.
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param recorder, records restart markers and which files completed.
+     *
+     * @return int 0 for everything being fine, otherwise the linux error code
+     *         of the file the batch failed on.
+     */
+    private int batchTransfer(GridFTPClient mainstore, GridFTPClient tnode, String[] paths,
+                              int direction, GridRestartStore.BatchRecorder recorder) {
+        boolean broken = false;
+        boolean reusable = true;
+        String[] fullCachePaths = new String[paths.length];
+        String[] fullMainstorePaths = new String[paths.length];
+        //The whole batch shares one data channel, so set it up for the largest file
+        long largest = -1L;
+        long totalSize = 0L;
+        for (int j = 0; j < paths.length; j++) {
+            fullCachePaths[j] = cacherootdir+paths[j];
+            fullMainstorePaths[j] = mainstorerootdir+paths[j];
+            long size = transferSize(paths[j], direction);
+            largest = Math.max(largest, size);
+            totalSize += Math.max(size, 0L);
+        }
+        long started = System.currentTimeMillis();
         try {
             if (direction == FileStat.CACHE_AHEAD) {
                 LOGGER.fine("Writing a bunch of files back to mainstore");
-                /* TODO: These might be what we need to perform striped transfers, server will also need to be setup for it
-                tnode.setOptions(new RetrieveOptions(5));
-                HostPortList hpl = mainstore.setStripedPassive();
-                tnode.setStripedActive(hpl);
-                */
+                int sizeClass = transferTuner.prepare(tnode, mainstore, largest);
                 //Initiate third party transfer
-                tnode.extendedMultipleTransfer(fullCachePaths.toArray(new String[0]),mainstore,fullMainstorePaths.toArray(new String[0]),null,null);
+                tnode.extendedMultipleTransfer(fullCachePaths,mainstore,fullMainstorePaths,recorder,recorder);
+                transferTuner.logThroughput(paths.length+" files", totalSize, started, sizeClass);
             }
             else if (direction == FileStat.CACHE_BEHIND) {
                 LOGGER.fine("Caching a bunch of files from mainstore");
                 for(String path : paths) {
-                    if ( path != null ) {
-                        File file = new File(localrootdir+path);
-                        file.getParentFile().mkdirs();
-                    }
+                    File file = new File(localrootdir+path);
+                    file.getParentFile().mkdirs();
                 }
-                /* TODO: These might be what we need to perform striped transfers, server will also need to be setup for it
-                mainstore.setOptions(new RetrieveOptions(5));
-                HostPortList hpl = tnode.setStripedPassive();
-                mainstore.setStripedActive(hpl);
-                */
+                int sizeClass = transferTuner.prepare(mainstore, tnode, largest);
                 //Initiate third party transfer
-                mainstore.extendedMultipleTransfer(fullMainstorePaths.toArray(new String[0]),tnode,fullCachePaths.toArray(new String[0]),null,null);
+                mainstore.extendedMultipleTransfer(fullMainstorePaths,tnode,fullCachePaths,recorder,recorder);
+                transferTuner.logThroughput(paths.length+" files", totalSize, started, sizeClass);
             }
         } catch (IOException ioE) {
-            LOGGER.log(Level.SEVERE,"IOException in fileTransfer(): ", ioE);
-            return -2;
+            LOGGER.log(Level.SEVERE,"IOException in multipleFileTransfer(): ", ioE);
+            broken = true;
+            recorder.flush();
+            return -5;
         } catch (ClientException cE) {
-            LOGGER.log(Level.SEVERE,"Client exception in fileTransfer(): ", cE);
+            LOGGER.log(Level.SEVERE,"Client exception in multipleFileTransfer(): ", cE);
+            broken = true;
+            recorder.flush();
             return -1;
         } catch (ServerException sE) {
+            //The other server may still owe a reply, or have its data channel
+            //open, which the next user of the connection would read instead
+            reusable = false;
             if (sE.toString().contains("No such file or directory")) {
                 return -2;
             }
-            LOGGER.log(Level.SEVERE,"Server exception in fileTransfer(): ", sE);
+            LOGGER.log(Level.SEVERE,"Server exception in multipleFileTransfer(): ", sE);
+            recorder.flush();
             return -1;
         }
         finally {
-            if (direction == FileStat.CACHE_BEHIND) {
-                mainstoreBinaryGetpool.returnConnectionToPool(mainstore);
-                tnodeBinaryGetpool.returnConnectionToPool(tnode);
+            returnTransferConnections(mainstore, tnode, direction, broken, reusable && !broken);
+        }
+        return 0;
+    }
+
+    /**
+     * Tries a failed transfer again, up to transferRetries times, waiting
+     * twice as long before each attempt. Missing files aren't retried, and
+     * nothing is retried while either host's breaker says it is down.
+     * Restart markers from earlier attempts are picked up by fileTransfer().
+     *
+     * @param path, file path
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param retstat, result of the attempt already made.
+     *
+     * @return int 0 for everything being fine, otherwise the linux error code of the last attempt.
+     */
+    private int retryTransfer(String path, int direction, int retstat) {
+        long delay = retryDelay;
+        for (int attempt = 1; attempt <= transferRetries && retstat != 0 && retstat != -2; attempt++) {
+            if (hostDown()) {
+                LOGGER.info("Transfer of "+path+" failed ("+retstat+") and a host is down, not retrying");
+                return retstat;
             }
-            else if (direction == FileStat.CACHE_AHEAD) {
-                mainstoreBinarySendpool.returnConnectionToPool(mainstore);
-                tnodeBinarySendpool.returnConnectionToPool(tnode);
+            //Jitter stops the transfer threads retrying in step
+            long wait = delay + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+            LOGGER.info("Transfer of "+path+" failed ("+retstat+"), retry "+attempt+" of "+transferRetries+" in "+wait+"ms");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+                return retstat;
             }
+            retstat = fileTransfer(path, direction, GridConnectionPool.PRIORITY_BACKGROUND);
+            delay = Math.min(delay*2, retryMaxDelay);
+        }
+        return retstat;
+    }
+
+    /**
+     * Copies a byte range of a remote file into the same range
+     * of the cached copy, using an extended (partial) retrieve.
+     * The cached copy isn't truncated, so other ranges already
+     * fetched stay where they are.
+     *
+     * @param path, file path
+     * @param offset, first byte to copy.
+     * @param length, number of bytes to copy.
+     * @param priority, GridConnectionPool.PRIORITY_INTERACTIVE when a user is waiting on it,
+     *                  GridConnectionPool.PRIORITY_BACKGROUND otherwise.
+     *
+     * @return int 0 for everything being fine, otherwise linux error codes.
+     */
+    public int partialTransfer(String path, long offset, long length, int priority) {
+        long timeout = (priority == GridConnectionPool.PRIORITY_BACKGROUND) ? backgroundBorrowTimeout : transferBorrowTimeout;
+        GridFTPClient mainstore = mainstoreBinaryGetpool.getConnectionFromPool(priority, timeout);
+        GridFTPClient tnode = tnodeBinaryGetpool.getConnectionFromPool(priority, timeout);
+        if (mainstore == null || tnode == null) {
+            if (mainstore == null) {
+                LOGGER.severe("\n\nMainstore connection is null.\n\n");
+            }
+            if (tnode == null) {
+                LOGGER.severe("\n\nTransfer Node connection is null.\n\n");
+            }
+            returnTransferConnections(mainstore, tnode, FileStat.CACHE_BEHIND, false);
+            return noConnectionError(mainstore == null ? mainstoreBreaker : tnodeBreaker);
+        }
+        boolean broken = false;
+        boolean reusable = true;
+        long started = System.currentTimeMillis();
+        try {
+            LOGGER.fine("Caching bytes "+offset+"-"+(offset+length)+" of "+path+" from mainstore");
+            int sizeClass = transferTuner.prepare(mainstore, tnode, length);
+            //Initiate third party transfer of just this range
+            mainstore.extendedTransfer(mainstorerootdir+path,offset,length,tnode,cacherootdir+path,offset,null);
+            transferTuner.logThroughput(path+" range", length, started, sizeClass);
+        } catch (IOException ioE) {
+            LOGGER.log(Level.SEVERE,"IOException in partialTransfer(): ", ioE);
+            broken = true;
+            return -5;
+        } catch (ClientException cE) {
+            LOGGER.log(Level.SEVERE,"Client exception in partialTransfer(): ", cE);
+            broken = true;
+            return -5;
+        } catch (ServerException sE) {
+            //The other server may still owe a reply, or have its data channel
+            //open, which the next user of the connection would read instead
+            reusable = false;
+            if (sE.toString().contains("No such file or directory")) {
+                return -2;
+            }
+            LOGGER.log(Level.SEVERE,"Server exception in partialTransfer(): ", sE);
+            return -5;
+        }
+        finally {
+            returnTransferConnections(mainstore, tnode, FileStat.CACHE_BEHIND, broken, reusable && !broken);
         }
         return 0;
     }
 
+    /**
+     * Finds out how big a file being transferred is, so the transfer
+     * can be set up for its size class.
+     *
+     * @param path, file path
+     * @param direction, FileStat.CACHE_AHEAD uses the cached copy,
+     *                   FileStat.CACHE_BEHIND the remote metadata.
+     *
+     * @return long file size in bytes, -1 if it isn't known.
+     */
+    private long transferSize(String path, int direction) {
+        if (direction == FileStat.CACHE_AHEAD) {
+            File file = new File(localrootdir+path);
+            return file.exists() ? file.length() : -1L;
+        }
+        try {
+            return dirTree.find_file(path).getSizeBytes();
+        } catch (ClassCastException ccE) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Picks the error to report when no connection could be borrowed.
+     *
+     * @param breaker, circuit breaker for the host we couldn't get a connection to.
+     * @return int -5 (EIO) if the host is marked down,
+     *         -11 (EAGAIN) if we just ran out of time waiting.
+     */
+    private int noConnectionError(GridCircuitBreaker breaker) {
+        if (breaker.isHostDown()) {
+            return -5;
+        }
+        return -11;
+    }
+
+    /**
+     * @return boolean, true if the breaker of the mainstore or the transfer node says it is down.
+     */
+    private boolean hostDown() {
+        return mainstoreBreaker.isHostDown() || tnodeBreaker.isHostDown();
+    }
+
+    /**
+     * Returns the connections used by a transfer to the pools they came from.
+     *
+     * @param mainstore, mainstore connection, may be null.
+     * @param tnode, transfer node connection, may be null.
+     * @param direction, direction of the transfer, picks the pools.
+     * @param broken, true if the transfer left the connections unusable.
+     */
+    private void returnTransferConnections(GridFTPClient mainstore, GridFTPClient tnode, int direction, boolean broken) {
+        returnTransferConnections(mainstore, tnode, direction, broken, !broken);
+    }
+
+    /**
+     * Returns both connections used by a third party transfer to their pools.
+     *
+     * @param mainstore, the mainstore connection, may be null.
+     * @param tnode, the transfer node connection, may be null.
+     * @param direction, FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param broken, true if an error left the connections unusable.
+     * @param reusable, false if the transfer failed part way, so the
+     *                  connections are replaced even though they work.
+     */
+    private void returnTransferConnections(GridFTPClient mainstore, GridFTPClient tnode, int direction, boolean broken, boolean reusable) {
+        if (direction == FileStat.CACHE_BEHIND) {
+            mainstoreBinaryGetpool.returnConnectionToPool(mainstore, broken, reusable);
+            tnodeBinaryGetpool.returnConnectionToPool(tnode, broken, reusable);
+        }
+        else if (direction == FileStat.CACHE_AHEAD) {
+            mainstoreBinarySendpool.returnConnectionToPool(mainstore, broken, reusable);
+            tnodeBinarySendpool.returnConnectionToPool(tnode, broken, reusable);
+        }
+    }
+
     /**
      * Creates a remote directory.
      *
@@ -240,7 +734,11 @@ public class GridOpsGridFTP implements GridOps {
      * @return int 0 for everything being fine, otherwise linux error codes.
      */
     public int mkdir(String path) {
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             mainstore.makeDir(mainstorerootdir+path);
         }
@@ -250,10 +748,11 @@ public class GridOpsGridFTP implements GridOps {
         }
         catch (IOException ioE) {
             LOGGER.log(Level.SEVERE,"IOException in mkdir(): ", ioE);
+            broken = true;
             return -2;
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
         return 0;
     }
@@ -266,7 +765,11 @@ public class GridOpsGridFTP implements GridOps {
      * @return int 0 for everything being fine, otherwise linux error codes.
      */
     public int unlink(String path) {
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             mainstore.deleteFile(mainstorerootdir+path);
         }
@@ -279,10 +782,11 @@ public class GridOpsGridFTP implements GridOps {
         }
         catch (IOException ioE) {
             LOGGER.fine("IOException in unlink(): " + ioE);
+            broken = true;
             return -2;
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
         return 0;
     }
@@ -295,7 +799,11 @@ public class GridOpsGridFTP implements GridOps {
      * @return int 0 for everything being fine, otherwise linux error codes.
      */
     public int rmdir(String path) {
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             mainstore.deleteDir(mainstorerootdir+path);
         }
@@ -308,10 +816,11 @@ public class GridOpsGridFTP implements GridOps {
         }
         catch (IOException ioE) {
             LOGGER.fine("IOException in rmdir(): " + ioE);
+            broken = true;
             return -2;
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
         return 0;
     }
@@ -326,7 +835,11 @@ public class GridOpsGridFTP implements GridOps {
      */
     public int rename(String path, String newpath) {
         //Move and/or rename file on server
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             mainstore.rename(mainstorerootdir+path,mainstorerootdir+newpath);
         }
@@ -336,10 +849,11 @@ public class GridOpsGridFTP implements GridOps {
         }
         catch (IOException ioE) {
             LOGGER.fine("IOException in rename(): " + ioE);
+            broken = true;
             return -2;
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
         return 0;
     }
@@ -356,7 +870,11 @@ public class GridOpsGridFTP implements GridOps {
         GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
         cal.setTimeInMillis(mtime*1000);
 
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             mainstore.changeModificationTime(cal.get(Calendar.YEAR),
                                             cal.get(Calendar.MONTH)+1,
@@ -367,6 +885,7 @@ public class GridOpsGridFTP implements GridOps {
                                             mainstorerootdir+path);
         } catch (IOException ioE) {
             LOGGER.fine("IOException in changeModificationTime(): " + ioE);
+            broken = true;
             return -2;
         }
         catch (ServerException sE) {
@@ -379,7 +898,7 @@ public class GridOpsGridFTP implements GridOps {
             }
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
         return 0;
     }
@@ -393,7 +912,11 @@ public class GridOpsGridFTP implements GridOps {
      */
     public int mlsd(String path) {
         Vector dir_listing = null;
-        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_INTERACTIVE, metadataBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
             //If the file/directory doesn't exist on the server move up one.
             if ( !mainstore.exists(mainstorerootdir+path) ) {
@@ -408,22 +931,28 @@ public class GridOpsGridFTP implements GridOps {
             else if (sE.toString().contains("Not a directory")) {
                 return -20;
             }
+            else if (sE.toString().contains("No such file or directory")) {
+                return -2;
+            }
             else {
                 LOGGER.log(Level.SEVERE,"ServerException doing mlsd on "+path, sE);
                 return -1;
             }
         } catch (ClientException cE) {
             LOGGER.log(Level.SEVERE,"ClientException doing mlsd on "+path, cE);
+            broken = true;
             return -1;
         } catch (IOException ioE) {
             LOGGER.log(Level.SEVERE,"IOException doing mlsd on "+path, ioE);
+            broken = true;
             return -2;
         }
         finally {
-            mainstoreASCIIpool.returnConnectionToPool(mainstore);
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
         }
 
         //Loop through files received from gFTP
+        ArrayList<FileStat> metaData = new ArrayList<FileStat>(dir_listing.size());
         while (!dir_listing.isEmpty()) {
             MlsxEntry f = (MlsxEntry) dir_listing.remove(0);
             DateFormat dfm = new SimpleDateFormat("yyyyMMddHHmmss");
@@ -441,9 +970,10 @@ public class GridOpsGridFTP implements GridOps {
                                         f.get(MlsxEntry.UNIX_OWNER),
                                         f.get(MlsxEntry.UNIX_GROUP),
                                         FileStat.CACHE_BEHIND);
-            //Add to dirTree
-            dirTree.add_node(path,fileMeta);
+            metaData.add(fileMeta);
         }
+        //Add to dirTree, all at once so readers see the whole listing or none of it
+        dirTree.add_nodes(path,metaData);
         return 0;
     }
 
@@ -460,38 +990,46 @@ public class GridOpsGridFTP implements GridOps {
         GridFuseMlsxEntryWriter writer = new GridFuseMlsxEntryWriter(dirTree);
         //Check through entire directory tree of mainstore
         //and add contents to dirTree.
+        GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool(GridConnectionPool.PRIORITY_BACKGROUND, backgroundBorrowTimeout);
+        if (mainstore == null) {
+            return noConnectionError(mainstoreBreaker);
+        }
+        boolean broken = false;
         try {
-            GridFTPClient mainstore = mainstoreASCIIpool.getConnectionFromPool();
-            if (mainstore != null) {
-                mainstore.mlsr(mainstorerootdir+path,writer);
-                mainstoreASCIIpool.returnConnectionToPool(mainstore);
-            }
-            else {
-                return -1;
-            }
+            mainstore.mlsr(mainstorerootdir+path,writer);
         } catch (ServerException sE) {
             LOGGER.log(Level.SEVERE,"CacheAll MLSR ServerException: ", sE);
             return -1;
         }
         catch (ClientException cE) {
             LOGGER.log(Level.SEVERE,"CacheAll MLSR ClientException: ", cE);
+            broken = true;
             return -1;
         }
         catch (IOException ioE) {
             LOGGER.fine("CacheAll MLSR IOException: " + ioE);
+            broken = true;
             return -2;
         }
+        finally {
+            mainstoreASCIIpool.returnConnectionToPool(mainstore, broken);
+            //Adds any entries still waiting in the writer's batch
+            writer.close();
+        }
         return 0;
     }
 
     /**
-     * Performs a NOOP request to all connections in each pool.
+     * Closes every connection pool.
      */
-    public void noop() {
-        mainstoreASCIIpool.noopAll();
-        mainstoreBinaryGetpool.noopAll();
-        mainstoreBinarySendpool.noopAll();
-        tnodeBinaryGetpool.noopAll();
-        tnodeBinarySendpool.noopAll();
+    public void close() {
+        mainstoreASCIIpool.close();
+        mainstoreBinaryGetpool.close();
+        mainstoreBinarySendpool.close();
+        tnodeBinaryGetpool.close();
+        tnodeBinarySendpool.close();
+        keepAliveWheel.close();
+        credentials.close();
+        LOGGER.info("Resuming transfers saved "+restartStore.getBytesSaved()+" bytes");
     }
 }
@@ -0,0 +1,77 @@
+package gridfuse.prototype;
+
+import org.globus.ftp.GridFTPClient;
+
+/**
+ * Wraps a GridFTP connection held by a GridConnectionPool
+ * with the bookkeeping needed to decide whether it can be reused.
+ */
+class GridPooledConnection {
+    final GridFTPClient client;
+    final long created;
+    //Generation of the credential the connection was authenticated with
+    final int credentialGeneration;
+    private volatile long lastUsed;
+    //Last time anything, including a keepalive, was sent down the connection
+    private volatile long lastActivity;
+    //Set once the connection has been closed, so keepalives stop
+    volatile boolean discarded = false;
+    //Priority of whoever borrowed it last, see GridConnectionPool.PRIORITY_*
+    volatile int priority = GridConnectionPool.PRIORITY_INTERACTIVE;
+
+    /**
+     * @param client, an authenticated GridFTP connection.
+     * @param credentialGeneration, generation of the credential it was authenticated with.
+     */
+    GridPooledConnection(GridFTPClient client, int credentialGeneration) {
+        this.client = client;
+        this.credentialGeneration = credentialGeneration;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = created;
+        this.lastActivity = created;
+    }
+
+    /**
+     * Records that the connection has just been used.
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+        lastActivity = lastUsed;
+    }
+
+    /**
+     * Records that a keepalive has just been sent. This doesn't
+     * count as use, so the pool can still shrink the connection away.
+     */
+    void keptAlive() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * @return long time anything was last sent, in milliseconds since the epoch.
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return long how long since anything was sent, in milliseconds.
+     */
+    long silentMillis() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    /**
+     * @return long time of last use, in milliseconds since the epoch.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return long how long the connection has sat unused, in milliseconds.
+     */
+    long idleMillis() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+}
@@ -0,0 +1,351 @@
+package gridfuse.prototype;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.globus.ftp.ByteRange;
+import org.globus.ftp.ByteRangeList;
+import org.globus.ftp.GridFTPRestartMarker;
+import org.globus.ftp.Marker;
+import org.globus.ftp.MarkerListener;
+import org.globus.ftp.MultipleTransferComplete;
+import org.globus.ftp.MultipleTransferCompleteListener;
+
+/**
+ * Saves the restart markers of transfers in progress, so a transfer
+ * which fails partway can carry on from where it got to instead of
+ * starting again from byte 0.
+ *
+ * Markers are written to a file per transfer under restartStateDir as
+ * they arrive, so they survive the process being restarted. Each file
+ * also records the version (mtime and size) of the source file, markers
+ * for a source which has changed since are thrown away.
+ */
+public class GridRestartStore {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //Least time between writes of the markers for one transfer (ms)
+    private static final long SAVE_INTERVAL = 1000L;
+
+    final File stateDir;
+    //Bytes which didn't have to be sent again thanks to resuming
+    private final AtomicLong bytesSaved = new AtomicLong(0L);
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for restartStateDir.
+     */
+    public GridRestartStore(HashMap<String,String> GridFuseProps) {
+        String dir = GridFuseProps.get("restartStateDir");
+        stateDir = new File((dir == null || dir.trim().isEmpty()) ? GridFuseProps.get("GRID_FUSE_CONF")+"/restart" : dir.trim());
+    }
+
+    /**
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param path the file being transferred.
+     * @return File where the transfer's markers are kept.
+     */
+    private File stateFile(int direction, String path) {
+        String prefix = (direction == FileStat.CACHE_AHEAD) ? "send" : "get";
+        return new File(new File(stateDir, prefix), path+".restart");
+    }
+
+    /**
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param path the file being transferred.
+     * @return boolean, true if an earlier attempt left markers behind.
+     */
+    public boolean hasRestartData(int direction, String path) {
+        return stateFile(direction, path).exists();
+    }
+
+    /**
+     * Loads the markers left by an earlier attempt at a transfer.
+     *
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param path the file being transferred.
+     * @param version version of the source file now, see GridOpsGridFTP.
+     * @param destination the local copy being written, null if the destination is remote.
+     *        Markers are only used if it still holds every range they cover.
+     * @return ByteRangeList ranges already at the destination,
+     *         or null if there's nothing usable to resume from.
+     */
+    public ByteRangeList load(int direction, String path, String version, File destination) {
+        File state = stateFile(direction, path);
+        if (!state.exists()) {
+            return null;
+        }
+        String savedVersion;
+        String ranges;
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(state));
+            try {
+                savedVersion = in.readLine();
+                ranges = in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioE) {
+            LOGGER.log(Level.WARNING, "Couldn't read restart markers for "+path, ioE);
+            state.delete();
+            return null;
+        }
+        if (!version.equals(savedVersion) || ranges == null || ranges.isEmpty()) {
+            LOGGER.fine(path+" has changed since the last attempt, starting again");
+            state.delete();
+            return null;
+        }
+        ByteRangeList restart = new ByteRangeList();
+        try {
+            for (String range : ranges.split(",")) {
+                String[] ends = range.split("-");
+                restart.merge(new ByteRange(Long.parseLong(ends[0]), Long.parseLong(ends[1])));
+            }
+        } catch (RuntimeException rE) {
+            LOGGER.log(Level.WARNING, "Unreadable restart markers for "+path+", starting again", rE);
+            state.delete();
+            return null;
+        }
+        //Resuming into a copy which was deleted or cut short would leave zeros where the markers say data is
+        if (destination != null && (!destination.exists() || destination.length() < rangeEnd(restart))) {
+            LOGGER.fine(path+" is no longer what the restart markers describe, starting again");
+            state.delete();
+            return null;
+        }
+        return restart;
+    }
+
+    /**
+     * Records that a transfer is resuming, and how much that saves.
+     *
+     * @param path the file being transferred.
+     * @param restart ranges already at the destination.
+     */
+    public void resumed(String path, ByteRangeList restart) {
+        long skipped = rangeBytes(restart);
+        long total = bytesSaved.addAndGet(skipped);
+        LOGGER.info("Resuming "+path+", "+skipped+" bytes already transferred, "
+                    +total+" bytes saved by resuming so far");
+    }
+
+    /**
+     * @return long bytes which didn't have to be sent again thanks to resuming.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Forgets a transfer's markers, once it has finished or can't be resumed.
+     *
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param path the file being transferred.
+     */
+    public void clear(int direction, String path) {
+        stateFile(direction, path).delete();
+    }
+
+    /**
+     * Makes a MarkerListener which saves a transfer's restart markers as they arrive.
+     *
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param path the file being transferred.
+     * @param version version of the source file, see GridOpsGridFTP.
+     * @param restart ranges already at the destination, may be null.
+     * @param delegate listener which should also see the markers, may be null.
+     * @return Recorder to pass to the transfer as its MarkerListener.
+     */
+    Recorder recorder(int direction, String path, String version, ByteRangeList restart, MarkerListener delegate) {
+        return new Recorder(direction, path, version, restart, delegate);
+    }
+
+    /**
+     * Makes a listener which saves the restart markers of each file in a
+     * batch transfer, moving on to the next file as each one completes.
+     *
+     * @param direction FileStat.CACHE_BEHIND or FileStat.CACHE_AHEAD.
+     * @param paths the files in the order they're transferred.
+     * @param versions version of each source file, null where it isn't known.
+     * @return BatchRecorder to pass to the transfer as both its listeners.
+     */
+    BatchRecorder batchRecorder(int direction, String[] paths, String[] versions) {
+        return new BatchRecorder(direction, paths, versions);
+    }
+
+    /**
+     * @param ranges byte ranges.
+     * @return long number of bytes the ranges cover.
+     */
+    private static long rangeBytes(ByteRangeList ranges) {
+        long bytes = 0L;
+        //toVector() is untyped, every element is a ByteRange
+        List<?> list = ranges.toVector();
+        for (Object range : list) {
+            bytes += ((ByteRange) range).to - ((ByteRange) range).from;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param ranges byte ranges.
+     * @return long end of the last range.
+     */
+    private static long rangeEnd(ByteRangeList ranges) {
+        long end = 0L;
+        List<?> list = ranges.toVector();
+        for (Object range : list) {
+            end = Math.max(end, ((ByteRange) range).to);
+        }
+        return end;
+    }
+
+    /**
+     * Saves the restart markers of one transfer.
+     */
+    class Recorder implements MarkerListener {
+        final int direction;
+        final String path;
+        final String version;
+        final MarkerListener delegate;
+        final ByteRangeList received = new ByteRangeList();
+        private long lastSaved = 0L;
+
+        Recorder(int direction, String path, String version, ByteRangeList restart, MarkerListener delegate) {
+            this.direction = direction;
+            this.path = path;
+            this.version = version;
+            this.delegate = delegate;
+            if (restart != null) {
+                received.merge(restart);
+            }
+        }
+
+        @Override
+        public void markerArrived(Marker marker) {
+            if (marker instanceof GridFTPRestartMarker) {
+                synchronized (received) {
+                    received.merge(((GridFTPRestartMarker) marker).toVector());
+                    long now = System.currentTimeMillis();
+                    if (now - lastSaved >= SAVE_INTERVAL) {
+                        lastSaved = now;
+                        save();
+                    }
+                }
+            }
+            if (delegate != null) {
+                delegate.markerArrived(marker);
+            }
+        }
+
+        /**
+         * Saves any markers which arrived since the last save,
+         * call this when the transfer fails.
+         */
+        void flush() {
+            synchronized (received) {
+                if (!received.toVector().isEmpty()) {
+                    save();
+                }
+            }
+        }
+
+        /**
+         * Writes the ranges received so far, replacing the old file in one go
+         * so a crash mid-write can't leave a corrupt one.
+         */
+        private void save() {
+            File state = stateFile(direction, path);
+            File tmp = new File(state.getPath()+".tmp");
+            try {
+                state.getParentFile().mkdirs();
+                FileWriter out = new FileWriter(tmp);
+                try {
+                    out.write(version+"\n"+received.toFtpCmdArgument()+"\n");
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(state)) {
+                    throw new IOException("Couldn't replace "+state);
+                }
+            } catch (IOException ioE) {
+                LOGGER.log(Level.WARNING, "Couldn't save restart markers for "+path, ioE);
+            }
+        }
+    }
+
+    /**
+     * Saves the restart markers of the file a batch transfer is on.
+     * Markers for a file arrive before it is reported complete, so
+     * they belong to the file after the last one completed.
+     * Also remembers which files completed, so a failed batch
+     * only has to retry the rest.
+     */
+    class BatchRecorder implements MarkerListener, MultipleTransferCompleteListener {
+        final int direction;
+        final String[] paths;
+        //Null where the source version isn't known, those files aren't resumable
+        final Recorder[] recorders;
+        private final boolean[] completed;
+        private int current = 0;
+
+        BatchRecorder(int direction, String[] paths, String[] versions) {
+            this.direction = direction;
+            this.paths = paths;
+            recorders = new Recorder[paths.length];
+            completed = new boolean[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                if (versions[i] != null) {
+                    recorders[i] = new Recorder(direction, paths[i], versions[i], null, null);
+                }
+            }
+        }
+
+        /**
+         * @return Recorder for the file being transferred, or null.
+         */
+        private synchronized Recorder currentRecorder() {
+            return (current < recorders.length) ? recorders[current] : null;
+        }
+
+        @Override
+        public void markerArrived(Marker marker) {
+            Recorder recorder = currentRecorder();
+            if (recorder != null) {
+                recorder.markerArrived(marker);
+            }
+        }
+
+        @Override
+        public void transferComplete(MultipleTransferComplete done) {
+            synchronized (this) {
+                current = Math.max(current, done.index + 1);
+                completed[done.index] = true;
+            }
+            clear(direction, paths[done.index]);
+        }
+
+        /**
+         * @param index position of the file in the batch.
+         * @return boolean, true if the server reported the file complete.
+         */
+        synchronized boolean isComplete(int index) {
+            return completed[index];
+        }
+
+        /**
+         * Saves the markers of the file the batch was on, call this when it fails.
+         */
+        void flush() {
+            Recorder recorder = currentRecorder();
+            if (recorder != null) {
+                recorder.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package gridfuse.prototype;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Groups files waiting to be synced into transfers.
+ *
+ * Files are sent shortest first, so the average time a file waits to be
+ * synced is as short as it can be. That order only holds within what
+ * plan() is given, the getLookahead() files at the front of the queue,
+ * which the scheduler hands out in the order they were queued. A small
+ * file queued behind a window full of large ones still waits for them.
+ *
+ * Small files go together in batches, large files (at least
+ * largeFileThreshold MB) go on their own, where they get the parallel
+ * streams GridTransferTuner gives large files and don't hold a batch of
+ * small ones up.
+ *
+ * The number of files in a batch is tuned as batches complete. It keeps
+ * moving the same way while throughput holds up and turns round when
+ * throughput drops, staying between batchMinFiles and batchMaxFiles.
+ */
+public class GridTransferBatcher {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //How much the batch size changes after each batch
+    private static final double STEP = 1.25;
+    //Throughput has to drop by more than this fraction before the batch size turns round
+    private static final double TOLERANCE = 0.1;
+    //Weight of the newest batch in the throughput average
+    private static final double RATE_WEIGHT = 0.3;
+    //How many batches worth of queued files are looked at when planning
+    private static final int LOOKAHEAD_BATCHES = 4;
+
+    //Files at least this big are sent on their own (bytes)
+    final long LARGE_FILE_THRESHOLD;
+    //Most bytes in one batch
+    final long MAX_BATCH_BYTES;
+    final int MIN_BATCH_FILES;
+    final int MAX_BATCH_FILES;
+    private int batchFiles;
+    //+1 while the batch size is growing, -1 while it is shrinking
+    private int trend = 1;
+    //Moving average of batch throughput (bytes/s), -1 until measured
+    private double rate = -1;
+
+    /**
+     * One transfer to make, either a batch of small files or one large file.
+     */
+    public static class Batch {
+        final String[] paths;
+        //Total size of the files, unknown sizes count as 0
+        final long bytes;
+
+        Batch(String[] paths, long bytes) {
+            this.paths = paths;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return boolean, true for a single file, which is sent on its own.
+         */
+        public boolean isSingle() {
+            return paths.length == 1;
+        }
+    }
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       numberOfFilesToTransfer (the starting batch size),
+     *                       batchMinFiles, batchMaxFiles, batchMaxMB
+     *                       and largeFileThreshold.
+     */
+    public GridTransferBatcher(HashMap<String,String> GridFuseProps) {
+        LARGE_FILE_THRESHOLD = 1024L*1024L * GridFuseProperties.getIntProperty(GridFuseProps, "largeFileThreshold", 64);
+        MAX_BATCH_BYTES = 1024L*1024L * Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "batchMaxMB", 1024));
+        MIN_BATCH_FILES = Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "batchMinFiles", 4));
+        MAX_BATCH_FILES = Math.max(MIN_BATCH_FILES, GridFuseProperties.getIntProperty(GridFuseProps, "batchMaxFiles", 500));
+        int start = GridFuseProperties.getIntProperty(GridFuseProps, "numberOfFilesToTransfer", 10);
+        batchFiles = Math.max(MIN_BATCH_FILES, Math.min(MAX_BATCH_FILES, start));
+    }
+
+    /**
+     * @return int number of files in a batch right now.
+     */
+    public synchronized int getBatchFiles() {
+        return batchFiles;
+    }
+
+    /**
+     * @return int how many queued files to take at once and pass to plan().
+     */
+    public synchronized int getLookahead() {
+        return batchFiles * LOOKAHEAD_BATCHES;
+    }
+
+    /**
+     * Splits files into transfers, to be made in the order returned.
+     * Only the files given are ordered, not everything that is queued.
+     *
+     * @param paths files to transfer, may contain nulls.
+     * @param sizes size of each file in bytes, negative if unknown.
+     * @return List of batches, shortest first.
+     */
+    public List<Batch> plan(String[] paths, long[] sizes) {
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] != null) {
+                order.add(i);
+            }
+        }
+        //Shortest job first, files of unknown size are probably small
+        order.sort(Comparator.comparingLong(i -> Math.max(sizes[i], 0L)));
+
+        int maxFiles = getBatchFiles();
+        List<Batch> batches = new ArrayList<Batch>();
+        ArrayList<String> current = new ArrayList<String>();
+        long currentBytes = 0L;
+        for (int i : order) {
+            long size = Math.max(sizes[i], 0L);
+            if (size >= LARGE_FILE_THRESHOLD) {
+                //Everything after this is large too
+                if (!current.isEmpty()) {
+                    batches.add(new Batch(current.toArray(new String[0]), currentBytes));
+                    current.clear();
+                    currentBytes = 0L;
+                }
+                batches.add(new Batch(new String[] {paths[i]}, size));
+                continue;
+            }
+            if (!current.isEmpty() && (current.size() >= maxFiles || currentBytes + size > MAX_BATCH_BYTES)) {
+                batches.add(new Batch(current.toArray(new String[0]), currentBytes));
+                current.clear();
+                currentBytes = 0L;
+            }
+            current.add(paths[i]);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            batches.add(new Batch(current.toArray(new String[0]), currentBytes));
+        }
+        return batches;
+    }
+
+    /**
+     * Tunes the batch size from how fast a batch went.
+     * Single file transfers tell us nothing about batching, so leave them out.
+     *
+     * @param batch the batch, as returned by plan().
+     * @param millis how long it took in milliseconds.
+     */
+    public synchronized void batchFinished(Batch batch, long millis) {
+        if (batch.isSingle() || batch.bytes <= 0) {
+            return;
+        }
+        double sample = batch.bytes * 1000.0 / Math.max(1L, millis);
+        if (rate > 0 && sample < rate * (1.0 - TOLERANCE)) {
+            //Got worse, go back the other way
+            trend = -trend;
+        }
+        rate = (rate < 0) ? sample : (1.0 - RATE_WEIGHT)*rate + RATE_WEIGHT*sample;
+        int next = (trend > 0) ? (int) Math.ceil(batchFiles * STEP) : (int) Math.floor(batchFiles / STEP);
+        next = Math.max(MIN_BATCH_FILES, Math.min(MAX_BATCH_FILES, next));
+        if (next == batchFiles) {
+            //Stuck at a limit, try the other way next time
+            trend = -trend;
+        }
+        else {
+            LOGGER.fine("Batch of "+batch.paths.length+" files ran at "+(long) sample+" bytes/s, batch size now "+next);
+        }
+        batchFiles = next;
+    }
+}
@@ -0,0 +1,223 @@
+package gridfuse.prototype;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.globus.ftp.ByteRange;
+import org.globus.ftp.ByteRangeList;
+import org.globus.ftp.GridFTPRestartMarker;
+import org.globus.ftp.Marker;
+import org.globus.ftp.MarkerListener;
+import org.globus.ftp.PerfMarker;
+import org.globus.ftp.exception.PerfMarkerException;
+
+/**
+ * Keeps track of how far a file transfer has got, from the
+ * markers the receiving server sends while it runs.
+ *
+ * Restart markers say which byte ranges have been written. The
+ * watermark is the end of the range starting at byte 0, everything
+ * below it can be read while the transfer carries on. Performance
+ * markers only count bytes, they're used for logging.
+ *
+ * Anyone waiting for the transfer to get going waits on a future,
+ * completed by the first marker (the receiving server has created the
+ * file and is writing to it) or by the transfer ending, whichever
+ * comes first. Everyone waiting gets the same result.
+ */
+public class GridTransferProgress implements MarkerListener {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+
+    final String path;
+    //Size of the file in bytes, -1 if unknown
+    final long size;
+    //Byte ranges the receiving server has written
+    private final ByteRangeList received = new ByteRangeList();
+    //Bytes reported by the performance markers of each stripe
+    private final HashMap<Long,Long> stripeBytes = new HashMap<Long,Long>();
+    //Everything below this has been written
+    private long watermark = 0L;
+    //Completes with 0 once the destination file is being written, or with the transfer's result
+    private final CompletableFuture<Integer> underway = new CompletableFuture<Integer>();
+    private boolean finished = false;
+    private int retstat = 0;
+    //Last time anything happened, so readers can tell a stalled transfer from a slow one
+    private long lastProgress = System.currentTimeMillis();
+
+    /**
+     * @param path, the file being transferred.
+     * @param size, size of the file in bytes, -1 if unknown.
+     */
+    public GridTransferProgress(String path, long size) {
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * Called by GridFTPClient for every marker the server sends.
+     *
+     * @param marker a GridFTPRestartMarker or PerfMarker.
+     */
+    @Override
+    public synchronized void markerArrived(Marker marker) {
+        if (marker instanceof GridFTPRestartMarker) {
+            received.merge(((GridFTPRestartMarker) marker).toVector());
+            updateWatermark();
+        }
+        else if (marker instanceof PerfMarker) {
+            PerfMarker perf = (PerfMarker) marker;
+            try {
+                if (perf.hasStripeBytesTransferred()) {
+                    long stripe = perf.hasStripeIndex() ? perf.getStripeIndex() : 0L;
+                    stripeBytes.put(stripe, perf.getStripeBytesTransferred());
+                }
+            } catch (PerfMarkerException pmE) {
+                LOGGER.log(Level.FINEST, "Unreadable performance marker for "+path, pmE);
+            }
+        }
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+        underway.complete(0);
+    }
+
+    /**
+     * Moves the watermark up to the end of the received range starting at byte 0.
+     */
+    private void updateWatermark() {
+        //toVector() is untyped, every element is a ByteRange
+        List<?> ranges = received.toVector();
+        if (!ranges.isEmpty()) {
+            ByteRange first = (ByteRange) ranges.get(0);
+            if (first.from == 0 && first.to > watermark) {
+                watermark = first.to;
+            }
+        }
+    }
+
+    /**
+     * Called when the transfer resumes an earlier attempt,
+     * with the ranges that attempt already wrote.
+     *
+     * @param restart ranges already at the destination.
+     */
+    public synchronized void resumedFrom(ByteRangeList restart) {
+        received.merge(restart);
+        updateWatermark();
+        notifyAll();
+        //The destination file is already there
+        underway.complete(0);
+    }
+
+    /**
+     * Called just before the transfer command is sent.
+     */
+    public synchronized void transferStarted() {
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Called once the transfer has ended, either way.
+     *
+     * @param retstat 0 if the whole file arrived, otherwise linux error code.
+     */
+    public synchronized void transferFinished(int retstat) {
+        this.retstat = retstat;
+        finished = true;
+        if (retstat == 0) {
+            watermark = Math.max(watermark, size);
+        }
+        lastProgress = System.currentTimeMillis();
+        notifyAll();
+        underway.complete(retstat);
+    }
+
+    /**
+     * @return long everything below this offset has arrived.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return long bytes transferred so far according to the performance markers.
+     */
+    public synchronized long getBytesTransferred() {
+        long total = 0L;
+        for (long bytes : stripeBytes.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return ByteRangeList copy of the byte ranges the receiving server has written.
+     */
+    public synchronized ByteRangeList getReceived() {
+        ByteRangeList copy = new ByteRangeList();
+        copy.merge(received);
+        return copy;
+    }
+
+    /**
+     * @return boolean, true once the transfer has ended.
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Waits until the transfer is writing the destination file, or has ended.
+     * Doesn't hold the lock while waiting, so markers keep arriving.
+     *
+     * @param timeout longest time to wait in milliseconds.
+     * @return int 0 once the destination file is being written, the transfer's
+     *         error code if it failed first, -11 (EAGAIN) if it didn't get going in time.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public int awaitUnderway(long timeout) throws InterruptedException {
+        try {
+            return underway.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException tE) {
+            return -11;
+        } catch (ExecutionException eE) {
+            //Never completed exceptionally
+            return -5;
+        }
+    }
+
+    /**
+     * Waits until every byte below end has arrived.
+     *
+     * @param end offset just past the last byte wanted.
+     * @param stallTimeout give up if nothing happens for this long, in milliseconds.
+     * @return int 0 once the bytes have arrived, the transfer's error code if it
+     *         ended without them, -11 (EAGAIN) if the transfer stalled.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public synchronized int awaitBytes(long end, long stallTimeout) throws InterruptedException {
+        if (size >= 0) {
+            end = Math.min(end, size);
+        }
+        while (watermark < end) {
+            if (finished) {
+                return (retstat != 0) ? retstat : 0;
+            }
+            long left = lastProgress + stallTimeout - System.currentTimeMillis();
+            if (left <= 0) {
+                LOGGER.warning("Transfer of "+path+" stalled at "+watermark+" bytes");
+                return -11;
+            }
+            wait(left);
+        }
+        return 0;
+    }
+}
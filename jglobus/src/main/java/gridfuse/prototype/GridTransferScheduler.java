@@ -0,0 +1,411 @@
+package gridfuse.prototype;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands files waiting to be synced in one direction to a fixed number
+ * of worker threads, a batch at a time.
+ *
+ * Each file has one entry in a map keyed by path, saying whether it is
+ * queued or in flight, so queueing a file twice, cancelling it and
+ * finding out where it is all take constant time. Files with no entry
+ * are done. Queued entries also sit in a FIFO, cancelled ones are left
+ * there and skipped when they reach the front.
+ *
+ * Workers sleep until something is queued, so an idle mount uses no CPU.
+ * Each worker has one batch in flight at a time, which bounds the batches
+ * in flight to the number of workers. A file queued again while it is in
+ * flight goes back in the queue when its transfer ends, so the same file
+ * is never transferred by two workers at once.
+ *
+ * A file a user is waiting for can be promoted out of the scheduler, so
+ * it can be fetched on its own straight away. That works until the batch
+ * holding it starts sending, after that the user waits for the batch.
+ */
+public class GridTransferScheduler {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+
+    /**
+     * Where a file is in the scheduler.
+     */
+    public enum State { QUEUED, IN_FLIGHT, DONE }
+
+    /**
+     * A file the scheduler knows about.
+     */
+    private static class Entry {
+        final String path;
+        State state = State.QUEUED;
+        //Queued again while in flight, goes back in the queue when the transfer ends
+        boolean again = false;
+        //Handed to a worker, whose batch has started sending it
+        boolean sending = false;
+        //Taken out of its worker's batch by promote(), before it started sending
+        boolean promoted = false;
+
+        Entry(String path) {
+            this.path = path;
+        }
+    }
+
+    final String name;
+    //Most files handed to a worker at once
+    final IntSupplier batchLimit;
+    //Transfers a batch, may contain nulls
+    final Consumer<String[]> handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition batchFinished = lock.newCondition();
+    //Every file queued or in flight
+    private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+    //Queued files in the order they were queued, may hold cancelled entries
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    private boolean closed = false;
+
+    /**
+     * @param name, what the scheduler is for, for logging only.
+     * @param batchLimit, gives the most files to hand a worker at once.
+     * @param handler, transfers a batch of files.
+     */
+    public GridTransferScheduler(String name, IntSupplier batchLimit, Consumer<String[]> handler) {
+        this.name = name;
+        this.batchLimit = batchLimit;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the workers.
+     *
+     * @param exec, executor to run the workers on, needs a thread for each.
+     * @param workers, number of batches allowed in flight at once.
+     */
+    public void start(ExecutorService exec, int workers) {
+        for (int i = 0; i < workers; i++) {
+            try {
+                exec.execute(this::work);
+            } catch (RejectedExecutionException reE) {
+                LOGGER.warning(name+" executor rejected worker "+i);
+            }
+        }
+    }
+
+    /**
+     * Queues a file to be transferred, unless it is already queued.
+     *
+     * @param path, file to transfer.
+     */
+    public void submit(String path) {
+        lock.lock();
+        try {
+            if (enqueue(path)) {
+                workAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues files to be transferred, skipping any already queued.
+     *
+     * @param paths, files to transfer.
+     */
+    public void submitAll(Collection<String> paths) {
+        lock.lock();
+        try {
+            boolean added = false;
+            for (String path : paths) {
+                added |= enqueue(path);
+            }
+            if (added) {
+                workAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a file unless it is already queued. Call with the lock held.
+     *
+     * @param path, file to transfer.
+     * @return boolean, true if a worker has something new to take.
+     */
+    private boolean enqueue(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = new Entry(path);
+            entries.put(path, entry);
+            queue.add(entry);
+            return true;
+        }
+        if (entry.state == State.IN_FLIGHT) {
+            entry.again = true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancels a file's transfer if it is waiting. If it is in flight,
+     * the transfer carries on but the file won't be queued again.
+     *
+     * @param path, file not to transfer.
+     */
+    public void remove(String path) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                return;
+            }
+            if (entry.state == State.QUEUED) {
+                //Left in the queue, take() skips it
+                entries.remove(path);
+                entry.state = State.DONE;
+            }
+            else {
+                entry.again = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a file out of the scheduler because a user is waiting for it
+     * and it is going to be fetched on its own. Queued files are cancelled,
+     * files in a worker's batch are left out of it, unless the batch has
+     * already started sending them.
+     *
+     * @param path, file wanted now.
+     * @return boolean, true if the caller should fetch the file itself,
+     *         false if a batch is sending it, see awaitDone().
+     */
+    public boolean promote(String path) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                return true;
+            }
+            if (entry.state == State.QUEUED) {
+                entries.remove(path);
+                entry.state = State.DONE;
+                LOGGER.fine("Promoted "+path+" out of the "+name+" queue");
+                return true;
+            }
+            if (entry.sending) {
+                return false;
+            }
+            entry.promoted = true;
+            entry.again = false;
+            LOGGER.fine("Promoted "+path+" out of a "+name+" batch");
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a batch before it sends files, to claim them.
+     * Files promoted out of the batch are left out.
+     *
+     * @param paths, files from the batch about to be sent, may contain nulls.
+     * @return String[] copy of paths with the promoted files replaced by null.
+     */
+    public String[] startSending(String[] paths) {
+        String[] sending = paths.clone();
+        lock.lock();
+        try {
+            for (int i = 0; i < sending.length; i++) {
+                if (sending[i] == null) {
+                    continue;
+                }
+                Entry entry = entries.get(sending[i]);
+                if (entry != null && entry.promoted) {
+                    sending[i] = null;
+                }
+                else if (entry != null) {
+                    entry.sending = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return sending;
+    }
+
+    /**
+     * Waits for a file's batch to end.
+     *
+     * @param path, file to wait for.
+     * @param timeout, longest time to wait in milliseconds.
+     * @return boolean, true if the scheduler has nothing more to do for the file.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public boolean awaitDone(String path, long timeout) throws InterruptedException {
+        long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (entries.containsKey(path)) {
+                if (left <= 0) {
+                    return false;
+                }
+                left = batchFinished.awaitNanos(left);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param path, file to look up.
+     * @return State of the file, DONE if the scheduler has nothing to do for it.
+     */
+    public State getState(String path) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(path);
+            return (entry == null) ? State.DONE : entry.state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int number of files queued or in flight.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops handing out work and wakes any waiting workers so they exit.
+     * Batches in flight carry on to the end.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Worker loop, transfers batches until the scheduler is closed.
+     */
+    private void work() {
+        while (true) {
+            String[] batch;
+            try {
+                batch = take();
+            } catch (InterruptedException iE) {
+                return;
+            }
+            if (batch == null) {
+                return;
+            }
+            try {
+                handler.accept(batch);
+            } catch (RuntimeException rE) {
+                LOGGER.log(Level.SEVERE, name+" batch failed", rE);
+            } finally {
+                finished(batch);
+            }
+        }
+    }
+
+    /**
+     * Waits for queued files.
+     *
+     * @return String[] files to transfer, or null once the scheduler is closed.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    private String[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                ArrayList<String> batch = new ArrayList<String>();
+                int limit = Math.max(1, batchLimit.getAsInt());
+                while (!queue.isEmpty() && batch.size() < limit) {
+                    Entry entry = queue.poll();
+                    //Cancelled while it waited
+                    if (entry.state != State.QUEUED) {
+                        continue;
+                    }
+                    entry.state = State.IN_FLIGHT;
+                    batch.add(entry.path);
+                }
+                if (!batch.isEmpty()) {
+                    LOGGER.finer(name+" handing out "+batch.size()+" files");
+                    return batch.toArray(new String[0]);
+                }
+                workAvailable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a batch as done, and queues any of its files which were
+     * queued again while they were in flight.
+     *
+     * @param batch, the files from take().
+     */
+    private void finished(String[] batch) {
+        lock.lock();
+        try {
+            boolean requeued = false;
+            for (String path : batch) {
+                Entry entry = entries.get(path);
+                if (entry == null) {
+                    continue;
+                }
+                entry.sending = false;
+                entry.promoted = false;
+                if (entry.again) {
+                    entry.again = false;
+                    entry.state = State.QUEUED;
+                    queue.add(entry);
+                    requeued = true;
+                }
+                else {
+                    entries.remove(path);
+                    entry.state = State.DONE;
+                }
+            }
+            if (requeued) {
+                workAvailable.signal();
+            }
+            batchFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package gridfuse.prototype;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.globus.ftp.GridFTPClient;
+import org.globus.ftp.HostPort;
+import org.globus.ftp.HostPortList;
+import org.globus.ftp.RetrieveOptions;
+import org.globus.ftp.exception.ServerException;
+
+/**
+ * Sets up the data channel for third party EBLOCK transfers.
+ *
+ * Files are split into size classes at largeFileThreshold. Each class
+ * has its own number of parallel streams and can be striped, so small
+ * files keep a single plain stream while large ones use every stream
+ * the link needs.
+ *
+ * Unless tcpBufferSize is set, the TCP buffer for each stream is the
+ * bandwidth-delay product of the link divided between the streams.
+ * The bandwidth is linkBandwidth and the delay is measured by timing
+ * NOOPs on the control channels.
+ */
+public class GridTransferTuner {
+    private static final Logger LOGGER = Logger.getLogger( "GridFuseLogger" );
+    //Size classes
+    public static final int SIZE_SMALL = 0;
+    public static final int SIZE_LARGE = 1;
+    //Smallest TCP buffer we'll ask for (bytes)
+    private static final int MIN_TCP_BUFFER = 64*1024;
+    //How often the round trip time is measured again (ms)
+    private static final long RTT_SAMPLE_INTERVAL = 60000L;
+
+    //Files at least this big are in SIZE_LARGE (bytes)
+    final long LARGE_FILE_THRESHOLD;
+    //Parallel streams for each size class
+    final int[] PARALLEL_STREAMS;
+    //Whether each size class uses striping, the servers must support it
+    final boolean[] STRIPED;
+    //Link bandwidth between the stores (bytes/s)
+    final long LINK_BANDWIDTH;
+    //Fixed TCP buffer size (bytes), 0 to work it out from the bandwidth-delay product
+    final int FIXED_TCP_BUFFER;
+    //Largest TCP buffer we'll ask for (bytes)
+    final int MAX_TCP_BUFFER;
+    //Moving average of the control channel round trip time (ms), -1 until measured
+    private volatile double rttMillis = -1;
+    private volatile long lastRttSample = 0L;
+    //Settings already sent to each connection, {streams, buffer}, so they aren't sent again
+    private final Map<GridFTPClient,int[]> applied = Collections.synchronizedMap(new WeakHashMap<GridFTPClient,int[]>());
+
+    /**
+     * @param GridFuseProps, parsed configuration properties, used for
+     *                       largeFileThreshold, parallelStreamsSmall,
+     *                       parallelStreamsLarge, stripedTransfersSmall,
+     *                       stripedTransfersLarge, linkBandwidth,
+     *                       tcpBufferSize and maxTcpBufferSize.
+     */
+    public GridTransferTuner(HashMap<String,String> GridFuseProps) {
+        LARGE_FILE_THRESHOLD = 1024L*1024L * GridFuseProperties.getIntProperty(GridFuseProps, "largeFileThreshold", 64);
+        PARALLEL_STREAMS = new int[] {
+            Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "parallelStreamsSmall", 1)),
+            Math.max(1, GridFuseProperties.getIntProperty(GridFuseProps, "parallelStreamsLarge", 4))
+        };
+        STRIPED = new boolean[] {
+            Boolean.parseBoolean(GridFuseProps.get("stripedTransfersSmall")),
+            Boolean.parseBoolean(GridFuseProps.get("stripedTransfersLarge"))
+        };
+        LINK_BANDWIDTH = 1000L*1000L/8 * GridFuseProperties.getIntProperty(GridFuseProps, "linkBandwidth", 1000);
+        FIXED_TCP_BUFFER = Math.max(0, GridFuseProperties.getIntProperty(GridFuseProps, "tcpBufferSize", 0));
+        MAX_TCP_BUFFER = Math.max(MIN_TCP_BUFFER, GridFuseProperties.getIntProperty(GridFuseProps, "maxTcpBufferSize", 16*1024*1024));
+    }
+
+    /**
+     * @param size file size in bytes, negative if unknown.
+     * @return int SIZE_SMALL or SIZE_LARGE. Unknown sizes count as small.
+     */
+    public int sizeClass(long size) {
+        return (size >= LARGE_FILE_THRESHOLD) ? SIZE_LARGE : SIZE_SMALL;
+    }
+
+    /**
+     * @param sizeClass SIZE_SMALL or SIZE_LARGE.
+     * @return int number of parallel streams used for that class.
+     */
+    public int getParallelStreams(int sizeClass) {
+        return PARALLEL_STREAMS[sizeClass];
+    }
+
+    /**
+     * Sets up the data channel between two connections for a third party
+     * transfer of a file of the given size. Parallelism and buffer sizes are
+     * only sent when they differ from what the connection already has.
+     * Both connections must be in EBLOCK mode.
+     *
+     * @param source connection to the server sending the data.
+     * @param destination connection to the server receiving the data.
+     * @param size size of the file in bytes, or of the largest file in a batch.
+     * @return int the size class used.
+     *
+     * @throws IOException when either connection fails.
+     * @throws ServerException when either server rejects a setting.
+     */
+    public int prepare(GridFTPClient source, GridFTPClient destination, long size) throws IOException, ServerException {
+        int sizeClass = sizeClass(size);
+        int streams = PARALLEL_STREAMS[sizeClass];
+        sampleRtt(source, destination);
+        int buffer = tcpBufferSize(streams);
+        if (needsUpdate(source, streams, buffer)) {
+            //Parallelism is set on the sending side of the transfer
+            source.setOptions(new RetrieveOptions(streams));
+            if (buffer > 0) {
+                source.setTCPBufferSize(buffer);
+            }
+            applied.put(source, new int[] {streams, buffer});
+        }
+        if (buffer > 0 && needsUpdate(destination, -1, buffer)) {
+            destination.setTCPBufferSize(buffer);
+            applied.put(destination, new int[] {-1, buffer});
+        }
+        //Set the data channel up every time, a pooled connection's old ports are gone
+        if (STRIPED[sizeClass]) {
+            HostPortList hpl = destination.setStripedPassive();
+            source.setStripedActive(hpl);
+        }
+        else {
+            HostPort hp = destination.setPassive();
+            source.setActive(hp);
+        }
+        LOGGER.finer("Transfer of "+size+" bytes using "+streams+" streams, "
+                     +(STRIPED[sizeClass] ? "striped, " : "")+"TCP buffer "+buffer);
+        return sizeClass;
+    }
+
+    /**
+     * @param conn connection to check.
+     * @param streams parallelism wanted, -1 if it doesn't matter.
+     * @param buffer TCP buffer size wanted.
+     * @return boolean, true if conn doesn't already have these settings.
+     */
+    private boolean needsUpdate(GridFTPClient conn, int streams, int buffer) {
+        int[] current = applied.get(conn);
+        return current == null || (streams != -1 && current[0] != streams) || current[1] != buffer;
+    }
+
+    /**
+     * Works out the TCP buffer each stream needs to keep the link full.
+     *
+     * @param streams number of parallel streams sharing the link.
+     * @return int buffer size in bytes, 0 to leave the server's default.
+     */
+    int tcpBufferSize(int streams) {
+        if (FIXED_TCP_BUFFER > 0) {
+            return FIXED_TCP_BUFFER;
+        }
+        if (rttMillis < 0) {
+            return 0;
+        }
+        long bdp = (long) (LINK_BANDWIDTH * rttMillis / 1000.0);
+        long perStream = bdp / streams;
+        return (int) Math.max(MIN_TCP_BUFFER, Math.min(MAX_TCP_BUFFER, perStream));
+    }
+
+    /**
+     * Measures the round trip time with a NOOP to each server, at most once
+     * every RTT_SAMPLE_INTERVAL. The slower of the two stands in for the
+     * delay between the servers, which we can't measure from here.
+     *
+     * @param source connection to one end of the transfer.
+     * @param destination connection to the other end.
+     *
+     * @throws IOException when either connection fails.
+     * @throws ServerException when either server rejects the NOOP.
+     */
+    private void sampleRtt(GridFTPClient source, GridFTPClient destination) throws IOException, ServerException {
+        if (FIXED_TCP_BUFFER > 0 || System.currentTimeMillis() - lastRttSample < RTT_SAMPLE_INTERVAL) {
+            return;
+        }
+        lastRttSample = System.currentTimeMillis();
+        long sample = Math.max(timeNoop(source), timeNoop(destination));
+        rttMillis = (rttMillis < 0) ? sample : 0.7*rttMillis + 0.3*sample;
+        LOGGER.fine("Round trip time "+sample+"ms, average "+(long) rttMillis+"ms");
+    }
+
+    /**
+     * @param conn connection to time.
+     * @return long how long a NOOP took, in milliseconds.
+     *
+     * @throws IOException when the connection fails.
+     * @throws ServerException when the server rejects the NOOP.
+     */
+    private static long timeNoop(GridFTPClient conn) throws IOException, ServerException {
+        long start = System.nanoTime();
+        conn.quote("NOOP");
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    /**
+     * Logs how fast a transfer went.
+     *
+     * @param what description of what was transferred.
+     * @param bytes amount transferred, negative if unknown.
+     * @param started when the transfer started, in milliseconds since the epoch.
+     * @param sizeClass size class the transfer used.
+     */
+    public void logThroughput(String what, long bytes, long started, int sizeClass) {
+        if (bytes < 0 || !LOGGER.isLoggable(Level.FINE)) {
+            return;
+        }
+        long took = Math.max(1L, System.currentTimeMillis() - started);
+        LOGGER.fine("Transferred "+what+", "+bytes+" bytes in "+took+"ms ("
+                    +(bytes*1000L/took)/(1024*1024)+"MB/s) with "+PARALLEL_STREAMS[sizeClass]+" streams");
+    }
+}
@@ -0,0 +1,144 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for GridFuseBlockMap: claiming runs of missing blocks, waiting
+ * for them, truncating the map, and saving it.
+ */
+public class GridFuseBlockMapTest extends TestCase {
+    private static final int BLOCK = 1024;
+
+    public void testClaimCoversRangeAndReadAhead() {
+        GridFuseBlockMap map = new GridFuseBlockMap(10L * BLOCK, BLOCK);
+        List<int[]> runs = map.claim(BLOCK + 10, BLOCK, 2);
+
+        //Bytes 1034-2057 are in blocks 1 and 2, read ahead adds 3 and 4
+        assertEquals(1, runs.size());
+        assertRun(1, 5, runs.get(0));
+        assertEquals((long) BLOCK, map.runOffset(runs.get(0)));
+        assertEquals(4L * BLOCK, map.runLength(runs.get(0)));
+    }
+
+    public void testClaimSkipsPresentAndClaimedBlocks() {
+        GridFuseBlockMap map = new GridFuseBlockMap(10L * BLOCK, BLOCK);
+        int[] first = map.claim(2L * BLOCK, BLOCK, 0).get(0);
+        map.finish(first, true);
+        map.claim(5L * BLOCK, BLOCK, 0);
+
+        List<int[]> runs = map.claim(0L, 8L * BLOCK, 0);
+        assertEquals(3, runs.size());
+        assertRun(0, 2, runs.get(0));
+        assertRun(3, 5, runs.get(1));
+        assertRun(6, 8, runs.get(2));
+    }
+
+    public void testReadAheadNeverStartsARunOnItsOwn() {
+        GridFuseBlockMap map = new GridFuseBlockMap(10L * BLOCK, BLOCK);
+        map.finish(map.claim(0L, BLOCK, 0).get(0), true);
+
+        //Block 0 is here, so nothing is missing in the range itself
+        assertTrue(map.claim(0L, BLOCK, 3).isEmpty());
+    }
+
+    public void testClaimIsClippedToTheFile() {
+        GridFuseBlockMap map = new GridFuseBlockMap(3L * BLOCK + 100, BLOCK);
+        List<int[]> runs = map.claim(3L * BLOCK, 10L * BLOCK, 5);
+
+        assertEquals(1, runs.size());
+        assertRun(3, 4, runs.get(0));
+        //The last block is short
+        assertEquals(100L, map.runLength(runs.get(0)));
+        assertTrue(map.claim(4L * BLOCK, BLOCK, 0).isEmpty());
+    }
+
+    public void testFailedFetchLeavesBlocksMissing() throws InterruptedException {
+        GridFuseBlockMap map = new GridFuseBlockMap(4L * BLOCK, BLOCK);
+        int[] run = map.claim(0L, 2L * BLOCK, 0).get(0);
+        map.finish(run, false);
+
+        assertFalse(map.await(0L, 2L * BLOCK, 10L));
+        assertEquals(1, map.claim(0L, 2L * BLOCK, 0).size());
+    }
+
+    public void testAwaitWakesWhenAnotherFetchFinishes() throws InterruptedException {
+        final GridFuseBlockMap map = new GridFuseBlockMap(4L * BLOCK, BLOCK);
+        final int[] run = map.claim(0L, BLOCK, 0).get(0);
+        Thread fetcher = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException iE) {
+                return;
+            }
+            map.finish(run, true);
+        });
+        fetcher.start();
+
+        assertTrue(map.await(0L, BLOCK, 5000L));
+        fetcher.join();
+    }
+
+    public void testCompleteAndBytesPresent() {
+        GridFuseBlockMap map = new GridFuseBlockMap(2L * BLOCK + 10, BLOCK);
+        assertEquals(0L, map.bytesPresent());
+        map.finish(map.claim(2L * BLOCK, 10L, 0).get(0), true);
+        assertEquals(10L, map.bytesPresent());
+        assertFalse(map.isComplete());
+
+        map.finish(map.claim(0L, 2L * BLOCK, 0).get(0), true);
+        assertEquals(2L * BLOCK + 10, map.bytesPresent());
+        assertTrue(map.isComplete());
+    }
+
+    public void testTruncateKeepsBlocksStillInTheFile() {
+        GridFuseBlockMap map = new GridFuseBlockMap(8L * BLOCK, BLOCK);
+        map.finish(map.claim(0L, BLOCK, 0).get(0), true);
+        map.finish(map.claim(6L * BLOCK, BLOCK, 0).get(0), true);
+
+        GridFuseBlockMap truncated = map.truncate(2L * BLOCK + 100);
+        assertEquals(2L * BLOCK + 100, truncated.fileSize);
+        assertEquals(3, truncated.blockCount);
+        assertEquals((long) BLOCK, truncated.bytesPresent());
+        List<int[]> runs = truncated.claim(0L, 8L * BLOCK, 0);
+        assertEquals(1, runs.size());
+        assertRun(1, 3, runs.get(0));
+        //The last block is only fetched up to the new end
+        assertEquals(BLOCK + 100L, truncated.runLength(runs.get(0)));
+    }
+
+    public void testAwaitIdle() throws InterruptedException {
+        GridFuseBlockMap map = new GridFuseBlockMap(4L * BLOCK, BLOCK);
+        assertTrue(map.awaitIdle(0L));
+        int[] run = map.claim(0L, BLOCK, 0).get(0);
+        assertFalse(map.awaitIdle(10L));
+        map.finish(run, false);
+        assertTrue(map.awaitIdle(0L));
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        GridFuseBlockMap map = new GridFuseBlockMap(100L * BLOCK + 1, BLOCK);
+        map.finish(map.claim(3L * BLOCK, 5L * BLOCK, 0).get(0), true);
+        map.finish(map.claim(100L * BLOCK, 1L, 0).get(0), true);
+        File state = File.createTempFile("blockmap", ".blocks");
+        state.deleteOnExit();
+        map.save(state);
+
+        GridFuseBlockMap loaded = GridFuseBlockMap.load(state);
+        assertEquals(map.fileSize, loaded.fileSize);
+        assertEquals(map.blockSize, loaded.blockSize);
+        assertEquals(map.bytesPresent(), loaded.bytesPresent());
+        List<int[]> runs = loaded.claim(0L, 101L * BLOCK, 0);
+        assertEquals(2, runs.size());
+        assertRun(0, 3, runs.get(0));
+        assertRun(8, 100, runs.get(1));
+    }
+
+    private static void assertRun(int first, int end, int[] run) {
+        assertEquals(first, run[0]);
+        assertEquals(end, run[1]);
+    }
+}
@@ -0,0 +1,104 @@
+package gridfuse.prototype;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.globus.ftp.MlsxEntry;
+import org.globus.ftp.exception.FTPException;
+
+/**
+ * Times GridFuseDirTree operations on directories of growing size,
+ * to check the time each one takes doesn't grow with the directory.
+ * Directories are loaded through GridFuseMlsxEntryWriter, as MLSR loads them,
+ * and lookups are also timed while another thread reloads the directory.
+ * It sits with the tests, so it isn't shipped, but the tests don't run it.
+ *
+ * Run after mvn test-compile with:
+ *   java -Xmx4g -cp "target/classes:target/test-classes:jars/*" gridfuse.prototype.GridFuseDirTreeBenchmark [largest directory size]
+ */
+public class GridFuseDirTreeBenchmark {
+    private static final int LOOKUPS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        //Let the JIT compile everything first
+        run(100000, false);
+        System.out.println(String.format("%10s %14s %14s %14s %18s %12s",
+                           "entries", "load ns/entry", "getattr ns", "resync ns", "getattr ns (busy)", "readdir ms"));
+        for (int entries = 1000; entries <= largest; entries *= 10) {
+            run(entries, true);
+        }
+    }
+
+    private static void run(int entries, boolean print) throws Exception {
+        GridFuseDirTree dirTree = new GridFuseHeapDirTree();
+        //The root's own entry, which a listing of it starts with
+        dirTree.add_node("/", new FileStat(".","dir","0755","0",0L,"test","test",FileStat.CACHE_SYNCED));
+        dirTree.add_node("/", new FileStat("data","dir","0755","0",0L,"test","test",FileStat.CACHE_SYNCED));
+
+        //Loading a directory, as MLSR does
+        long start = System.nanoTime();
+        load(dirTree, entries, "20200101000000");
+        long load = System.nanoTime() - start;
+
+        //Looking files up at random, as getattr does
+        start = System.nanoTime();
+        lookups(dirTree, entries, new Random(42));
+        long lookup = System.nanoTime() - start;
+
+        //Loading the directory again with newer files, as the next MLSR pass
+        //does, while another thread looks files up
+        AtomicBoolean resyncing = new AtomicBoolean(true);
+        long[] busy = new long[2];
+        Thread reader = new Thread(() -> {
+            Random random = new Random(7);
+            long readerStart = System.nanoTime();
+            while (resyncing.get()) {
+                lookups(dirTree, entries, random);
+                busy[0] += LOOKUPS;
+            }
+            busy[1] = System.nanoTime() - readerStart;
+        });
+        reader.start();
+        start = System.nanoTime();
+        load(dirTree, entries, "20200102000000");
+        long resync = System.nanoTime() - start;
+        resyncing.set(false);
+        reader.join();
+
+        start = System.nanoTime();
+        int listed = dirTree.cached_readdir("/data").length;
+        long readdir = System.nanoTime() - start;
+
+        if (listed != entries + 2) {
+            throw new IllegalStateException("Tree lost entries: "+listed+" listed");
+        }
+        if (print) {
+            System.out.println(String.format("%10d %14d %14d %14d %18d %12d",
+                               entries, load/entries, lookup/LOOKUPS, resync/entries,
+                               busy[1]/Math.max(1L, busy[0]), readdir/1000000));
+        }
+    }
+
+    private static void load(GridFuseDirTree dirTree, int entries, String modify) throws FTPException, IOException {
+        GridFuseMlsxEntryWriter writer = new GridFuseMlsxEntryWriter(dirTree);
+        for (int i = 0; i < entries; i++) {
+            writer.write(new MlsxEntry("type=file;size=1048576;modify="+modify
+                                       +";unix.mode=0644;unix.owner=test;unix.group=test; /data/"+name(i)));
+        }
+        writer.close();
+    }
+
+    private static void lookups(GridFuseDirTree dirTree, int entries, Random random) {
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (dirTree.find_file("/data/"+name(random.nextInt(entries))) == null) {
+                throw new IllegalStateException("Lookup found nothing");
+            }
+        }
+    }
+
+    private static String name(int i) {
+        return String.format("run_%07d.nxs", i);
+    }
+}
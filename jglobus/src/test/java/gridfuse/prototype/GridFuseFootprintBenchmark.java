@@ -0,0 +1,112 @@
+package gridfuse.prototype;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import org.globus.ftp.MlsxEntry;
+
+/**
+ * Measures how much heap the cached directory tree takes per file,
+ * to size the heap for a full MLSR of a large store.
+ *
+ * First just the FileStats are measured, made the way MLSR makes them,
+ * with every owner and group a fresh String as they are when parsed.
+ * Then a whole tree is loaded through GridFuseMlsxEntryWriter and
+ * measured, names, nodes and directory maps included, along with how
+ * long a full garbage collection takes while it's there.
+ * With mmap the tree is a GridFuseMappedDirTree instead of a GridFuseHeapDirTree.
+ * It sits with the tests, so it isn't shipped, but the tests don't run it.
+ *
+ * Run after mvn test-compile with:
+ *   java -Xmx4g -cp "target/classes:target/test-classes:jars/*" gridfuse.prototype.GridFuseFootprintBenchmark [files] [heap|mmap]
+ */
+public class GridFuseFootprintBenchmark {
+    private static final int FILES_PER_DIR = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        boolean mapped = (args.length > 1) && args[1].equalsIgnoreCase("mmap");
+        System.out.println(String.format("%10s %18s %18s %12s", "files", "FileStat bytes", "tree bytes/file", "full GC ms"));
+
+        //FileStats alone, names made beforehand so they aren't counted
+        String[] names = new String[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = name(i);
+        }
+        long base = usedHeap();
+        FileStat[] stats = new FileStat[files];
+        for (int i = 0; i < files; i++) {
+            stats[i] = new FileStat(names[i], new String("file"), new String("0644"), Integer.toString(1048576 + i),
+                                    1577836800L + i, new String("user"+(i % 50)), new String("group"+(i % 5)),
+                                    FileStat.CACHE_BEHIND);
+        }
+        long statBytes = usedHeap() - base - 16L - 4L*files;
+        if (stats[files - 1].getSizeBytes() != 1048576 + files - 1) {
+            throw new IllegalStateException("FileStat lost its size");
+        }
+        stats = null;
+        names = null;
+
+        //The whole tree
+        base = usedHeap();
+        GridFuseDirTree dirTree;
+        if (mapped) {
+            HashMap<String,String> props = new HashMap<String,String>();
+            props.put("metadataStoreDir", Files.createTempDirectory("metadata").toString());
+            props.put("negativeCacheTTL", "5");
+            props.put("negativeCacheSize", "10000");
+            dirTree = new GridFuseMappedDirTree(props);
+        }
+        else {
+            dirTree = new GridFuseHeapDirTree();
+        }
+        dirTree.add_node("/", new FileStat(".","dir","0755","0",0L,"test","test",FileStat.CACHE_SYNCED));
+        GridFuseMlsxEntryWriter writer = new GridFuseMlsxEntryWriter(dirTree);
+        writer.write(new MlsxEntry("type=dir;size=4096;modify=20200101000000"
+                                   +";unix.mode=0755;unix.owner=user0;unix.group=group0; /data"));
+        for (int i = 0; i < files; i++) {
+            String dir = String.format("/data/d%05d", i / FILES_PER_DIR);
+            if (i % FILES_PER_DIR == 0) {
+                writer.write(new MlsxEntry("type=dir;size=4096;modify=20200101000000"
+                                           +";unix.mode=0755;unix.owner=user0;unix.group=group0; "+dir));
+            }
+            writer.write(new MlsxEntry("type=file;size="+(1048576 + i)+";modify=20200101000000"
+                                       +";unix.mode=0644;unix.owner=user"+(i % 50)+";unix.group=group"+(i % 5)
+                                       +"; "+dir+"/"+name(i)));
+        }
+        writer.close();
+        long treeBytes = usedHeap() - base;
+        long start = System.nanoTime();
+        System.gc();
+        long gc = System.nanoTime() - start;
+        //Also keeps the tree alive until it's been measured
+        if (dirTree.cached_readdir("/data/d00000").length != Math.min(files, FILES_PER_DIR) + 2) {
+            throw new IllegalStateException("Tree lost entries");
+        }
+
+        System.out.println(String.format("%10d %18d %18d %12d", files, statBytes/files, treeBytes/files, gc/1000000));
+    }
+
+    /**
+     * @return long bytes of heap in use, once garbage has been collected.
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Collect until it stops shrinking
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    private static String name(int i) {
+        return String.format("run_%07d.nxs", i);
+    }
+}
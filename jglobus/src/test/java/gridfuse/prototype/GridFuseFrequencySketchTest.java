@@ -0,0 +1,95 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for GridFuseFrequencySketch.
+ */
+public class GridFuseFrequencySketchTest extends TestCase {
+
+    public void testCountsOpens() {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("/data/hot");
+        }
+        sketch.increment("/data/warm");
+
+        assertEquals(5, sketch.frequency("/data/hot"));
+        assertEquals(1, sketch.frequency("/data/warm"));
+        assertEquals(0, sketch.frequency("/data/cold"));
+    }
+
+    public void testCountersStopAtFifteen() {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(1024);
+        for (int i = 0; i < 40; i++) {
+            sketch.increment("/data/hot");
+        }
+
+        assertEquals(15, sketch.frequency("/data/hot"));
+    }
+
+    public void testWidthIsAPowerOfTwo() {
+        assertEquals(64, new GridFuseFrequencySketch(1).width);
+        assertEquals(1024, new GridFuseFrequencySketch(1000).width);
+        assertEquals(1024, new GridFuseFrequencySketch(1024).width);
+    }
+
+    public void testStringHashCollisionsDontCollideInTheSketch() {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(64);
+        //"Aa" and "BB" have the same String.hashCode()
+        assertEquals("/x/Aa".hashCode(), "/x/BB".hashCode());
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("/x/Aa");
+        }
+
+        assertEquals(0, sketch.frequency("/x/BB"));
+    }
+
+    public void testFewFalsePositives() {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(4096);
+        for (int i = 0; i < 500; i++) {
+            sketch.increment("/data/opened/"+i);
+        }
+        int overestimated = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (sketch.frequency("/data/never/"+i) > 0) {
+                overestimated++;
+            }
+        }
+
+        assertTrue("Too many unopened files look opened: "+overestimated, overestimated < 100);
+    }
+
+    public void testAgingHalvesCounts() {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(64);
+        for (int i = 0; i < 12; i++) {
+            sketch.increment("/data/hot");
+        }
+        //Ten opens per counter in a row brings on aging
+        for (int i = 0; i < 64 * 10; i++) {
+            sketch.increment("/data/scan/"+i);
+        }
+
+        int hot = sketch.frequency("/data/hot");
+        assertTrue("Hot file wasn't aged: "+hot, hot < 12);
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        GridFuseFrequencySketch sketch = new GridFuseFrequencySketch(256);
+        for (int i = 0; i < 7; i++) {
+            sketch.increment("/data/hot");
+        }
+        File state = File.createTempFile("frequency", ".sketch");
+        state.deleteOnExit();
+        sketch.save(state);
+
+        GridFuseFrequencySketch loaded = new GridFuseFrequencySketch(256);
+        assertTrue(loaded.load(state));
+        assertEquals(7, loaded.frequency("/data/hot"));
+        //A different size can't use the counts
+        assertFalse(new GridFuseFrequencySketch(512).load(state));
+    }
+}
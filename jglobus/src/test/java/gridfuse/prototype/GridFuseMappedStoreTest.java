@@ -0,0 +1,263 @@
+package gridfuse.prototype;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for GridFuseMappedStore: the directory links, the open-addressed
+ * name index as it grows and collects removed markers, the name arena,
+ * and reusing what deleted files leave behind.
+ */
+public class GridFuseMappedStoreTest extends TestCase {
+    private static final int ROOT = GridFuseMappedStore.ROOT;
+    //MIN_SLOTS in the store, the index starts this big
+    private static final int MIN_SLOTS = 1 << 16;
+    //REUSE_DELAY in the store
+    private static final int REUSE_DELAY = 1024;
+
+    private GridFuseMappedStore store;
+
+    @Override
+    protected void setUp() throws IOException {
+        File dir = Files.createTempDirectory("mappedstore").toFile();
+        dir.deleteOnExit();
+        store = new GridFuseMappedStore(dir);
+    }
+
+    public void testChildrenAreFoundAndListedInOrder() throws IOException {
+        int data = store.addChild(ROOT, "data");
+        int a = store.addChild(data, "a");
+        int b = store.addChild(data, "b");
+        int c = store.addChild(data, "c");
+
+        assertEquals(data, store.child(ROOT, "data"));
+        assertEquals(b, store.child(data, "b"));
+        assertEquals(-1, store.child(data, "d"));
+        //Same name, different directory
+        assertEquals(-1, store.child(ROOT, "b"));
+        assertEquals(Arrays.asList(a, b, c), children(data));
+        assertEquals(data, store.getParent(a));
+        assertEquals("c", store.getName(c));
+    }
+
+    public void testIndexGrowsPastMinSlots() throws IOException {
+        int dir = store.addChild(ROOT, "big");
+        int files = MIN_SLOTS;
+        int[] ids = new int[files];
+        for (int i = 0; i < files; i++) {
+            ids[i] = store.addChild(dir, "file"+i);
+        }
+
+        assertTrue(store.indexSlots() > MIN_SLOTS);
+        for (int i = 0; i < files; i++) {
+            assertEquals(ids[i], store.child(dir, "file"+i));
+        }
+        assertEquals(-1, store.child(dir, "file"+files));
+    }
+
+    public void testRemovedMarkersAreClearedWithoutGrowing() throws IOException {
+        int dir = store.addChild(ROOT, "churn");
+        int kept = store.addChild(dir, "kept");
+        //Enough removals to fill half the index with markers several times over
+        for (int i = 0; i < MIN_SLOTS * 2; i++) {
+            int id = store.addChild(dir, "temp"+i);
+            store.remove(id);
+            assertEquals(-1, store.child(dir, "temp"+i));
+        }
+
+        assertEquals(MIN_SLOTS, store.indexSlots());
+        assertEquals(kept, store.child(dir, "kept"));
+        assertEquals(Arrays.asList(kept), children(dir));
+    }
+
+    public void testLookupsProbePastRemovedMarkers() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = store.addChild(dir, "f"+i);
+        }
+        //Some of these sat in slots the survivors probed past
+        for (int i = 0; i < ids.length; i += 2) {
+            store.remove(ids[i]);
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals((i % 2 == 0) ? -1 : ids[i], store.child(dir, "f"+i));
+        }
+    }
+
+    public void testNameCanBeAddedAgainAfterRemove() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        int old = store.addChild(dir, "file");
+        store.remove(old);
+        int again = store.addChild(dir, "file");
+
+        assertTrue(again != old);
+        assertEquals(again, store.child(dir, "file"));
+    }
+
+    public void testRemoveUnlinksAndUnindexesEverythingUnder() throws IOException {
+        int top = store.addChild(ROOT, "top");
+        int first = store.addChild(top, "first");
+        int middle = store.addChild(top, "middle");
+        int last = store.addChild(top, "last");
+        int sub = store.addChild(middle, "sub");
+        int deep = store.addChild(sub, "deep");
+        store.setSize(deep, 42L);
+
+        store.remove(middle);
+
+        assertEquals(Arrays.asList(first, last), children(top));
+        assertEquals(-1, store.child(top, "middle"));
+        assertEquals(-1, store.child(middle, "sub"));
+        assertEquals(-1, store.child(sub, "deep"));
+        assertTrue(store.isDeleted(middle));
+        assertTrue(store.isDeleted(sub));
+        assertTrue(store.isDeleted(deep));
+        assertFalse(store.isDeleted(first));
+        //Metadata can still be read, as a FileStat view of it might be held
+        assertEquals(42L, store.getSize(deep));
+        assertEquals("deep", store.getName(deep));
+
+        store.remove(first);
+        store.remove(last);
+        assertEquals(new ArrayList<Integer>(), children(top));
+        //Removing twice does nothing
+        store.remove(middle);
+        assertEquals(new ArrayList<Integer>(), children(top));
+    }
+
+    public void testRemovedRecordsAreReusedAfterADelay() throws IOException {
+        int dir = store.addChild(ROOT, "churn");
+        int first = store.addChild(dir, "first");
+        int generation = store.getGeneration(first);
+        store.remove(first);
+        //Not reused until REUSE_DELAY more have been freed after it
+        for (int i = 0; i < REUSE_DELAY; i++) {
+            store.remove(store.addChild(dir, "temp"+i));
+        }
+        assertTrue(store.isDeleted(first));
+        assertEquals("first", store.getName(first));
+
+        int reused = store.addChild(dir, "new");
+        assertEquals(first, reused);
+        assertFalse(store.isDeleted(reused));
+        assertTrue(store.getGeneration(reused) != generation);
+        assertFalse(store.hasMeta(reused));
+        assertEquals(reused, store.child(dir, "new"));
+        assertEquals(Arrays.asList(reused), children(dir));
+        //Once REUSE_DELAY are waiting, churning on doesn't add records
+        store.remove(store.addChild(dir, "more"));
+        int count = store.count();
+        for (int i = 0; i < 10 * REUSE_DELAY; i++) {
+            store.remove(store.addChild(dir, "more"+i));
+        }
+        assertEquals(count, store.count());
+    }
+
+    public void testRemovedDirectoryFreesEverythingUnder() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        for (int i = 0; i < 10; i++) {
+            store.addChild(dir, "file"+i);
+        }
+        int freed = store.freeCount();
+        store.remove(dir);
+
+        assertEquals(freed + 11, store.freeCount());
+    }
+
+    public void testDeadNamesAreCompacted() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        int kept = store.addChild(dir, "kept");
+        int renamed = store.addChild(dir, "renamed");
+        char[] fill = new char[30000];
+        //Several segments' worth of names nothing points at any more
+        for (int i = 0; i < 10000; i++) {
+            Arrays.fill(fill, (char) ('a' + i % 26));
+            store.setName(renamed, i+new String(fill));
+        }
+
+        assertTrue("Name arena wasn't compacted: "+store.nameArenaSize(), store.nameArenaSize() < 3L << 26);
+        assertEquals("kept", store.getName(kept));
+        assertEquals(kept, store.child(dir, "kept"));
+        String last = store.getName(renamed);
+        assertTrue(last.startsWith("9999"));
+        assertEquals(renamed, store.child(dir, last));
+    }
+
+    public void testSetNameMovesTheIndexEntry() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        int id = store.addChild(dir, "before");
+        store.setName(id, "after");
+
+        assertEquals(-1, store.child(dir, "before"));
+        assertEquals(id, store.child(dir, "after"));
+        assertEquals("after", store.getName(id));
+    }
+
+    public void testSetNameOfRemovedRecordDoesNotIndexIt() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        int id = store.addChild(dir, "gone");
+        store.remove(id);
+        store.setName(id, "renamed");
+
+        assertTrue(store.isDeleted(id));
+        assertEquals("renamed", store.getName(id));
+        assertEquals(-1, store.child(dir, "renamed"));
+    }
+
+    public void testNamesAroundSegmentBoundaries() throws IOException {
+        int dir = store.addChild(ROOT, "dir");
+        //Long names fill a 64MB name segment in a few thousand writes
+        char[] fill = new char[30000];
+        int[] ids = new int[2500];
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Arrays.fill(fill, (char) ('a' + i % 26));
+            names[i] = i+new String(fill, 0, fill.length - (i % 7) * 1000);
+            ids[i] = store.addChild(dir, names[i]);
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(names[i], store.getName(ids[i]));
+            assertEquals(ids[i], store.child(dir, names[i]));
+        }
+    }
+
+    public void testNameTooLongIsRefused() throws IOException {
+        char[] name = new char[0x8000];
+        Arrays.fill(name, 'x');
+        try {
+            store.addChild(ROOT, new String(name));
+            fail("Name longer than the length field allows was stored");
+        } catch (IOException ioE) {
+            //Expected
+        }
+    }
+
+    public void testMetaRoundTrips() throws IOException {
+        int id = store.addChild(ROOT, "file");
+        assertFalse(store.hasMeta(id));
+        store.setMeta(id, new FileStat("file", "file", "0640", "1234", 1577836800L, "alice", "staff", FileStat.CACHE_AHEAD));
+
+        assertTrue(store.hasMeta(id));
+        assertEquals("file", FileStat.typeName(store.getType(id)));
+        assertEquals(0640, store.getMode(id));
+        assertEquals(1234L, store.getSize(id));
+        assertEquals(1577836800L, store.getMTime(id));
+        assertEquals(FileStat.CACHE_AHEAD, store.getCacheStatus(id));
+    }
+
+    private ArrayList<Integer> children(int dir) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int child = store.getFirstChild(dir); child >= 0; child = store.getNextSibling(child)) {
+            ids.add(child);
+        }
+        return ids;
+    }
+}
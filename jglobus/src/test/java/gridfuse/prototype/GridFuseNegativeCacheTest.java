@@ -0,0 +1,68 @@
+package gridfuse.prototype;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for GridFuseNegativeCache.
+ */
+public class GridFuseNegativeCacheTest extends TestCase {
+
+    public void testMissingPathIsRemembered() {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(60000L, 100);
+        assertFalse(cache.isMissing("/data/file"));
+        cache.add("/data/file");
+
+        assertTrue(cache.isMissing("/data/file"));
+        assertFalse(cache.isMissing("/data/other"));
+    }
+
+    public void testPathsUnderMissingDirectoryAreMissing() {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(60000L, 100);
+        cache.add("/data/gone");
+
+        assertTrue(cache.isMissing("/data/gone/file"));
+        assertTrue(cache.isMissing("/data/gone/sub/file"));
+        assertFalse(cache.isMissing("/data"));
+        assertFalse(cache.isMissing("/data/gonefile"));
+    }
+
+    public void testEntriesExpire() throws InterruptedException {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(20L, 100);
+        cache.add("/data/file");
+        Thread.sleep(50);
+
+        assertFalse(cache.isMissing("/data/file"));
+    }
+
+    public void testZeroTtlTurnsTheCacheOff() {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(0L, 100);
+        cache.add("/data/file");
+
+        assertFalse(cache.isMissing("/data/file"));
+    }
+
+    public void testInvalidateClearsThePathAndDirectoriesAbove() {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(60000L, 100);
+        cache.add("/data");
+        cache.add("/data/dir");
+        cache.add("/other");
+        cache.invalidate("/data/dir/file");
+
+        assertFalse(cache.isMissing("/data"));
+        assertFalse(cache.isMissing("/data/dir"));
+        assertTrue(cache.isMissing("/other"));
+    }
+
+    public void testOnlyTheMostRecentlyUsedAreKept() {
+        GridFuseNegativeCache cache = new GridFuseNegativeCache(60000L, 2);
+        cache.add("/a");
+        cache.add("/b");
+        //Asking about /a makes /b the least recently used
+        assertTrue(cache.isMissing("/a"));
+        cache.add("/c");
+
+        assertTrue(cache.isMissing("/a"));
+        assertFalse(cache.isMissing("/b"));
+        assertTrue(cache.isMissing("/c"));
+    }
+}
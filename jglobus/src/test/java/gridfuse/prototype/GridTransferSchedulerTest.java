@@ -0,0 +1,172 @@
+package gridfuse.prototype;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for GridTransferScheduler, with a handler which records each
+ * batch and can be held up until the test lets it go.
+ */
+public class GridTransferSchedulerTest extends TestCase {
+    private static final long WAIT = 5000L;
+
+    private ExecutorService exec;
+    private GridTransferScheduler scheduler;
+    //Batches the handler has been given
+    private BlockingQueue<String[]> batches;
+    //The handler waits on this before it returns
+    private volatile CountDownLatch release;
+    //Set to make the handler claim its batch with startSending()
+    private volatile boolean claim;
+
+    @Override
+    protected void setUp() {
+        exec = Executors.newCachedThreadPool();
+        batches = new LinkedBlockingQueue<String[]>();
+        release = new CountDownLatch(0);
+        claim = false;
+        scheduler = new GridTransferScheduler("Test scheduler", () -> 2, batch -> {
+            batches.add(claim ? scheduler.startSending(batch) : batch);
+            try {
+                release.await(WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iE) {
+                return;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() {
+        scheduler.close();
+        exec.shutdownNow();
+    }
+
+    public void testBatchesAreLimitedAndInQueueOrder() throws InterruptedException {
+        scheduler.submitAll(Arrays.asList("/a", "/b", "/c"));
+        scheduler.start(exec, 1);
+
+        assertEquals(Arrays.asList("/a", "/b"), Arrays.asList(nextBatch()));
+        assertEquals(Arrays.asList("/c"), Arrays.asList(nextBatch()));
+        waitForState("/c", GridTransferScheduler.State.DONE);
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testQueuedFileIsOnlyQueuedOnce() throws InterruptedException {
+        scheduler.submit("/a");
+        scheduler.submit("/a");
+        assertEquals(1, scheduler.size());
+        assertEquals(GridTransferScheduler.State.QUEUED, scheduler.getState("/a"));
+        scheduler.start(exec, 1);
+
+        assertEquals(Arrays.asList("/a"), Arrays.asList(nextBatch()));
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void testFileQueuedWhileInFlightGoesAgainAfterwards() throws InterruptedException {
+        release = new CountDownLatch(1);
+        scheduler.submit("/a");
+        scheduler.start(exec, 2);
+        nextBatch();
+        assertEquals(GridTransferScheduler.State.IN_FLIGHT, scheduler.getState("/a"));
+
+        //Changed again while it was being sent, but not sent twice at once
+        scheduler.submit("/a");
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+
+        assertEquals(Arrays.asList("/a"), Arrays.asList(nextBatch()));
+    }
+
+    public void testRemoveCancelsQueuedFile() throws InterruptedException {
+        scheduler.submitAll(Arrays.asList("/a", "/b"));
+        scheduler.remove("/a");
+        assertEquals(GridTransferScheduler.State.DONE, scheduler.getState("/a"));
+        scheduler.start(exec, 1);
+
+        assertEquals(Arrays.asList("/b"), Arrays.asList(nextBatch()));
+    }
+
+    public void testRemoveInFlightStopsItGoingAgain() throws InterruptedException {
+        release = new CountDownLatch(1);
+        scheduler.submit("/a");
+        scheduler.start(exec, 1);
+        nextBatch();
+        scheduler.submit("/a");
+        scheduler.remove("/a");
+        release.countDown();
+
+        waitForState("/a", GridTransferScheduler.State.DONE);
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void testPromoteQueuedFile() {
+        scheduler.submit("/a");
+
+        assertTrue(scheduler.promote("/a"));
+        assertEquals(GridTransferScheduler.State.DONE, scheduler.getState("/a"));
+        //Not in the scheduler at all, the caller fetches it
+        assertTrue(scheduler.promote("/b"));
+    }
+
+    public void testPromotedFileIsLeftOutOfItsBatch() throws InterruptedException {
+        //Hold the worker until /a is promoted, before its batch claims it
+        CountDownLatch promoted = new CountDownLatch(1);
+        scheduler = new GridTransferScheduler("Test scheduler", () -> 2, batch -> {
+            try {
+                promoted.await(WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iE) {
+                return;
+            }
+            batches.add(scheduler.startSending(batch));
+        });
+        scheduler.submitAll(Arrays.asList("/a", "/b"));
+        scheduler.start(exec, 1);
+        waitForState("/a", GridTransferScheduler.State.IN_FLIGHT);
+
+        assertTrue(scheduler.promote("/a"));
+        promoted.countDown();
+        assertEquals(Arrays.asList(null, "/b"), Arrays.asList(nextBatch()));
+    }
+
+    public void testFileAlreadySendingCantBePromoted() throws InterruptedException {
+        release = new CountDownLatch(1);
+        claim = true;
+        scheduler.submit("/a");
+        scheduler.start(exec, 1);
+        nextBatch();
+
+        assertFalse(scheduler.promote("/a"));
+        assertFalse(scheduler.awaitDone("/a", 50L));
+        release.countDown();
+        assertTrue(scheduler.awaitDone("/a", WAIT));
+    }
+
+    public void testCloseStopsWorkers() throws InterruptedException {
+        scheduler.start(exec, 2);
+        scheduler.close();
+        scheduler.submit("/a");
+
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private String[] nextBatch() throws InterruptedException {
+        String[] batch = batches.poll(WAIT, TimeUnit.MILLISECONDS);
+        assertNotNull("No batch was handed out", batch);
+        return batch;
+    }
+
+    private void waitForState(String path, GridTransferScheduler.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (scheduler.getState(path) != state) {
+            assertTrue(path+" never got to "+state, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}